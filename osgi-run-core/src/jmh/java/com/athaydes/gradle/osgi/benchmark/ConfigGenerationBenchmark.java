@@ -0,0 +1,133 @@
+package com.athaydes.gradle.osgi.benchmark;
+
+import com.athaydes.gradle.osgi.CreateOsgiRuntimeTask;
+import com.athaydes.gradle.osgi.OsgiConfig;
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation of the framework configuration for a runtime containing a corpus of jars.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ConfigGenerationBenchmark {
+
+    @Param( { "100", "1000", "10000" } )
+    public int jarCount;
+
+    /**
+     * Whether every bundle has a start level, which makes Felix and Knopflerfish list all bundles.
+     */
+    @Param( { "false", "true" } )
+    public boolean startLevels;
+
+    private String target;
+    private File systemLibs;
+    private BundleMetadataIndex metadataIndex;
+    private Map<String, Integer> startLevelMap;
+
+    @Setup
+    public void setup() throws Exception {
+        List<File> jars = JarCorpus.corpus( jarCount );
+        File targetDir = new File( JarCorpus.rootDirectory(), "runtime-" + jarCount );
+        target = targetDir.getAbsolutePath();
+
+        systemLibs = CreateOsgiRuntimeTask.getSystemLibs( target );
+        List<File> dirs = new ArrayList<>();
+        dirs.add( systemLibs );
+        for ( String configSettings : new String[]{ "felix", "equinox", "knopflerfish" } ) {
+            dirs.add( new File( targetDir, config( configSettings ).getBundlesPath() ) );
+        }
+
+        // the metadata of all jars is indexed by the createBundlesDir task before the configuration is generated
+        metadataIndex = BundleMetadataIndex.load( new File( targetDir, "bundle-metadata.idx" ) );
+        for ( File dir : dirs ) {
+            JarCorpus.linkInto( jars, dir );
+            for ( File jar : JarCorpus.jarsIn( dir ) ) {
+                metadataIndex.get( jar );
+            }
+        }
+
+        startLevelMap = new HashMap<>();
+        if ( startLevels ) {
+            for ( int i = 0; i < jars.size(); i++ ) {
+                startLevelMap.put( jars.get( i ).getName(), 2 + i % 5 );
+            }
+        }
+    }
+
+    /**
+     * System libs of a runtime being created from scratch, when no jar has been indexed yet.
+     */
+    @Benchmark
+    public Object updateConfigWithSystemLibsCold() {
+        OsgiConfig osgiConfig = config( "felix" );
+        BundleMetadataIndex emptyIndex = BundleMetadataIndex.load( new File( target, "none.idx" ) );
+        CreateOsgiRuntimeTask.updateConfigWithSystemLibs( osgiConfig, systemLibs, emptyIndex );
+        return osgiConfig.getConfig();
+    }
+
+    /**
+     * System libs of a runtime being re-created, when all jars are already indexed.
+     */
+    @Benchmark
+    public Object updateConfigWithSystemLibsWarm() {
+        OsgiConfig osgiConfig = config( "felix" );
+        CreateOsgiRuntimeTask.updateConfigWithSystemLibs( osgiConfig, systemLibs, metadataIndex );
+        return osgiConfig.getConfig();
+    }
+
+    @Benchmark
+    public long felixConfig() {
+        return writeConfig( "felix" );
+    }
+
+    @Benchmark
+    public long equinoxConfig() {
+        return writeConfig( "equinox" );
+    }
+
+    @Benchmark
+    public long knopflerfishConfig() {
+        return writeConfig( "knopflerfish" );
+    }
+
+    /**
+     * Writes the configuration file the same way the createOsgiRuntime task does.
+     *
+     * @return the size of the configuration file
+     */
+    private long writeConfig( String configSettings ) {
+        OsgiConfig osgiConfig = config( configSettings );
+        CreateOsgiRuntimeTask.copyConfigFiles( target, osgiConfig, startLevelMap, metadataIndex );
+        return CreateOsgiRuntimeTask.getConfigFile( target, osgiConfig ).length();
+    }
+
+    private static OsgiConfig config( String configSettings ) {
+        OsgiConfig osgiConfig = new OsgiConfig();
+        osgiConfig.setConfigSettings( configSettings );
+        return osgiConfig;
+    }
+
+}
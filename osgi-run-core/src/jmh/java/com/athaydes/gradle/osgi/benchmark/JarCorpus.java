@@ -0,0 +1,194 @@
+package com.athaydes.gradle.osgi.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * Synthetic jars used by the benchmarks.
+ * <p>
+ * A corpus mixes bundles, non-bundles and fragments of varying sizes in the proportions usually found in
+ * an OSGi runtime. Corpora are generated deterministically, and only once: they are kept in the directory given
+ * by the {@code osgirun.benchmark.corpus} system property so that all benchmarks and forks share them.
+ */
+public final class JarCorpus {
+
+    public enum Kind {
+        BUNDLE, NON_BUNDLE, FRAGMENT
+    }
+
+    public enum Size {
+        SMALL( 5, 1024 ), MEDIUM( 20, 4 * 1024 ), LARGE( 50, 16 * 1024 );
+
+        final int entries;
+        final int entrySize;
+
+        Size( int entries, int entrySize ) {
+            this.entries = entries;
+            this.entrySize = entrySize;
+        }
+    }
+
+    private static final String COMPLETE_MARKER = ".complete";
+
+    private JarCorpus() {
+    }
+
+    /**
+     * @return the directory where corpora and other benchmark files are kept
+     */
+    public static File rootDirectory() {
+        String root = System.getProperty( "osgirun.benchmark.corpus" );
+        return root != null ? new File( root ) : new File( System.getProperty( "java.io.tmpdir" ), "osgi-run-jmh" );
+    }
+
+    /**
+     * Get a corpus with the given number of jars, generating it if necessary.
+     * <p>
+     * Six in ten jars are bundles, three are non-bundles and one is a fragment. Most jars are small, some are
+     * medium-sized and a few are large.
+     *
+     * @param jarCount number of jars in the corpus
+     * @return all jars of the corpus, sorted by name
+     */
+    public static synchronized List<File> corpus( int jarCount ) throws IOException {
+        File dir = new File( rootDirectory(), "jars-" + jarCount );
+        if ( !new File( dir, COMPLETE_MARKER ).isFile() ) {
+            deleteDir( dir );
+            if ( !dir.mkdirs() ) {
+                throw new IOException( "Cannot create directory " + dir );
+            }
+            Random random = new Random( jarCount );
+            for ( int i = 0; i < jarCount; i++ ) {
+                double sizeChoice = random.nextDouble();
+                Size size = sizeChoice < 0.7 ? Size.SMALL : sizeChoice < 0.99 ? Size.MEDIUM : Size.LARGE;
+                int kind = i % 10;
+                if ( kind < 6 ) {
+                    jar( dir, Kind.BUNDLE, size, i, random );
+                } else if ( kind < 9 ) {
+                    jar( dir, Kind.NON_BUNDLE, size, i, random );
+                } else {
+                    jar( dir, Kind.FRAGMENT, size, i, random );
+                }
+            }
+            Files.write( new File( dir, COMPLETE_MARKER ).toPath(), new byte[ 0 ] );
+        }
+        return jarsIn( dir );
+    }
+
+    /**
+     * Write a single jar.
+     *
+     * @param dir directory to write the jar into
+     * @param kind of jar
+     * @param size of jar
+     * @param index unique index of the jar, used in its name and packages
+     * @param random source of the contents of the jar
+     * @return the jar
+     */
+    public static File jar( File dir, Kind kind, Size size, int index, Random random ) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        String pkg = "com.example.p" + index;
+        String fileName;
+
+        switch ( kind ) {
+            case BUNDLE:
+                fileName = "bundle-" + index + "-1." + ( index % 10 ) + ".jar";
+                attributes.putValue( "Bundle-ManifestVersion", "2" );
+                attributes.putValue( "Bundle-SymbolicName", "com.example.bundle" + index );
+                attributes.putValue( "Bundle-Version", "1." + ( index % 10 ) + ".0" );
+                attributes.putValue( "Export-Package", pkg + ";version=\"1.0.0\"" );
+                attributes.putValue( "Import-Package", index > 0 ?
+                        "com.example.p" + ( index - 1 ) + ";version=\"[1,2)\",org.osgi.framework" :
+                        "org.osgi.framework" );
+                break;
+            case FRAGMENT:
+                fileName = "fragment-" + index + "-1.0.jar";
+                attributes.putValue( "Bundle-ManifestVersion", "2" );
+                attributes.putValue( "Bundle-SymbolicName", "com.example.fragment" + index );
+                attributes.putValue( "Bundle-Version", "1.0.0" );
+                attributes.putValue( "Fragment-Host", "com.example.bundle" + Math.max( 0, index - 4 ) );
+                break;
+            default:
+                fileName = "lib-" + index + "-2.3." + ( index % 7 ) + ".jar";
+                if ( index % 2 == 0 ) {
+                    attributes.putValue( "Implementation-Title", "lib" + index );
+                    attributes.putValue( "Implementation-Version", "2.3." + ( index % 7 ) );
+                }
+        }
+
+        File jar = new File( dir, fileName );
+        try ( JarOutputStream output = new JarOutputStream( new FileOutputStream( jar ), manifest ) ) {
+            if ( kind == Kind.NON_BUNDLE ) {
+                output.putNextEntry( new ZipEntry( "META-INF/maven/com.example/lib" + index + "/pom.properties" ) );
+                output.write( ( "groupId=com.example\nartifactId=lib" + index + "\nversion=2.3." + ( index % 7 ) + "\n" )
+                        .getBytes( "UTF-8" ) );
+            }
+            byte[] contents = new byte[ size.entrySize ];
+            for ( int i = 0; i < size.entries; i++ ) {
+                String path = pkg.replace( '.', '/' ) + ( i % 3 == 0 ? "/impl/" : "/" ) + "Class" + i + ".class";
+                output.putNextEntry( new ZipEntry( path ) );
+                // letters compress about as well as real class files
+                for ( int b = 0; b < contents.length; b++ ) {
+                    contents[ b ] = ( byte ) ( 'a' + random.nextInt( 26 ) );
+                }
+                output.write( contents );
+            }
+        }
+        return jar;
+    }
+
+    /**
+     * Link or copy the given jars into a directory, replacing its contents.
+     *
+     * @param jars to link
+     * @param dir destination directory
+     */
+    public static void linkInto( List<File> jars, File dir ) throws IOException {
+        deleteDir( dir );
+        if ( !dir.mkdirs() ) {
+            throw new IOException( "Cannot create directory " + dir );
+        }
+        for ( File jar : jars ) {
+            File link = new File( dir, jar.getName() );
+            try {
+                Files.createLink( link.toPath(), jar.toPath() );
+            } catch ( IOException | UnsupportedOperationException e ) {
+                Files.copy( jar.toPath(), link.toPath() );
+            }
+        }
+    }
+
+    static List<File> jarsIn( File dir ) {
+        File[] files = dir.listFiles( ( d, name ) -> name.endsWith( ".jar" ) );
+        List<File> result = files == null ? new ArrayList<>() : new ArrayList<>( Arrays.asList( files ) );
+        result.sort( null );
+        return result;
+    }
+
+    static void deleteDir( File dir ) {
+        File[] files = dir.listFiles();
+        if ( files != null ) {
+            for ( File file : files ) {
+                if ( file.isDirectory() ) {
+                    deleteDir( file );
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.athaydes.gradle.osgi.benchmark;
+
+import aQute.bnd.osgi.Jar;
+import com.athaydes.gradle.osgi.util.BundleMetadata;
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex;
+import com.athaydes.gradle.osgi.util.JarUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inspection of every jar of a corpus, as done when the bundles directory is created.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class JarInspectionBenchmark {
+
+    @Param( { "100", "1000", "10000" } )
+    public int jarCount;
+
+    private List<File> jars;
+
+    @Setup
+    public void setup() throws Exception {
+        jars = JarCorpus.corpus( jarCount );
+    }
+
+    @Benchmark
+    public void notBundle( Blackhole blackhole ) {
+        for ( File jar : jars ) {
+            blackhole.consume( JarUtils.notBundle( jar ) );
+        }
+    }
+
+    @Benchmark
+    public void isFragment( Blackhole blackhole ) {
+        for ( File jar : jars ) {
+            blackhole.consume( JarUtils.isFragment( jar ) );
+        }
+    }
+
+    @Benchmark
+    public void versionOf( Blackhole blackhole ) throws Exception {
+        for ( File jar : jars ) {
+            try ( Jar bndJar = new Jar( jar ) ) {
+                blackhole.consume( JarUtils.versionOf( bndJar ) );
+            }
+        }
+    }
+
+    /**
+     * Reads all the metadata the plugin needs from each jar in a single pass, which replaces the checks above.
+     */
+    @Benchmark
+    public void readMetadata( Blackhole blackhole ) {
+        BundleMetadataIndex index = BundleMetadataIndex.load( new File( JarCorpus.rootDirectory(), "none.idx" ) );
+        for ( File jar : jars ) {
+            BundleMetadata metadata = index.get( jar );
+            blackhole.consume( metadata );
+        }
+    }
+
+}
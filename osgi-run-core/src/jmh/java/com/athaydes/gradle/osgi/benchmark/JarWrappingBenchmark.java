@@ -0,0 +1,105 @@
+package com.athaydes.gradle.osgi.benchmark;
+
+import com.athaydes.gradle.osgi.WrapInstructionsConfig;
+import com.athaydes.gradle.osgi.bnd.BndWrapper;
+import com.athaydes.gradle.osgi.util.JarUtils;
+import groovy.lang.Closure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Processing of a single jar of each size, which is done for each jar which is not a bundle.
+ * <p>
+ * Unlike the other benchmarks, these do not run over a whole corpus: wrapping 10,000 jars would take minutes
+ * per invocation, and each jar is wrapped independently anyway.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class JarWrappingBenchmark {
+
+    @Param( { "SMALL", "MEDIUM", "LARGE" } )
+    public JarCorpus.Size size;
+
+    private File nonBundle;
+    private File outputDir;
+    private File copy;
+    private WrapInstructionsConfig wrapInstructions;
+
+    /**
+     * Copies each entry of the jar, re-compressing it, which is how jars were rewritten before
+     * {@link JarUtils#rewriteJar} was introduced.
+     */
+    private static final Closure<Void> COPY_ENTRY = new Closure<Void>( null ) {
+        @SuppressWarnings( "unused" )
+        public Void doCall( ZipFile input, ZipOutputStream output, ZipEntry entry ) throws IOException {
+            output.putNextEntry( new ZipEntry( entry.getName() ) );
+            try ( InputStream stream = input.getInputStream( entry ) ) {
+                byte[] buffer = new byte[ 8192 ];
+                int read;
+                while ( ( read = stream.read( buffer ) ) > 0 ) {
+                    output.write( buffer, 0, read );
+                }
+            }
+            return null;
+        }
+    };
+
+    @Setup
+    public void setup() throws Exception {
+        File dir = new File( JarCorpus.rootDirectory(), "wrapping-" + size );
+        JarCorpus.deleteDir( dir );
+        outputDir = new File( dir, "bundles" );
+        if ( !outputDir.mkdirs() ) {
+            throw new IOException( "Cannot create directory " + outputDir );
+        }
+        nonBundle = JarCorpus.jar( dir, JarCorpus.Kind.NON_BUNDLE, size, 1, new Random( 1 ) );
+        copy = new File( dir, "copy.jar" );
+
+        wrapInstructions = new WrapInstructionsConfig();
+        wrapInstructions.setUseCache( false );
+    }
+
+    @Benchmark
+    public File wrapNonBundle() {
+        BndWrapper.wrapNonBundle( nonBundle, outputDir, wrapInstructions );
+        return outputDir;
+    }
+
+    @Benchmark
+    public File copyJar() {
+        JarUtils.copyJar( nonBundle, copy, COPY_ENTRY );
+        return copy;
+    }
+
+    @Benchmark
+    public File rewriteJar() {
+        JarUtils.rewriteJar( nonBundle, copy, Collections.singletonMap( "META-INF/MANIFEST.MF",
+                "Manifest-Version: 1.0\r\nBundle-SymbolicName: lib\r\n\r\n".getBytes( StandardCharsets.UTF_8 ) ) );
+        return copy;
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.bnd.WrappedBundleCache
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import com.athaydes.gradle.osgi.util.FileMaterializer
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.Internal
+
+/**
+ * Base class of the tasks which create, run and inspect the OSGi runtime.
+ *
+ * These tasks never access the project while they run, as required by Gradle's configuration cache. Everything they
+ * need is configured by {@link OsgiRunPlugin} as lazy properties, which are only evaluated once the build script
+ * has been evaluated (or when the configuration cache entry is stored).
+ *
+ * Gradle runs tasks through generated subclasses, so methods of the tasks which are called from closures
+ * must not be private.
+ */
+abstract class AbstractOsgiRuntimeTask extends DefaultTask {
+
+    /**
+     * @return a copy of the runOsgi extension, made after the build script has been evaluated
+     * (see {@link OsgiConfig#forExecution(java.io.File)})
+     */
+    @Internal
+    abstract Property<OsgiConfig> getRuntimeConfig()
+
+    /**
+     * @return a copy of the wrapInstructions block of the runOsgi extension
+     */
+    @Internal
+    abstract Property<WrapInstructionsConfig> getWrapInstructions()
+
+    /**
+     * @return the directory of the OSGi runtime
+     */
+    @Internal
+    abstract DirectoryProperty getTargetDir()
+
+    /**
+     * @return the files of the osgiMain configuration
+     */
+    @Internal
+    abstract ConfigurableFileCollection getMainJars()
+
+    /**
+     * @return the file where the metadata of all jars is kept between builds
+     */
+    @Internal
+    abstract RegularFileProperty getMetadataIndexFile()
+
+    /**
+     * @return the directory of the wrapped bundles cache, shared by all builds
+     */
+    @Internal
+    abstract DirectoryProperty getWrappedBundleCacheDir()
+
+    /**
+     * @return the root directory of the build, whose files are always copied into the OSGi runtime, never linked
+     */
+    @Internal
+    abstract DirectoryProperty getRootDir()
+
+    @Internal
+    OsgiConfig getOsgiConfig() {
+        runtimeConfig.get()
+    }
+
+    @Internal
+    String getTarget() {
+        targetDir.get().asFile.absolutePath
+    }
+
+    protected BundleMetadataIndex loadMetadataIndex() {
+        BundleMetadataIndex.load( metadataIndexFile.get().asFile )
+    }
+
+    protected FileMaterializer createMaterializer( OsgiConfig osgiConfig, File storeDir = null ) {
+        new FileMaterializer( osgiConfig.materialization, rootDir.get().asFile, storeDir )
+    }
+
+    /**
+     * @return the wrapped bundles cache, or null if the cache is disabled
+     */
+    protected WrappedBundleCache createWrappedBundleCache( WrapInstructionsConfig wrapInstructions ) {
+        wrapInstructions.useCache ? new WrappedBundleCache( wrappedBundleCacheDir.get().asFile,
+                wrapInstructions.cacheMaxSizeMb * 1024 * 1024 ) : null
+    }
+
+}
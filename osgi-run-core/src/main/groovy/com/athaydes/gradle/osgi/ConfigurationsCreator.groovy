@@ -15,20 +15,31 @@ class ConfigurationsCreator {
 
     static final String OSGI_DEP_PREFIX = '__osgiRuntime__'
 
+    /**
+     * @return the prefix of the names of the configurations created for each bundle declaration of the runtime
+     */
+    static String prefixOf( OsgiConfig osgiConfig ) {
+        osgiConfig instanceof NamedOsgiConfig ? "__osgiRuntime-${osgiConfig.name}__" : OSGI_DEP_PREFIX
+    }
+
+    /**
+     * @return the bundles of the runtime. The osgiRuntime configuration only applies to the default runtime.
+     */
     static List allRuntimeDependencies( Project project, OsgiConfig osgiConfig ) {
-        ( osgiConfig.bundles as List ).flatten() +
-                project.configurations.osgiRuntime.allDependencies.asList()
+        ( osgiConfig.bundles as List ).flatten() + ( osgiConfig instanceof NamedOsgiConfig ? [ ] :
+                project.configurations.osgiRuntime.allDependencies.asList() )
     }
 
     static void configBundles( Project project, OsgiConfig osgiConfig ) {
         def allBundles = allRuntimeDependencies( project, osgiConfig )
+        def prefix = prefixOf( osgiConfig )
 
         log.debug( "Creating individual configurations for each OSGi runtime dependency:\n{}", allBundles )
 
         project.configurations { c ->
             // create individual configurations for each dependency so that version conflicts need not be resolved
             allBundles.size().times { int i -> //noinspection UnnecessaryQualifiedReference
-                c.create( ConfigurationsCreator.OSGI_DEP_PREFIX + i )
+                c.create( prefix + i )
             }
         }
 
@@ -96,7 +107,7 @@ class ConfigurationsCreator {
                     depConfig = { -> }
             }
 
-            project.dependencies.add( OSGI_DEP_PREFIX + i, bundle, depConfig )
+            project.dependencies.add( prefix + i, bundle, depConfig )
         }
 
     }
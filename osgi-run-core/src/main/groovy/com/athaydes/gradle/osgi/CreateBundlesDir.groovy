@@ -1,122 +1,382 @@
 package com.athaydes.gradle.osgi
 
 import com.athaydes.gradle.osgi.bnd.BndWrapper
-import com.athaydes.gradle.osgi.util.JarUtils
-import org.gradle.api.DefaultTask
-import org.gradle.api.Project
-import org.gradle.api.file.FileTreeElement
+import com.athaydes.gradle.osgi.bnd.BundleConsolidator
+import com.athaydes.gradle.osgi.bnd.WrappedBundleCache
+import com.athaydes.gradle.osgi.util.BuildMetrics
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import com.athaydes.gradle.osgi.util.FileMaterializer
+import com.athaydes.gradle.osgi.util.ParallelExecutor
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.file.FileType
+import org.gradle.api.file.RegularFileProperty
 import org.gradle.api.logging.Logger
 import org.gradle.api.logging.Logging
-import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.Optional
 import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
 import org.gradle.api.tasks.TaskAction
-import org.gradle.api.tasks.bundling.Jar
+import org.gradle.work.ChangeType
+import org.gradle.work.Incremental
+import org.gradle.work.InputChanges
 
-import static com.athaydes.gradle.osgi.OsgiRunPlugin.WRAP_EXTENSION
+import java.util.concurrent.ConcurrentLinkedQueue
 
 /**
  * The createBundlesDir task.
+ *
+ * This task is incremental: only the artifacts which were added, modified or removed since the
+ * last run are processed, unless any other input changes.
+ *
+ * The bundles directory may be loaded from the build cache, unless bundles are linked into it rather than copied.
+ *
+ * The bundles of named runtimes are taken from the bundle store instead, where the createBundleStore task (another
+ * instance of this task) processes the artifacts of all named runtimes only once.
  */
-class CreateBundlesDir extends DefaultTask {
+@CacheableTask
+abstract class CreateBundlesDir extends AbstractOsgiRuntimeTask {
 
     static final Logger log = Logging.getLogger( CreateBundlesDir )
 
-    @InputFile
-    File getBuildFile() {
-        log.debug( "Adding project build file to createBundlesDir task inputs: {}", project.buildFile )
-        project.buildFile
+    CreateBundlesDir() {
+        outputs.cacheIf( 'all bundles are copied into the bundles directory' ) {
+            ( it as CreateBundlesDir ).materialization == 'copy'
+        }
     }
 
+    /**
+     * The resolved OSGi runtime, shared with the createOsgiRuntime task.
+     */
+    @Internal
+    OsgiRuntimeModel runtimeModel
+
+    /**
+     * @return all artifacts of all OSGi runtime configurations, including the ones which will be excluded
+     */
+    @Incremental
     @InputFiles
-    Set<File> getAllFileInputsFromProjectDependencies() {
-        def osgiConfig = project.extensions.getByName( 'runOsgi' ) as OsgiConfig
+    @PathSensitive( PathSensitivity.NAME_ONLY )
+    abstract ConfigurableFileCollection getBundleArtifacts()
 
-        def allProjectDeps = ConfigurationsCreator.allRuntimeDependencies( project, osgiConfig ).findAll {
-            it instanceof Project
-        } as List<Project>
+    /**
+     * @return the bundle store to take the bundles from, if any
+     */
+    @Internal
+    abstract DirectoryProperty getBundleStoreDir()
 
-        log.debug "Adding build file and jars of the following projects to the inputs of the " +
-                "createBundlesDir task: {}", allProjectDeps*.name
+    /**
+     * @return the bundles in the bundle store, which change whenever the artifacts they come from change
+     */
+    @Incremental
+    @InputFiles
+    @PathSensitive( PathSensitivity.NAME_ONLY )
+    abstract ConfigurableFileCollection getStoredBundles()
 
-        Set<File> projectDependencies = [ ]
+    @Input
+    List<String> getExcludedBundles() {
+        osgiConfig.excludedBundles.collect { it.toString() }
+    }
 
-        ( allProjectDeps + project ).collectMany { dep ->
-            dep.tasks.withType( Jar ) { Jar jar ->
-                // we need to run the jar task if the build file changes
-                if ( dep.buildFile ) projectDependencies += dep.buildFile
-                // run our task if the jar of any dependency changes
-                projectDependencies += jar.outputs.files
-            }
-        }
+    @Input
+    List<String> getSystemLibNames() {
+        runtimeModel.systemLibFiles.collect { it.name }.sort()
+    }
+
+    @Input
+    String getMaterialization() {
+        osgiConfig.materialization
+    }
 
-        return projectDependencies
+    @Input
+    String getBundleConsolidation() {
+        osgiConfig.bundleConsolidation
+    }
+
+    /**
+     * @return the file the consolidation report is written to, if bundles are consolidated
+     */
+    @OutputFile
+    @Optional
+    abstract RegularFileProperty getConsolidationReportFile()
+
+    @Input
+    String getWrapInstructionsDescription() {
+        wrapInstructions.get().description
     }
 
     @OutputDirectory
     File getOutputDir() {
-        def osgiConfig = project.extensions.getByName( 'runOsgi' ) as OsgiConfig
-        project.file( CreateOsgiRuntimeTask.getTarget( project, osgiConfig ) )
+        new File( target, osgiConfig.bundlesPath )
     }
 
     @TaskAction
-    void createOsgiRuntime() {
-        def osgiConfig = project.extensions.getByName( 'runOsgi' ) as OsgiConfig
-
-        String target = CreateOsgiRuntimeTask.getTarget( project, osgiConfig )
-
-        copyBundles( project, osgiConfig, target )
+    void createOsgiRuntime( InputChanges inputChanges ) {
+        copyBundles( osgiConfig, inputChanges )
     }
 
-    private void copyBundles( Project project, OsgiConfig osgiConfig, String target ) {
-        def bundlesDir = "${target}/${osgiConfig.bundlesPath}"
+    private void copyBundles( OsgiConfig osgiConfig, InputChanges inputChanges ) {
+        def bundlesDir = outputDir
 
         log.info( "Copying OSGi bundles to {}", bundlesDir )
 
-        def wrapInstructions = osgiConfig[ WRAP_EXTENSION ] as WrapInstructionsConfig
+        def metrics = new BuildMetrics( name )
 
-        def nonBundles = [ ] as Set
-        //noinspection GroovyAssignabilityCheck
-        def allDeps = project.configurations.findAll { it.name.startsWith( ConfigurationsCreator.OSGI_DEP_PREFIX ) }
+        def wrapInstructions = getWrapInstructions().get()
 
-        def systemLibs = project.configurations.systemLib.resolvedConfiguration
-                .resolvedArtifacts.collect { it.file.name } as Set
+        def metadataIndex = metrics.time( 'loadIndex' ) { loadMetadataIndex() }
 
-        project.copy {
-            from allDeps
-            into bundlesDir
-            exclude { FileTreeElement element ->
-                def inSystemLibs = element.file.name in systemLibs
-                def explicityExcluded = osgiConfig.excludedBundles.any { element.name ==~ it }
-                if ( inSystemLibs || explicityExcluded ) {
-                    def reason = ( inSystemLibs && explicityExcluded ) ?
-                            'both explicitly excluded and in system libs' : ( inSystemLibs ?
-                            'in system libs' : 'explicitly excluded' )
-                    log.info( 'Excluding bundle from bundles directory ({}): {}', reason, element.name )
-                    return true
+        def systemLibs = systemLibNames as Set
+
+        // configurations must be resolved by Gradle's own thread, only the processing of each artifact can be parallel
+        def filesByDeclaration = runtimeModel.filesByDeclaration
+
+        // the configurations are resolved while Gradle checks whether this task is up-to-date
+        metrics.addTime( 'resolution', runtimeModel.resolutionMillis * 1_000_000L )
+
+        def artifactByName = metrics.time( 'selection' ) {
+            selectArtifacts( filesByDeclaration, systemLibs, osgiConfig.excludedBundles as List )
+        }
+        metrics.increment( 'artifacts', artifactByName.size() )
+
+        Collection<File> restored = metrics.time( 'consolidation' ) {
+            consolidate( artifactByName, bundlesDir, osgiConfig.bundleConsolidation, metadataIndex, metrics )
+        }
+
+        def artifacts = metrics.time( 'selection' ) {
+            ( artifactsToProcess( inputChanges, artifactByName, bundlesDir ) + restored ) as Set<File>
+        }
+
+        log.info( 'Processing {} of {} artifacts', artifacts.size(), metrics.counter( 'artifacts' ) )
+        metrics.increment( 'artifactsProcessed', artifacts.size() )
+
+        def storeDir = bundleStoreDir.present ? bundleStoreDir.get().asFile : null
+
+        def wrappedBundleCache = storeDir ? null : createWrappedBundleCache( wrapInstructions )
+
+        def materializer = createMaterializer( osgiConfig, storeDir )
+
+        def nonBundles = new ConcurrentLinkedQueue<String>()
+
+        metrics.time( 'processing' ) {
+            ParallelExecutor.forEach( artifacts, osgiConfig.parallelism, 'osgi-run-bundles' ) { File file ->
+                def ok = storeDir ?
+                        materializeFromStore( file, storeDir, bundlesDir, metadataIndex, materializer, metrics ) :
+                        processArtifact( file, bundlesDir, metadataIndex, wrapInstructions,
+                                wrappedBundleCache, materializer, metrics )
+                if ( !ok ) {
+                    nonBundles << file.name
                 }
-                def nonBundle = JarUtils.notBundle( element.file )
-                if ( nonBundle ) nonBundles << element.file
-                return nonBundle
             }
         }
 
-        if ( wrapInstructions.enabled ) {
-            nonBundles.each { File file ->
-                if ( JarUtils.hasManifest( file ) ) {
-                    try {
-                        BndWrapper.wrapNonBundle( file, bundlesDir, wrapInstructions )
-                    } catch ( e ) {
-                        log.warn( "Unable to wrap ${file.name}", e )
+        if ( nonBundles ) {
+            log.info "The following jars were kept out of the classpath " +
+                    "as they are not bundles (enable wrapping if they are needed): {}", nonBundles
+        }
+
+        if ( wrappedBundleCache ) {
+            metrics.increment( 'wrapCacheHits', wrappedBundleCache.hits )
+            metrics.increment( 'wrapCacheMisses', wrappedBundleCache.misses )
+            metrics.time( 'cacheEviction' ) { wrappedBundleCache.evictAndLogStatistics() }
+        }
+
+        metrics.time( 'saveIndex' ) { metadataIndex.save() }
+        metrics.report( target as File )
+    }
+
+    /**
+     * Copy an artifact into the bundles directory, wrapping it into a bundle if necessary.
+     *
+     * @return false if the artifact is not a bundle and wrapping is disabled, true otherwise
+     */
+    static boolean processArtifact( File file, File bundlesDir, BundleMetadataIndex metadataIndex,
+                                    WrapInstructionsConfig wrapInstructions, WrappedBundleCache wrappedBundleCache,
+                                    FileMaterializer materializer, BuildMetrics metrics = BuildMetrics.NONE ) {
+        def metadata = metrics.time( 'metadata' ) { metadataIndex.get( file ) }
+        def bundle = new File( bundlesDir, file.name )
+
+        // the bundle may be a link, so it must be removed rather than overwritten by wrapped bundles
+        bundle.delete()
+
+        if ( metadata.bundle ) {
+            def copied = metrics.time( 'copy' ) { materializer.materialize( file, bundle ) }
+            if ( copied ) {
+                metrics.increment( 'bundlesCopied' )
+                metrics.increment( 'bytesCopied', file.length() )
+            } else {
+                metrics.increment( 'bundlesLinked' )
+            }
+
+            // the copied bundle has the same contents as the original, so there's no need to hash it again
+            metadataIndex.registerCopy( bundle, metadata.hash )
+        } else if ( wrapInstructions.enabled ) {
+            if ( metadata.hasManifest ) {
+                try {
+                    metrics.time( 'wrap' ) {
+                        BndWrapper.wrapNonBundle( file, bundlesDir, wrapInstructions, metadata, wrappedBundleCache )
                     }
+                    metrics.increment( 'jarsWrapped' )
+                    metrics.increment( 'bytesWrapped', file.length() )
+                } catch ( GroovyRuntimeException e ) {
+                    // errors in the plugin itself must not be mistaken for jars which cannot be wrapped
+                    throw e
+                } catch ( Exception e ) {
+                    metrics.increment( 'wrapFailures' )
+                    log.warn( "Unable to wrap ${file.name}", e )
+                }
+            } else {
+                log.warn( 'Jar without manifest found, unable to wrap it into a bundle: {}', file.name )
+            }
+        } else {
+            metrics.increment( 'nonBundlesSkipped' )
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Materialize the bundle which the createBundleStore task processed from an artifact into the bundles directory.
+     *
+     * @return false if the store has no bundle for the artifact, as it is not a bundle and wrapping is disabled
+     * (or wrapping it failed), true otherwise
+     */
+    static boolean materializeFromStore( File file, File storeDir, File bundlesDir, BundleMetadataIndex metadataIndex,
+                                         FileMaterializer materializer, BuildMetrics metrics = BuildMetrics.NONE ) {
+        def stored = new File( storeDir, file.name )
+        def bundle = new File( bundlesDir, file.name )
+
+        if ( !stored.file ) {
+            bundle.delete()
+            metrics.increment( 'nonBundlesSkipped' )
+            return false
+        }
+
+        def hash = metrics.time( 'metadata' ) { metadataIndex.get( stored ).hash }
+        def copied = metrics.time( 'copy' ) { materializer.materialize( stored, bundle ) }
+        if ( copied ) {
+            metrics.increment( 'bundlesCopied' )
+            metrics.increment( 'bytesCopied', stored.length() )
+        } else {
+            metrics.increment( 'bundlesLinked' )
+        }
+        metadataIndex.registerCopy( bundle, hash )
+        return true
+    }
+
+    /**
+     * Remove the redundant artifacts from the given artifacts (see {@link BundleConsolidator}), deleting their bundles
+     * from the bundles directory, and write the consolidation report.
+     *
+     * @return the artifacts which were removed by a previous consolidation, but are now needed
+     */
+    Collection<File> consolidate( Map<String, File> artifactByName, File bundlesDir, String mode,
+                                  BundleMetadataIndex metadataIndex, BuildMetrics metrics ) {
+        def reportFile = consolidationReportFile.present ? consolidationReportFile.get().asFile : null
+        if ( mode == BundleConsolidator.NONE ) {
+            reportFile?.delete()
+            return [ ]
+        }
+
+        def report = new BundleConsolidator( metadataIndex ).consolidate( artifactByName.values().toList(), mode )
+        report.removed.keySet().each { String name ->
+            artifactByName.remove( name )
+            new File( bundlesDir, name ).delete()
+        }
+        metrics.increment( 'artifactsConsolidated', report.removed.size() )
+
+        if ( reportFile ) {
+            reportFile.parentFile.mkdirs()
+            reportFile.write( report.toString(), 'UTF-8' )
+        }
+        if ( report.removed ) {
+            log.lifecycle( report.toString() )
+        } else {
+            log.info( report.toString() )
+        }
+
+        // bundles are only missing if they were removed before, or if they could not be wrapped
+        artifactByName.values().findAll { File file ->
+            def metadata = metadataIndex.get( file )
+            ( metadata.bundle || metadata.hasManifest ) && !new File( bundlesDir, file.name ).exists()
+        }
+    }
+
+    /**
+     * Find out which artifacts need to be processed, deleting from the bundles directory the
+     * bundles whose artifacts have been removed.
+     */
+    Collection<File> artifactsToProcess( InputChanges inputChanges,
+                                         Map<String, File> artifactByName,
+                                         File bundlesDir ) {
+        bundlesDir.mkdirs()
+
+        if ( !inputChanges.incremental ) {
+            log.info( 'Full rebuild of the bundles directory is required' )
+            // only delete jars as the bundles directory might be shared with other files
+            bundlesDir.listFiles()?.findAll { it.file && it.name.endsWith( '.jar' ) }*.delete()
+            return artifactByName.values()
+        }
+
+        Set<File> artifacts = [ ]
+        inputChanges.getFileChanges( bundleArtifacts ).each { change ->
+            if ( change.fileType == FileType.DIRECTORY ) return
+            def name = change.file.name
+            def currentArtifact = artifactByName[ name ]
+            if ( change.changeType == ChangeType.REMOVED ) {
+                if ( currentArtifact ) {
+                    // another artifact with the same name still exists
+                    artifacts << currentArtifact
                 } else {
-                    log.warn( 'Jar without manifest found, unable to wrap it into a bundle: {}', file.name )
+                    log.info( 'Removing bundle from bundles directory: {}', name )
+                    new File( bundlesDir, name ).delete()
+                }
+            } else if ( currentArtifact == change.file ) {
+                artifacts << currentArtifact
+            }
+        }
+        if ( bundleStoreDir.present ) {
+            inputChanges.getFileChanges( storedBundles ).each { change ->
+                def currentArtifact = artifactByName[ change.file.name ]
+                if ( change.fileType != FileType.DIRECTORY && currentArtifact ) {
+                    artifacts << currentArtifact
+                }
+            }
+        }
+        return artifacts
+    }
+
+    /**
+     * Select the artifacts which should be processed into the bundles directory.
+     *
+     * If more than one artifact has the same name, the last one is used.
+     */
+    static Map<String, File> selectArtifacts( List<Set<File>> artifactsByConfiguration,
+                                              Set<String> systemLibs,
+                                              List excludedBundles ) {
+        Map<String, File> artifactByName = [ : ]
+        artifactsByConfiguration.each { Set<File> files ->
+            files.each { File file ->
+                def inSystemLibs = file.name in systemLibs
+                def explicityExcluded = excludedBundles.any { file.name ==~ it }
+                if ( inSystemLibs || explicityExcluded ) {
+                    def reason = ( inSystemLibs && explicityExcluded ) ?
+                            'both explicitly excluded and in system libs' : ( inSystemLibs ?
+                            'in system libs' : 'explicitly excluded' )
+                    log.info( 'Excluding bundle from bundles directory ({}): {}', reason, file.name )
+                } else {
+                    artifactByName.remove( file.name )
+                    artifactByName[ file.name ] = file
                 }
             }
-        } else if ( nonBundles ) {
-            log.info "The following jars were kept out of the classpath " +
-                    "as they are not bundles (enable wrapping if they are needed): {}", nonBundles
         }
+        artifactByName
     }
 
 }
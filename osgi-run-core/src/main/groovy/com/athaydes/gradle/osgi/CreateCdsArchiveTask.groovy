@@ -0,0 +1,174 @@
+package com.athaydes.gradle.osgi
+
+import org.gradle.api.GradleException
+import org.gradle.api.file.FileCollection
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+import org.gradle.api.model.ObjectFactory
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+import javax.inject.Inject
+import java.util.concurrent.TimeUnit
+
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.CDS_ARCHIVE
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.createJavaRunArgs
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.deleteCdsArchive
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.getConfigFile
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.getSystemLibs
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.selectMainClass
+
+/**
+ * The createOsgiCdsArchive task.
+ *
+ * Runs the OSGi runtime once to find out which classes are loaded during startup, then creates a
+ * Class Data Sharing archive with those classes in the runtime directory.
+ * The run scripts and the runOsgi task use the archive whenever it exists. The createOsgiRuntime task deletes the
+ * archive whenever it changes the runtime, so this task must then run again.
+ */
+abstract class CreateCdsArchiveTask extends AbstractOsgiRuntimeTask {
+
+    static final Logger log = Logging.getLogger( CreateCdsArchiveTask )
+    static final String CLASS_LIST = 'osgi-run.classlist'
+
+    @Inject
+    abstract ObjectFactory getObjects()
+
+    /**
+     * @return all jars of the OSGi runtime and the framework configuration, as any of them may change
+     * which classes are loaded. Framework storage areas are written by the training run itself, so are not included.
+     */
+    @InputFiles
+    @PathSensitive( PathSensitivity.RELATIVE )
+    FileCollection getRuntimeFiles() {
+        def configFile = getConfigFile( target, osgiConfig )
+        objects.fileTree().from( target )
+                .include( '**/*.jar' )
+                .exclude( 'felix-cache/**', 'fwdir/**',
+                        "${configFile?.parentFile?.name ?: 'configuration'}/org.eclipse.*/**".toString() ) +
+                objects.fileCollection().from( configFile ?: [ ] )
+    }
+
+    @Input
+    String getJavaArgs() {
+        osgiConfig.javaArgs
+    }
+
+    /**
+     * @return the identity of the JDK used to run the OSGi runtime, as archives only work with the JDK
+     * that created them
+     */
+    @Input
+    String getJdkIdentity() {
+        def javaCmd = RunOsgiTask.javaCmd()
+        def release = new File( new File( javaCmd ).absoluteFile.parentFile.parentFile, 'release' )
+        "${javaCmd}\n${release.exists() ? release.text : javaVersionOutput( javaCmd )}"
+    }
+
+    @OutputFile
+    File getArchive() {
+        new File( target, CDS_ARCHIVE )
+    }
+
+    @TaskAction
+    void createArchive() {
+        def javaCmd = RunOsgiTask.javaCmd()
+        int javaVersion = javaMajorVersion( javaVersionOutput( javaCmd ) )
+        if ( javaVersion < 10 ) {
+            throw new GradleException( "Application Class Data Sharing requires Java 10 or newer, " +
+                    "but $javaCmd is Java $javaVersion" )
+        }
+
+        def archive = getArchive()
+        deleteCdsArchive( target )
+
+        def metadataIndex = loadMetadataIndex()
+        def mainClass = selectMainClass( mainJars.files, getSystemLibs( target ), metadataIndex )
+        metadataIndex.save()
+
+        def runArgs = createJavaRunArgs( target, osgiConfig, mainClass, File.pathSeparator )
+
+        if ( javaVersion >= 13 ) {
+            // dynamic archives also include classes loaded by custom class loaders, where the JDK supports it
+            train( "${javaCmd} -XX:ArchiveClassesAtExit=${CDS_ARCHIVE} ${stopOnSettle()} ${runArgs}" )
+        } else {
+            train( "${javaCmd} -XX:DumpLoadedClassList=${CLASS_LIST} ${stopOnSettle()} ${runArgs}" )
+            def appCds = javaVersion == 10 ? '-XX:+UseAppCDS' : ''
+            def classPath = runArgs.find( /-cp\s+\S+/ ) ?: ''
+            run( "${javaCmd} -Xshare:dump ${appCds} -XX:SharedClassListFile=${CLASS_LIST} " +
+                    "-XX:SharedArchiveFile=${CDS_ARCHIVE} ${classPath}", TimeUnit.MINUTES.toSeconds( 5 ) )
+        }
+
+        if ( !archive.exists() ) {
+            throw new GradleException( "The CDS archive was not created, run with --info for details" )
+        }
+
+        log.info( 'Created CDS archive {} ({} KB)', archive, archive.length().intdiv( 1024 ) )
+    }
+
+    private void train( String command ) {
+        if ( !osgiConfig.profileStartup ) {
+            log.lifecycle( 'Training run will be stopped after {} seconds. ' +
+                    'Enable runOsgi.profileStartup to stop it as soon as the runtime has started.',
+                    osgiConfig.cdsTrainingSeconds )
+        }
+        run( command, osgiConfig.cdsTrainingSeconds )
+    }
+
+    private void run( String command, long timeoutSeconds ) {
+        log.info( 'Running command: {}', command )
+        def process = command.execute( ( List ) null, target as File )
+
+        // the process must not wait for user input
+        process.outputStream.close()
+        process.consumeProcessOutput( new LogOutputStream(), new LogOutputStream() )
+
+        if ( !process.waitFor( timeoutSeconds, TimeUnit.SECONDS ) ) {
+            // terminating (rather than killing) the JVM still lets it write the archive on exit
+            process.destroy()
+            if ( !process.waitFor( 2, TimeUnit.MINUTES ) ) {
+                process.destroyForcibly()
+                throw new GradleException( "Process did not terminate: $command" )
+            }
+        }
+    }
+
+    private String stopOnSettle() {
+        osgiConfig.profileStartup ? '-Dosgirun.profiler.stopOnSettle=true' : ''
+    }
+
+    private static String javaVersionOutput( String javaCmd ) {
+        def process = [ javaCmd, '-version' ].execute()
+        def output = new StringBuilder()
+        process.waitForProcessOutput( output, output )
+        output.toString()
+    }
+
+    static int javaMajorVersion( String javaVersionOutput ) {
+        def match = javaVersionOutput =~ /version "(\d+)(?:\.(\d+))?/
+        if ( !match ) {
+            throw new GradleException( "Unable to find out the Java version from: $javaVersionOutput" )
+        }
+        int major = match.group( 1 ) as int
+        major == 1 && match.group( 2 ) ? match.group( 2 ) as int : major
+    }
+
+    private static class LogOutputStream extends OutputStream {
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream()
+
+        @Override
+        void write( int b ) {
+            if ( b == ( '\n' as char ) ) {
+                log.info( line.toString().trim() )
+                line.reset()
+            } else {
+                line.write( b )
+            }
+        }
+    }
+
+}
@@ -1,118 +1,280 @@
 package com.athaydes.gradle.osgi
 
-import aQute.bnd.version.MavenVersion
-import com.athaydes.gradle.osgi.dependency.DefaultOSGiDependency
-import com.athaydes.gradle.osgi.util.JarUtils
-import org.gradle.api.DefaultTask
+import com.athaydes.gradle.osgi.bnd.RuntimeResolver.BundleInfo
+import com.athaydes.gradle.osgi.bnd.StartLevelPlanner
+import com.athaydes.gradle.osgi.config.BackslashEscapingWriter
+import com.athaydes.gradle.osgi.config.OsgiConfigContext
+import com.athaydes.gradle.osgi.config.OsgiConfigGenerators
+import com.athaydes.gradle.osgi.util.BuildMetrics
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import com.athaydes.gradle.osgi.util.FileMaterializer
+import com.athaydes.gradle.osgi.util.SupportBundles
+import com.athaydes.gradle.osgi.util.SystemPackageIndex
 import org.gradle.api.GradleException
 import org.gradle.api.Project
+import org.gradle.api.file.FileCollection
 import org.gradle.api.logging.Logger
 import org.gradle.api.logging.Logging
-import org.gradle.api.tasks.InputFile
+import org.gradle.api.model.ObjectFactory
+import org.gradle.api.provider.MapProperty
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.Optional
 import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.OutputFiles
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
 import org.gradle.api.tasks.TaskAction
-import org.gradle.api.tasks.bundling.Jar
 
+import javax.inject.Inject
 import java.nio.file.Files
-import java.util.jar.Manifest
 import java.util.regex.Pattern
-import java.util.zip.ZipEntry
-import java.util.zip.ZipFile
 
 /**
  * The createOsgiRuntime task.
+ *
+ * The generated files only refer to the OSGi runtime directory through relative paths, so the outputs of this task
+ * may be loaded from the build cache into another location. Outputs are only cached if all files are copied into
+ * the OSGi runtime, as links are not relocatable.
  */
-class CreateOsgiRuntimeTask extends DefaultTask {
+@CacheableTask
+abstract class CreateOsgiRuntimeTask extends AbstractOsgiRuntimeTask {
 
     static final Logger log = Logging.getLogger( CreateOsgiRuntimeTask )
     static final String SYSTEM_LIBS = 'system-libs'
     static final Integer DEFAULT_START_LEVEL = 4
+    static final int AUTO_START_LEVEL_BASE = 2
+    static final String SUPPORT_DIR = 'support'
+    static final String PROFILER_BUNDLE = 'osgi-run-profiler'
+    static final String PROFILER_DIR_PROPERTY = 'osgirun.profiler.dir'
+    static final String PROFILER_DIR = 'profile'
+    static final String CONTROL_BUNDLE = 'osgi-run-control'
+    static final String CONTROL_FILE_PROPERTY = 'osgirun.control.file'
+    static final String CONTROL_FILE = 'daemon/control.properties'
+    static final String CDS_ARCHIVE = 'osgi-run.jsa'
+
+    /**
+     * The resolved OSGi runtime, shared with the createBundlesDir task.
+     */
+    @Internal
+    OsgiRuntimeModel runtimeModel
+
+    CreateOsgiRuntimeTask() {
+        outputs.cacheIf( 'all files are copied into the OSGi runtime and no manifests are copied' ) {
+            CreateOsgiRuntimeTask task = it as CreateOsgiRuntimeTask
+            task.materialization == 'copy' && task.manifestCopies.get().isEmpty()
+        }
+        // outputs loaded from the cache would not delete the archive, which was created for the previous runtime
+        outputs.cacheIf( 'there is no class data sharing archive' ) {
+            CreateOsgiRuntimeTask task = it as CreateOsgiRuntimeTask
+            !new File( task.target, CDS_ARCHIVE ).exists()
+        }
+    }
+
+    @Inject
+    abstract ObjectFactory getObjects()
 
-    @InputFile
-    File getBuildFile() {
-        log.debug( "Adding project build file to createOsgiRuntime task inputs: {}", project.buildFile )
-        project.buildFile
+    /**
+     * @return the file each jar's manifest is copied to, if the copyManifestTo option is used
+     */
+    @Internal
+    abstract MapProperty<File, File> getManifestCopies()
+
+    /**
+     * @return the bundles created by the createBundlesDir task
+     */
+    @InputFiles
+    @PathSensitive( PathSensitivity.NAME_ONLY )
+    FileCollection getBundleJars() {
+        objects.fileTree().from( new File( target, osgiConfig.bundlesPath ) ).include( '*.jar' )
     }
 
     @InputFiles
-    Set<File> getAllFileInputsFromProjectDependencies() {
-        def osgiConfig = project.extensions.getByName( 'runOsgi' ) as OsgiConfig
+    @PathSensitive( PathSensitivity.NAME_ONLY )
+    FileCollection getSystemLibJars() {
+        objects.fileCollection().from( { runtimeModel.systemLibFiles } )
+    }
 
-        def allProjectDeps = ConfigurationsCreator.allRuntimeDependencies( project, osgiConfig ).findAll {
-            it instanceof Project
-        } as List<Project>
+    @InputFiles
+    @PathSensitive( PathSensitivity.NAME_ONLY )
+    FileCollection getMainJarFiles() {
+        mainJars
+    }
 
-        log.debug "Adding build file of the following projects to the inputs of the createOsgiRuntime task: {}",
-                allProjectDeps*.name
+    /**
+     * @return the URI the framework jar is downloaded from, if the osgiMain property is an URI
+     */
+    @Input
+    @Optional
+    String getOsgiMainUri() {
+        def osgiMain = osgiConfig.osgiMain
+        osgiMain instanceof URI ? osgiMain.toString() : null
+    }
 
-        Set<File> projectDependencies = [ ]
+    @Input
+    String getConfigSettings() {
+        osgiConfig.configSettings
+    }
 
-        ( allProjectDeps + project ).collectMany { dep ->
-            dep.tasks.withType( Jar ) { Jar jar ->
-                // we need to run the jar task if the build file changes
-                if ( dep.buildFile ) projectDependencies += dep.buildFile
-            }
-        }
+    @Input
+    String getBundlesPath() {
+        osgiConfig.bundlesPath
+    }
 
-        return projectDependencies
+    /**
+     * @return the entries of the config map, in the order they are written to the framework configuration
+     */
+    @Input
+    List<String> getFrameworkConfig() {
+        osgiConfig.config.collect { key, value -> "$key=$value".toString() }
+    }
+
+    @Input
+    String getJavaArgs() {
+        osgiConfig.javaArgs
+    }
+
+    @Input
+    String getProgramArgs() {
+        osgiConfig.programArgs
+    }
+
+    /**
+     * @return the start levels given to bundles by name. Bundles without a start level are not included.
+     */
+    @Input
+    List<String> getBundleStartLevels() {
+        runtimeModel.startLevelByName.findAll { it.value != null }
+                .collect { name, level -> "$name=$level".toString() }.sort()
+    }
+
+    /**
+     * @return the support bundles added to the OSGi runtime, which may be enabled without changing the build file
+     */
+    @Input
+    List<String> getSupportBundles() {
+        startupSupportBundles( osgiConfig )
+    }
+
+    @Input
+    boolean getAutoStartLevels() {
+        osgiConfig.autoStartLevels
+    }
+
+    @Input
+    String getMaterialization() {
+        osgiConfig.materialization
+    }
+
+    /**
+     * @return whether the framework configuration starts the framework from the storage area filled by the
+     * prewarmOsgiRuntime task
+     */
+    @Input
+    boolean getPrewarm() {
+        osgiConfig.prewarm
+    }
+
+    /**
+     * @return the jars copied into the system-libs directory. Equinox keeps its configuration and storage area in
+     * that directory too, so the directory itself is not an output.
+     */
+    @OutputFiles
+    List<File> getCopiedSystemLibs() {
+        def osgiMain = osgiConfig.osgiMain
+        def mainJarNames = osgiMain instanceof URI ? [ new File( osgiMain.path ).name ] : mainJars.files*.name
+        def systemLibs = getSystemLibs( target )
+        ( runtimeModel.systemLibFiles*.name + mainJarNames ).unique().collect { new File( systemLibs, it ) }
     }
 
     @OutputDirectory
-    File getOutputDir() {
-        def osgiConfig = project.extensions.getByName( 'runOsgi' ) as OsgiConfig
-        project.file( getTarget( project, osgiConfig ) )
+    File getSupportDir() {
+        new File( target, SUPPORT_DIR )
+    }
+
+    @OutputFile
+    @Optional
+    File getGeneratedConfigFile() {
+        getConfigFile( target, osgiConfig )
+    }
+
+    /**
+     * The bundles directory is the output of the createBundlesDir task, and the frameworks write their storage
+     * areas into the OSGi runtime directory and, for Equinox, into system-libs, so only the files written by this
+     * task are declared as outputs.
+     */
+    @OutputFiles
+    List<File> getScripts() {
+        [ 'run.sh', 'run.bat' ].collect { new File( target, it ) }
     }
 
     @TaskAction
     def createOsgiRuntime() {
-        def osgiConfig = project.extensions.getByName( 'runOsgi' ) as OsgiConfig
+        def osgiConfig = getOsgiConfig()
 
-        String target = getTarget( project, osgiConfig )
+        String target = getTarget()
         def systemLibs = getSystemLibs( target )
         systemLibs.mkdirs()
 
+        def metrics = new BuildMetrics( name )
+
+        // the class data sharing archive was created for the previous state of the runtime
+        deleteCdsArchive( target )
+
+        def metadataIndex = metrics.time( 'loadIndex' ) { loadMetadataIndex() }
+
         log.info( "Will copy osgi runtime resources into $target" )
-        copySystemLibs( project, systemLibs )
-        updateConfigWithSystemLibs( osgiConfig, systemLibs )
-        copyMainDeps( project, systemLibs, osgiConfig )
-        copyConfigFiles( target, osgiConfig, project )
-        osgiConfig.javaArgs = osgiConfig.javaArgs.replaceAll( /[\r\n]/, ' ' )
-        def mainClass = selectMainClass( project, systemLibs )
-        createOSScriptFiles( target, osgiConfig, mainClass )
+        def materializer = createMaterializer( osgiConfig )
+        metrics.time( 'systemLibs' ) { copySystemLibs( materializer, systemLibs, metrics ) }
+        metrics.time( 'systemPackageScan' ) { updateConfigWithSystemLibs( osgiConfig, systemLibs, metadataIndex ) }
+        metrics.time( 'mainDependencies' ) { copyMainDeps( mainJars.files, materializer, systemLibs, osgiConfig ) }
+        metrics.time( 'supportBundles' ) { copySupportBundles( target, osgiConfig ) }
+        metrics.time( 'configGeneration' ) { copyConfigFiles( target, osgiConfig,
+                startLevels( target, osgiConfig, runtimeModel ), metadataIndex ) }
+        def mainClass = metrics.time( 'mainClassSelection' ) {
+            selectMainClass( mainJars.files, systemLibs, metadataIndex )
+        }
+        metrics.time( 'scripts' ) { createOSScriptFiles( target, osgiConfig, mainClass ) }
+        metrics.time( 'manifests' ) { ManifestFileCopier.copy( manifestCopies.get() ) }
+        metrics.time( 'saveIndex' ) { metadataIndex.save() }
+
+        metrics.increment( 'bundles', new File( target, osgiConfig.bundlesPath ).listFiles()
+                ?.count { File file -> file.name.endsWith( '.jar' ) } ?: 0 )
+        metrics.report( target as File )
     }
 
-    private void copyMainDeps( Project project, File systemLibs, OsgiConfig osgiConfig ) {
+    static void copyMainDeps( Set<File> mainJars, FileMaterializer materializer,
+                              File systemLibs, OsgiConfig osgiConfig ) {
         if ( osgiConfig.osgiMain instanceof URI ) {
             URI uri = osgiConfig.osgiMain
             def fileName = new File( uri.path ).name
-            Files.write( new File( systemLibs, fileName ).toPath(), uri.toURL().openStream().bytes )
+            def mainJar = new File( systemLibs, fileName )
+            mainJar.delete()
+            Files.write( mainJar.toPath(), uri.toURL().openStream().bytes )
         } else {
-            project.copy {
-                from project.configurations.osgiMain
-                into systemLibs
+            mainJars.each { File file ->
+                materializer.materialize( file, new File( systemLibs, file.name ) )
             }
         }
     }
 
-    static String selectMainClass( Project project, File systemLibs ) {
+    static String selectMainClass( Collection<File> mainJars, File systemLibs, BundleMetadataIndex metadataIndex ) {
         String mainClass = null
-        def mainJars = project.configurations.osgiMain.resolvedConfiguration.resolvedArtifacts*.file
         def systemJars = systemLibs.listFiles( { dir, name ->
             name.endsWith( '.jar' )
         } as FilenameFilter )?.toList() ?: [ ]
-        for ( artifact in ( mainJars + systemJars ) ) {
-            mainClass = JarUtils.withManifestEntry( artifact ) { ZipFile file, ZipEntry manifestEntry ->
-                def manifest = new Manifest( file.getInputStream( manifestEntry ) )
-                manifest.mainAttributes.getValue( 'Main-Class' )
-            }
+        for ( artifact in ( mainJars.toList() + systemJars ) ) {
+            mainClass = metadataIndex.get( artifact ).mainClass
             if ( mainClass ) {
                 break
             }
         }
 
         if ( !mainClass ) {
-            throw new GradleException( "None of the osgiMain jars [${mainJars.collect { it.file }}] contain a " +
+            throw new GradleException( "None of the osgiMain jars ${mainJars*.name} contain a " +
                     "Main-Class in its Manifest.\nPlease specify a runnable jar as a osgiMain dependency " +
                     "or the osgiMain property." )
         }
@@ -120,230 +282,172 @@ class CreateOsgiRuntimeTask extends DefaultTask {
         return mainClass
     }
 
-    private void copySystemLibs( Project project, File systemLibs ) {
-        project.copy {
-            from project.configurations.systemLib
-            into systemLibs
+    void copySystemLibs( FileMaterializer materializer, File systemLibs, BuildMetrics metrics ) {
+        runtimeModel.systemLibFiles.each { File file ->
+            metrics.increment( 'systemLibs' )
+            if ( materializer.materialize( file, new File( systemLibs, file.name ) ) ) {
+                metrics.increment( 'bytesCopied', file.length() )
+            }
         }
     }
 
-    private static void updateConfigWithSystemLibs( OsgiConfig osgiConfig, File systemLibs ) {
-        systemLibs.listFiles()?.findAll { it.name.endsWith( '.jar' ) }?.each { File jar ->
-            Set packages = [ ]
-            final version = MavenVersion.parseString( JarUtils.versionOf( new aQute.bnd.osgi.Jar( jar ) ) )
-                    .getOSGiVersion()
+    static void updateConfigWithSystemLibs( OsgiConfig osgiConfig, File systemLibs,
+                                            BundleMetadataIndex metadataIndex ) {
+        def jars = systemLibs.listFiles()?.findAll { it.name.endsWith( '.jar' ) }?.sort { it.name }
+        if ( !jars ) return
 
-            for ( entry in new ZipFile( jar ).entries() ) {
-
-                if ( entry.name.endsWith( '.class' ) ) {
-                    def lastSlashIndex = entry.toString().findLastIndexOf { it == '/' }
-                    def entryName = lastSlashIndex > 0 ?
-                            entry.toString().substring( 0, lastSlashIndex ) :
-                            entry.toString()
-
-                    packages << ( entryName.replace( '/', '.' ) + ';version=' + version )
-                }
-            }
-
-            def extrasKey = 'org.osgi.framework.system.packages.extra'
-
-            def extras = osgiConfig.config.get( extrasKey, '' )
-            if ( extras && packages ) {
-                extras = extras + ','
-            }
-            osgiConfig.config[ extrasKey ] = extras + packages.join( ',' )
-        }
+        def extrasKey = SystemPackageIndex.SYSTEM_PACKAGES_EXTRA
+        def extras = new SystemPackageIndex( metadataIndex ).appendExports( jars,
+                new StringBuilder( osgiConfig.config.get( extrasKey, '' ) as String ) )
 
+        osgiConfig.config[ extrasKey ] = extras.toString()
     }
 
-    private static void copyConfigFiles( String target, OsgiConfig osgiConfig, Project project ) {
-        def configFile = getConfigFile( target, osgiConfig )
-        if ( !configFile ) return
-        if ( !configFile.exists() ) {
-            configFile.parentFile.mkdirs()
+    static void copyConfigFiles( String target, OsgiConfig osgiConfig, Map<String, Integer> startLevelMap,
+                                 BundleMetadataIndex metadataIndex ) {
+        def generator = OsgiConfigGenerators.forConfigSettings( osgiConfig.configSettings )
+        if ( !generator ) return
+        def configFile = generator.configFile( target )
+        configFile.parentFile.mkdirs()
+        if ( osgiConfig.prewarm ) {
+            // fails if the storage area of the framework is not known
+            PrewarmOsgiRuntimeTask.storageDirFor( target, osgiConfig )
+        }
+        def context = configContext( target, osgiConfig, startLevelMap, metadataIndex )
+        new BackslashEscapingWriter( configFile.newWriter( 'UTF-8' ) ).withCloseable { Writer writer ->
+            generator.write( context, writer )
         }
-        configFile.write( scapeSlashes( textForConfigFile( target, osgiConfig, project ) ), 'UTF-8' )
     }
 
-    private static File getConfigFile( String target, OsgiConfig osgiConfig ) {
-        switch ( osgiConfig.configSettings ) {
-            case 'felix': return new File( "${target}/conf/config.properties" )
-            case 'equinox': return new File( "${target}/$SYSTEM_LIBS/configuration/config.ini" )
-            case 'knopflerfish': return new File( "${target}/init.xargs" )
-            case 'none': return null
-        }
-        throw new GradleException( "Unknown OSGi configSettings: ${osgiConfig.configSettings}" )
+    static File getConfigFile( String target, OsgiConfig osgiConfig ) {
+        OsgiConfigGenerators.forConfigSettings( osgiConfig.configSettings )?.configFile( target )
     }
 
     static File getSystemLibs( String target ) {
         new File( "${target}/${SYSTEM_LIBS}" )
     }
 
-    static String getTarget( Project project, OsgiConfig osgiConfig ) {
-        ( osgiConfig.outDir instanceof File ) ?
-                osgiConfig.outDir.absolutePath :
-                "${project.buildDir}/${osgiConfig.outDir}"
+    static File supportBundle( String target, String name ) {
+        new File( "${target}/${SUPPORT_DIR}/${name}.jar" )
     }
 
-    private static String scapeSlashes( String string ) {
-        string.replace( '\\', '\\\\' )
+    /**
+     * @return the path of the file relative to the OSGi runtime directory, using '/' as separator
+     */
+    static String relativePath( String target, File file ) {
+        new File( target ).toPath().relativize( file.toPath() ).toString().replace( File.separatorChar, '/' as char )
     }
 
-    private static String textForConfigFile( String target, OsgiConfig osgiConfig, Project project ) {
-        switch ( osgiConfig.configSettings ) {
-            case 'felix': return generateFelixConfigFile( target, osgiConfig, project )
-            case 'equinox': return generateEquinoxConfigFile( target, osgiConfig, project )
-            case 'knopflerfish': return generateKnopflerfishConfigFile( target, osgiConfig )
-            default: throw new GradleException( 'Internal Plugin Error! Unknown configSettings. Please report bug at ' +
-                    'https://github.com/renatoathaydes/osgi-run/issues\nInclude the following in your message:\n' +
-                    osgiConfig )
-        }
+    /**
+     * @return names of the support bundles which must be started before all other bundles
+     */
+    static List<String> startupSupportBundles( OsgiConfig osgiConfig ) {
+        ( osgiConfig.profileStartup ? [ PROFILER_BUNDLE ] : [ ] ) + ( osgiConfig.daemon ? [ CONTROL_BUNDLE ] : [ ] )
     }
 
-    private static String generateFelixConfigFile( String target, OsgiConfig osgiConfig, Project project ) {
-        def bundlesDir = "${target}/${osgiConfig.bundlesPath}" as File
-
-        def bundleJars = bundlesDir.listFiles( { dir, name -> name ==~ /.+\.jar/ } as FilenameFilter )
-
-        if ( !bundleJars ) {
-            log.info( "Could not find any bundles in $target" )
-            return map2properties( osgiConfig.config )
-        }
-
-        def startLevelMap = buildStartLevelMap( project )
-        log.debug( "StartLevel map: {}", startLevelMap )
-
-        if ( startLevelMap.values().every { it == null } ) {
-            log.debug( "No StartLevels specified" )
-            return map2properties( osgiConfig.config )
-        }
-
-        Map<Integer, List<File>> bundlesByStartLevel = [ : ]
-        Map<Integer, List<File>> fragmentBundlesByStartLevel = [ : ]
-
-        bundleJars.each { jar ->
-            Map<Integer, List<File>> map
-            if ( JarUtils.isFragment( jar ) ) {
-                map = fragmentBundlesByStartLevel
-            } else {
-                map = bundlesByStartLevel
-            }
-
-            def startLevel = startLevelMap[ jar.name ] ?: DEFAULT_START_LEVEL
-            map.merge( startLevel, [ jar ], { a, b -> a + b } )
+    /**
+     * @return the start level of each bundle in the bundles directory, if any. With autoStartLevels, every bundle
+     * without an explicit start level is given one which is higher than the start level of its dependencies.
+     */
+    static Map<String, Integer> startLevels( String target, OsgiConfig osgiConfig, OsgiRuntimeModel runtimeModel ) {
+        if ( !osgiConfig.autoStartLevels ) {
+            return runtimeModel.startLevelByName
         }
 
-        def fragmentInstallEntries = fragmentBundlesByStartLevel.collectEntries(
-                felixBundleDirective( 'felix.auto.install', target ) )
+        def start = System.currentTimeMillis()
+        def bundleJars = new File( target, osgiConfig.bundlesPath ).listFiles()
+                ?.findAll { it.file && it.name.endsWith( '.jar' ) }?.sort { it.name } ?: [ ]
+        def bundles = bundleJars.collect { BundleInfo.read( it ) }.findAll { it != null }
+        def explicitLevels = runtimeModel.startLevelByName.findAll { it.value != null }
 
-        def bundleStartEntries = bundlesByStartLevel.collectEntries(
-                felixBundleDirective( 'felix.auto.start', target ) )
+        def result = StartLevelPlanner.plan( bundles, explicitLevels, AUTO_START_LEVEL_BASE )
 
-        map2properties( osgiConfig.config + fragmentInstallEntries + bundleStartEntries )
+        log.info( 'Computed start levels of {} bundles in {} ms', bundles.size(), System.currentTimeMillis() - start )
+        log.debug( 'Automatic start levels: {}', result )
+        result
     }
 
-    private static String generateEquinoxConfigFile( String target, OsgiConfig osgiConfig, Project project ) {
-        def bundlesDir = "${target}/${osgiConfig.bundlesPath}" as File
-
-        def bundleJars = bundlesDir.listFiles( { dir, name -> name ==~ /.+\.jar/ } as FilenameFilter )
-
-        if ( !bundleJars ) {
-            log.info( "Could not find any bundles in $target" )
-            return map2properties( osgiConfig.config )
-        }
-
-        def startLevelMap = buildStartLevelMap( project )
-        log.debug( "StartLevel map: {}", startLevelMap )
-
-        def bundleStartEntries = [ 'osgi.bundles': bundleJars.collect { file ->
-            def startLevel = startLevelMap[ file.name ]
-            equinoxBundleDirective( file, target, startLevel )
-        }.join( ',' ) ]
-
-        map2properties( osgiConfig.config + bundleStartEntries )
+    /**
+     * @return framework properties required by the support bundles
+     */
+    static Map<String, String> supportBundleProperties( OsgiConfig osgiConfig ) {
+        ( osgiConfig.profileStartup ? [ ( PROFILER_DIR_PROPERTY ): PROFILER_DIR ] : [ : ] ) +
+                ( osgiConfig.daemon ? [ ( CONTROL_FILE_PROPERTY ): CONTROL_FILE ] : [ : ] )
     }
 
-    private static Map<String, Integer> buildStartLevelMap( Project project ) {
-        def osgiConfigs = project.configurations.findAll { it.name.startsWith( ConfigurationsCreator.OSGI_DEP_PREFIX ) }
-
-        osgiConfigs.collectEntries { conf ->
-            def files = conf.resolvedConfiguration.files
-            conf.allDependencies.collectEntries { dep ->
-                def startLevel = null
-                if ( dep instanceof DefaultOSGiDependency ) {
-                    startLevel = dep.startLevel
-                }
-
-                files.collectEntries { f -> [ ( f.name ): startLevel ] }
-            }
+    static void copySupportBundles( String target, OsgiConfig osgiConfig ) {
+        def bundleNames = startupSupportBundles( osgiConfig )
+        if ( bundleNames && osgiConfig.configSettings == 'none' ) {
+            log.warn( 'Startup profiling and daemon mode are not supported with configSettings = "none"' )
         }
-    }
-
-    private static felixBundleDirective( String propPrefix, String target ) {
-        target = "$target/"
-        return { startLevel, jars ->
-            String propKey = "$propPrefix.$startLevel"
-            def url = { File bundleJar ->
-                'file:' + bundleJar.absolutePath.replace( target, '' )
+        for ( name in [ PROFILER_BUNDLE, CONTROL_BUNDLE ] ) {
+            def bundle = supportBundle( target, name )
+            if ( name in bundleNames ) {
+                SupportBundles.extract( name, bundle )
+            } else {
+                bundle.delete()
             }
-            [ ( propKey ): jars.collect( url ).join( ' ' ) ]
         }
     }
 
-    private static String equinoxBundleDirective( File bundleJar, String target, Integer startLevel ) {
-        bundleJar.absolutePath.replace( target, '..' ) + (
-                JarUtils.isFragment( bundleJar ) ? '' : (
-                        startLevel == null ? '@start' : "@$startLevel:start"
-                ) )
-    }
-
-    private static String generateKnopflerfishConfigFile( String target, OsgiConfig osgiConfig ) {
-        def bundlesDir = "${target}/${osgiConfig.bundlesPath}" as File
-        if ( !bundlesDir.exists() ) {
-            bundlesDir.mkdirs()
-        }
-        def bundleJars = new FileNameByRegexFinder().getFileNames(
-                bundlesDir.absolutePath, /.+\.jar/ )
-
-        knopflerfishEntries( osgiConfig.config ) + knopflerfishBundleInstructions( bundleJars )
+    static String getTarget( Project project, OsgiConfig osgiConfig ) {
+        ( osgiConfig.outDir instanceof File ) ?
+                osgiConfig.outDir.absolutePath :
+                "${project.buildDir}/${osgiConfig.outDir}"
     }
 
-    static String knopflerfishBundleInstructions( List<String> bundleJars ) {
-        bundleJars.inject( '\n' ) { acc, bundle ->
-            acc + ( JarUtils.isFragment( bundle ) ? "-install ${bundle}\n" : "-istart ${bundle}\n" )
-        }
-    }
+    /**
+     * @return the OSGi runtime to generate the configuration for, with the metadata of all bundles read once
+     */
+    static OsgiConfigContext configContext( String target, OsgiConfig osgiConfig, Map<String, Integer> startLevelMap,
+                                            BundleMetadataIndex metadataIndex ) {
+        log.debug( "StartLevel map: {}", startLevelMap )
+        def bundlesDir = new File( target, osgiConfig.bundlesPath )
+        def bundles = OsgiConfigContext.listBundles( bundlesDir, relativePath( target, bundlesDir ), startLevelMap,
+                metadataIndex )
 
-    @SuppressWarnings( "GroovyAssignabilityCheck" )
-    private static String map2properties( Map map ) {
-        map.inject( '' ) { acc, key, value ->
-            "${acc}${key} = ${value}\n"
+        def supportBundlePaths = startupSupportBundles( osgiConfig ).collect { String name ->
+            relativePath( target, supportBundle( target, name ) )
         }
-    }
 
-    @SuppressWarnings( "GroovyAssignabilityCheck" )
-    private static String knopflerfishEntries( Map map ) {
-        map.inject( '' ) { acc, key, value ->
-            def separator = key ==~ /\s*-[DF].*/ ? '=' : ''
-            "${acc}${key} ${separator} ${value}\n"
-        }
+        new OsgiConfigContext( target, osgiConfig, bundles, supportBundlePaths,
+                supportBundleProperties( osgiConfig ), DEFAULT_START_LEVEL, osgiConfig.prewarm )
     }
 
     static String createJavaRunArgs( String target,
                                      OsgiConfig osgiConfig,
                                      String mainClass,
                                      String classpathSeparator ) {
-        def systemLibs = ( "${target}/${SYSTEM_LIBS}" as File ).listFiles()?.findAll { it.name.endsWith( 'jar' ) }
+        def systemLibs = systemLibsClassPath( target )
 
         def classPath = {
-            systemLibs ?
-                    '-cp ' + systemLibs.collect { "${SYSTEM_LIBS}/${it.name}" }.join( classpathSeparator ) :
-                    ''
+            systemLibs ? '-cp ' + systemLibs.join( classpathSeparator ) : ''
         }
+
         "${osgiConfig.javaArgs} ${classPath()} ${mainClass} ${osgiConfig.programArgs}"
     }
 
-    private static void createOSScriptFiles( String target, OsgiConfig osgiConfig, String mainClass ) {
+    /**
+     * @return the java arguments which make the JVM use the archive created by the createOsgiCdsArchive task
+     */
+    static String cdsArgs() {
+        "-XX:SharedArchiveFile=${CDS_ARCHIVE} -Xshare:auto"
+    }
+
+    static void deleteCdsArchive( String target ) {
+        [ CDS_ARCHIVE, CreateCdsArchiveTask.CLASS_LIST ].each { new File( target, it ).delete() }
+    }
+
+    /**
+     * @return the paths of the jars in the system-libs directory, relative to the OSGi runtime directory.
+     * The classpath must always be in the same order for the CDS archive to be usable.
+     */
+    static List<String> systemLibsClassPath( String target ) {
+        getSystemLibs( target ).listFiles()?.findAll { it.name.endsWith( 'jar' ) }
+                ?.sort { it.name }?.collect { "${SYSTEM_LIBS}/${it.name}".toString() } ?: [ ]
+    }
+
+    static void createOSScriptFiles( String target, OsgiConfig osgiConfig, String mainClass ) {
         def linuxJavaArgs = createJavaRunArgs( target, osgiConfig, mainClass, ':' )
 
         def linuxScript = """|#!/bin/bash
@@ -363,7 +467,14 @@ class CreateOsgiRuntimeTask extends DefaultTask {
         |  fi
         |fi
         |
-        |"\$JAVA" ${linuxJavaArgs} "\$@"
+        |# use the archive created by the createOsgiCdsArchive task, if any
+        |CDS_ARGS=""
+        |if [ -f "${CDS_ARCHIVE}" ]
+        |then
+        |  CDS_ARGS="${cdsArgs()}"
+        |fi
+        |
+        |"\$JAVA" \$CDS_ARGS ${linuxJavaArgs} "\$@"
         |""".stripMargin().replaceAll( Pattern.quote( '\r\n' ), '\n' )
 
         def windowsJavaArgs = createJavaRunArgs( target, osgiConfig, mainClass, ';' )
@@ -384,7 +495,11 @@ class CreateOsgiRuntimeTask extends DefaultTask {
         |  )
         |)
         |
-        |%JAVA% ${windowsJavaArgs} %*
+        |REM use the archive created by the createOsgiCdsArchive task, if any
+        |set CDS_ARGS=
+        |if exist "${CDS_ARCHIVE}" set CDS_ARGS=${cdsArgs()}
+        |
+        |%JAVA% %CDS_ARGS% ${windowsJavaArgs} %*
         |""".stripMargin().replaceAll( Pattern.quote( '\n' ), '\r\n' )
 
         def writeToExecutable = { String fileName, String scriptText ->
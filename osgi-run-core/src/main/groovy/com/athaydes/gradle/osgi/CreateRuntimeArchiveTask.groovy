@@ -0,0 +1,200 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.util.BuildMetrics
+import com.athaydes.gradle.osgi.util.SupportBundles
+import org.gradle.api.GradleException
+import org.gradle.api.file.FileCollection
+import org.gradle.api.file.FileTree
+import org.gradle.api.file.FileTreeElement
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+import org.gradle.api.model.ObjectFactory
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+import javax.inject.Inject
+import java.security.MessageDigest
+import java.util.jar.Attributes
+import java.util.jar.JarEntry
+import java.util.jar.JarInputStream
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.CDS_ARCHIVE
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.PROFILER_DIR
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.getConfigFile
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.getSystemLibs
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.selectMainClass
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.systemLibsClassPath
+
+/**
+ * The osgiRuntimeArchive task.
+ *
+ * Packs the OSGi runtime created by the createOsgiRuntime task into a single executable jar, so that it can be
+ * deployed with a single file. When the jar is executed, a small launcher extracts the runtime into a cache
+ * directory (only on the first start of each archive) and starts the framework with the same configuration as
+ * the run scripts.
+ *
+ * The files of the runtime are stored in the jar without compression, as most of them are jars already, so that
+ * both creating and extracting the archive are a sequential copy of the runtime's files.
+ */
+abstract class CreateRuntimeArchiveTask extends AbstractOsgiRuntimeTask {
+
+    static final Logger log = Logging.getLogger( CreateRuntimeArchiveTask )
+    static final String LAUNCHER_JAR = 'osgi-run-launcher'
+    static final String LAUNCHER_MAIN = 'com.athaydes.gradle.osgi.support.launcher.RuntimeArchiveLauncher'
+    static final String RUNTIME_DIR = 'runtime/'
+
+    /**
+     * Files written while the runtime runs, or which only work on the machine or with the JDK which created them.
+     */
+    static final List<String> EXCLUDED_FILES = [ CDS_ARCHIVE, CreateCdsArchiveTask.CLASS_LIST, BuildMetrics.FILE_NAME,
+                                                 PrewarmOsgiRuntimeTask.PLAN_FILE,
+                                                 'daemon/**', 'logs/**', "${PROFILER_DIR}/**".toString() ].asImmutable()
+
+    @Inject
+    abstract ObjectFactory getObjects()
+
+    /**
+     * @return the executable jar to create
+     */
+    @OutputFile
+    abstract RegularFileProperty getArchiveFile()
+
+    /**
+     * @return all files of the OSGi runtime. The framework storage area is only included with the prewarm option,
+     * as it otherwise only contains the state left over by previous runs.
+     */
+    @InputFiles
+    @PathSensitive( PathSensitivity.RELATIVE )
+    FileTree getRuntimeFiles() {
+        def osgiConfig = getOsgiConfig()
+        String target = getTarget()
+        def configFile = getConfigFile( target, osgiConfig )
+        def storageDir = configFile && !osgiConfig.prewarm ?
+                PrewarmOsgiRuntimeTask.storageDirFor( target, osgiConfig ).toPath() : null
+
+        objects.fileTree().from( target ).exclude( EXCLUDED_FILES ).exclude { FileTreeElement element ->
+            def path = element.file.toPath()
+            // Equinox keeps its configuration file within its storage area
+            storageDir != null && path.startsWith( storageDir ) && !configFile.toPath().startsWith( path )
+        }
+    }
+
+    @InputFiles
+    @PathSensitive( PathSensitivity.NAME_ONLY )
+    FileCollection getMainJarFiles() {
+        mainJars
+    }
+
+    @Input
+    String getJavaArgs() {
+        osgiConfig.javaArgs
+    }
+
+    @Input
+    String getProgramArgs() {
+        osgiConfig.programArgs
+    }
+
+    @TaskAction
+    void createArchive() {
+        def osgiConfig = getOsgiConfig()
+        String target = getTarget()
+        def systemLibs = getSystemLibs( target )
+        if ( !systemLibs.directory ) {
+            throw new GradleException( "Cannot create archive of the OSGi runtime in $target, " +
+                    "run the createOsgiRuntime task first" )
+        }
+
+        def start = System.currentTimeMillis()
+
+        def metadataIndex = loadMetadataIndex()
+        def mainClass = selectMainClass( mainJars.files, systemLibs, metadataIndex )
+        metadataIndex.save()
+
+        Map<String, File> filesByPath = new TreeMap<>()
+        runtimeFiles.visit { details ->
+            if ( !details.directory ) filesByPath[ details.relativePath.pathString ] = details.file
+        }
+
+        // entries which are not compressed must have their CRC written before their contents
+        Map<String, Long> crcByPath = filesByPath.collectEntries { path, file -> [ ( path ): crc( file ) ] }
+
+        def manifest = new Manifest()
+        def attributes = manifest.mainAttributes
+        attributes[ Attributes.Name.MANIFEST_VERSION ] = '1.0'
+        attributes[ Attributes.Name.MAIN_CLASS ] = LAUNCHER_MAIN
+        attributes.putValue( 'Osgi-Run-Runtime-Name', new File( target ).name )
+        attributes.putValue( 'Osgi-Run-Runtime-Id', runtimeId( filesByPath, crcByPath ) )
+        attributes.putValue( 'Osgi-Run-Main-Class', mainClass )
+        attributes.putValue( 'Osgi-Run-Class-Path', systemLibsClassPath( target ).join( ',' ) )
+        attributes.putValue( 'Osgi-Run-Java-Args', singleLine( osgiConfig.javaArgs ) )
+        attributes.putValue( 'Osgi-Run-Program-Args', singleLine( osgiConfig.programArgs ) )
+
+        def archive = archiveFile.get().asFile
+        archive.parentFile.mkdirs()
+
+        new JarOutputStream( new BufferedOutputStream( archive.newOutputStream() ), manifest ).withCloseable { out ->
+            copyLauncher( out )
+            filesByPath.each { path, file ->
+                def entry = new JarEntry( RUNTIME_DIR + path )
+                entry.method = ZipEntry.STORED
+                entry.size = file.length()
+                entry.compressedSize = file.length()
+                entry.crc = crcByPath[ path ]
+                entry.time = file.lastModified()
+                out.putNextEntry( entry )
+                file.withInputStream { out << it }
+                out.closeEntry()
+            }
+        }
+
+        log.info( 'Archived {} files of the OSGi runtime into {} in {} ms', filesByPath.size(), archive,
+                System.currentTimeMillis() - start )
+    }
+
+    /**
+     * Copy the classes of the launcher into the archive.
+     */
+    static void copyLauncher( JarOutputStream out ) {
+        new JarInputStream( SupportBundles.open( LAUNCHER_JAR ) ).withCloseable { JarInputStream launcher ->
+            for ( def entry = launcher.nextJarEntry; entry != null; entry = launcher.nextJarEntry ) {
+                if ( entry.directory || entry.name.startsWith( 'META-INF/' ) ) continue
+                out.putNextEntry( new JarEntry( entry.name ) )
+                out << launcher
+                out.closeEntry()
+            }
+        }
+    }
+
+    static long crc( File file ) {
+        def crc = new CRC32()
+        file.eachByte( 64 * 1024 ) { byte[] bytes, int length -> crc.update( bytes, 0, length ) }
+        crc.value
+    }
+
+    /**
+     * @return identity of the contents of the runtime, so that the launcher can tell whether a runtime it has
+     * already extracted came from the same archive
+     */
+    static String runtimeId( Map<String, File> filesByPath, Map<String, Long> crcByPath ) {
+        def digest = MessageDigest.getInstance( 'SHA-256' )
+        filesByPath.each { path, file ->
+            digest.update( "$path:${file.length()}:${crcByPath[ path ]}\n".toString().getBytes( 'UTF-8' ) )
+        }
+        digest.digest().encodeHex().toString().substring( 0, 16 )
+    }
+
+    static String singleLine( String args ) {
+        args.replaceAll( /[\r\n]/, ' ' )
+    }
+
+}
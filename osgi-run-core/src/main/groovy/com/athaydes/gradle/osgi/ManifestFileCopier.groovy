@@ -11,9 +11,16 @@ class ManifestFileCopier {
 
     static log = OsgiRunPlugin.log
 
-    static void run( Project project, OsgiConfig config ) {
+    /**
+     * Find out where the manifest of each jar of the projects used as bundles should be copied to.
+     *
+     * This must be done while the build is configured, as it uses the projects' models.
+     *
+     * @return the file each jar's manifest should be copied to, empty if the copyManifestTo property is not set
+     */
+    static Map<File, File> manifestCopies( OsgiConfig config ) {
+        Map<File, File> result = [ : ]
         if ( config.copyManifestTo ) {
-            log.info( "Copying manifests to {}", config.copyManifestTo )
             def jarsByBundle = [ : ] as Map<Project, Set>
             config.bundles.each { bundle ->
                 log.debug "Checking if bundle '{}' is a project", bundle
@@ -31,12 +38,19 @@ class ManifestFileCopier {
 
             jarsByBundle.each { Project bundle, Set jars ->
                 if ( jars.size() == 1 ) {
-                    copyManifest jars.first(), bundle.file( config.copyManifestTo )
+                    result[ jars.first() as File ] = bundle.file( config.copyManifestTo )
                 } else jars.indexed().each { index, jar ->
-                    def indexedOutput = bundle.file( "${config.copyManifestTo}_$index" )
-                    copyManifest jar, indexedOutput
+                    result[ jar as File ] = bundle.file( "${config.copyManifestTo}_$index" )
                 }
             }
+        }
+        result
+    }
+
+    static void copy( Map<File, File> manifestCopies ) {
+        if ( manifestCopies ) {
+            log.info( "Copying manifests to {}", manifestCopies.values() )
+            manifestCopies.each { File jar, File output -> copyManifest jar, output }
         } else {
             log.info( "Not copying any manifest as 'copyManifestTo' property was not set" )
         }
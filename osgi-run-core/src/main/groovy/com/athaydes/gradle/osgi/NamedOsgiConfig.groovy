@@ -0,0 +1,45 @@
+package com.athaydes.gradle.osgi
+
+import groovy.transform.ToString
+import org.gradle.api.GradleException
+
+/**
+ * The configuration of a named OSGi runtime, declared within the runtimes block of the runOsgi extension.
+ *
+ * A runtime named after one of the supported frameworks uses that framework's settings by default.
+ * Each runtime is created in its own directory, {@code osgi-<name>} by default.
+ */
+@ToString( includeSuper = true, includeNames = true )
+class NamedOsgiConfig extends OsgiConfig {
+
+    static final List<String> FRAMEWORKS = [ 'felix', 'equinox', 'knopflerfish' ].asImmutable()
+
+    final String name
+
+    NamedOsgiConfig( String name ) {
+        this.name = name
+        if ( name in FRAMEWORKS ) {
+            setConfigSettings( name )
+        }
+        outDir = "osgi-$name"
+    }
+
+    /**
+     * Named runtimes have no prewarmOsgiRuntime task, so their storage area could never be filled.
+     */
+    @Override
+    void setPrewarm( boolean prewarm ) {
+        if ( prewarm ) {
+            throw new GradleException( "The prewarm option is only supported by the default OSGi runtime, " +
+                    "not by the '$name' runtime" )
+        }
+    }
+
+    /**
+     * @return the name of this runtime, capitalized to be used as the suffix of its tasks and configurations
+     */
+    String getTaskSuffix() {
+        name.capitalize()
+    }
+
+}
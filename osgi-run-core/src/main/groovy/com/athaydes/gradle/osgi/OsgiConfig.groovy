@@ -15,6 +15,18 @@ class OsgiConfig {
     String javaArgs = ""
     String programArgs = ""
     def copyManifestTo = null
+    int parallelism = Runtime.runtime.availableProcessors()
+    String materialization = 'copy'
+    boolean profileStartup = false
+    int cdsTrainingSeconds = 60
+    boolean daemon = false
+    boolean inheritIO = false
+    boolean consoleLog = false
+    int consoleLogMaxSizeMb = 10
+    boolean failOnResolutionError = false
+    boolean autoStartLevels = false
+    String bundleConsolidation = 'none'
+    boolean prewarm = false
 
     // platform dependent properties
     String configSettings
@@ -42,6 +54,45 @@ class OsgiConfig {
         }
     }
 
+    /**
+     * Copy this configuration for the tasks to use while they run.
+     *
+     * The copy does not refer to the project model, so it can be stored by the configuration cache. For this reason,
+     * the bundles and copyManifestTo are not copied: tasks get the bundles from the {@link OsgiRuntimeModel}, and
+     * the manifest files to write are found out by the plugin.
+     *
+     * @param target directory of the OSGi runtime
+     * @return copy of this configuration
+     */
+    OsgiConfig forExecution( File target ) {
+        def copy = new OsgiConfig()
+        copy.outDirFile = target
+        copy.outDir = target
+        copy.javaArgs = javaArgs.replaceAll( /[\r\n]/, ' ' )
+        copy.programArgs = programArgs
+        copy.parallelism = parallelism
+        copy.materialization = materialization
+        copy.profileStartup = profileStartup
+        copy.cdsTrainingSeconds = cdsTrainingSeconds
+        copy.daemon = daemon
+        copy.inheritIO = inheritIO
+        copy.consoleLog = consoleLog
+        copy.consoleLogMaxSizeMb = consoleLogMaxSizeMb
+        copy.failOnResolutionError = failOnResolutionError
+        copy.autoStartLevels = autoStartLevels
+        copy.bundleConsolidation = bundleConsolidation
+        copy.prewarm = prewarm
+
+        // setting the configSettings would reset the other platform dependent properties
+        copy.@configSettings = configSettings
+        copy.bundlesPath = bundlesPath
+        copy.bundles = [ ]
+        copy.excludedBundles = ( excludedBundles as List )?.collect { it.toString() } ?: [ ]
+        copy.osgiMain = osgiMain instanceof URI ? osgiMain : osgiMain?.toString()
+        copy.config = new LinkedHashMap( config ?: [ : ] )
+        copy
+    }
+
     void configFelix() {
         bundlesPath = 'bundle'
         bundles = FELIX_GOGO_BUNDLES
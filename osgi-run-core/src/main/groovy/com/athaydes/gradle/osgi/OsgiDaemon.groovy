@@ -0,0 +1,240 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import org.gradle.api.GradleException
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.TimeUnit
+
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.CONTROL_FILE
+
+/**
+ * Client of the osgi-run control bundle, which runs inside an OSGi framework launched in daemon mode.
+ *
+ * The control bundle keeps track of which bundles are installed, so redeploying only requires sending the
+ * bundles whose jars changed since they were last deployed.
+ */
+class OsgiDaemon implements Closeable {
+
+    static final Logger log = Logging.getLogger( OsgiDaemon )
+    static final String DEPLOYED_STATE = 'daemon/deployed.properties'
+    static final String LOG_FILE = 'daemon/osgi.log'
+    static final String CONFIG_KEY = '<config>'
+    static final long LAUNCH_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis( 2 )
+
+    private final Socket socket
+    private final BufferedReader reader
+    private final PrintWriter writer
+
+    private OsgiDaemon( Socket socket ) {
+        this.socket = socket
+        this.reader = new BufferedReader( new InputStreamReader( socket.inputStream, StandardCharsets.UTF_8 ) )
+        this.writer = new PrintWriter( new OutputStreamWriter( socket.outputStream, StandardCharsets.UTF_8 ), true )
+    }
+
+    /**
+     * Connect to the OSGi daemon running from the given OSGi runtime directory.
+     *
+     * @param target OSGi runtime directory
+     * @return the daemon, or null if no daemon is running
+     */
+    static OsgiDaemon connect( String target ) {
+        def controlFile = new File( target, CONTROL_FILE )
+        if ( !controlFile.file ) {
+            return null
+        }
+
+        def control = new Properties()
+        controlFile.withInputStream { control.load( it ) }
+
+        def socket = new Socket()
+        try {
+            socket.connect( new InetSocketAddress( InetAddress.loopbackAddress,
+                    control.getProperty( 'port' ) as int ), 2000 )
+        } catch ( IOException e ) {
+            log.info( 'OSGi daemon is not running anymore: {}', e.toString() )
+            socket.close()
+            controlFile.delete()
+            return null
+        }
+
+        def daemon = new OsgiDaemon( socket )
+        daemon.writer.println( control.getProperty( 'token' ) )
+        return daemon
+    }
+
+    /**
+     * Launch the OSGi runtime in the background, returning once the control bundle is accepting connections.
+     *
+     * @param target OSGi runtime directory
+     * @param command to launch the OSGi runtime
+     */
+    static void launch( String target, List<String> command ) {
+        def controlFile = new File( target, CONTROL_FILE )
+        controlFile.delete()
+
+        def logFile = new File( target, LOG_FILE )
+        logFile.parentFile.mkdirs()
+        def nullDevice = new File( System.getProperty( 'os.name' ).toLowerCase().contains( 'windows' ) ?
+                'NUL' : '/dev/null' )
+
+        def process = new ProcessBuilder( command )
+                .directory( target as File )
+                .redirectInput( ProcessBuilder.Redirect.from( nullDevice ) )
+                .redirectErrorStream( true )
+                .redirectOutput( ProcessBuilder.Redirect.appendTo( logFile ) )
+                .start()
+
+        def deadline = System.currentTimeMillis() + LAUNCH_TIMEOUT_MILLIS
+        while ( !controlFile.file ) {
+            if ( !process.alive ) {
+                throw new GradleException( "OSGi daemon exited with code ${process.exitValue()}, see $logFile" )
+            }
+            if ( System.currentTimeMillis() > deadline ) {
+                process.destroy()
+                throw new GradleException( "OSGi daemon did not start within " +
+                        "${TimeUnit.MILLISECONDS.toSeconds( LAUNCH_TIMEOUT_MILLIS )} seconds, see $logFile" )
+            }
+            sleep 100
+        }
+
+        log.lifecycle( 'OSGi runtime running in the background, output is written to {}', logFile )
+    }
+
+    /**
+     * Record the bundles deployed when the daemon was launched, so that later redeployments can tell what changed.
+     */
+    static void saveDeployedState( String target, List<File> bundleJars, File configFile,
+                                   BundleMetadataIndex metadataIndex ) {
+        def state = new Properties()
+        bundleJars.each { state.setProperty( it.name, metadataIndex.get( it ).hash ) }
+        if ( configFile?.file ) {
+            state.setProperty( CONFIG_KEY, BundleMetadataIndex.hashContents( configFile ) )
+        }
+        def stateFile = new File( target, DEPLOYED_STATE )
+        stateFile.parentFile.mkdirs()
+        stateFile.withOutputStream { state.store( it, 'Bundles deployed into the OSGi daemon' ) }
+    }
+
+    /**
+     * Send all bundles which changed since they were last deployed to the daemon.
+     *
+     * Changed bundles are updated, new bundles are installed and started, and bundles which are no longer part
+     * of the runtime are uninstalled. All affected bundles are then refreshed at once.
+     *
+     * @param target OSGi runtime directory
+     * @param bundlesPath path of the bundles directory, relative to the target
+     * @param bundleJars all bundles of the OSGi runtime
+     * @param configFile the framework configuration file, if any
+     * @param startLevelByName start level of each bundle, if any
+     * @param metadataIndex index providing the hash of each bundle
+     * @return number of bundles which changed
+     */
+    int redeploy( String target, String bundlesPath, List<File> bundleJars, File configFile,
+                  Map<String, Integer> startLevelByName, BundleMetadataIndex metadataIndex ) {
+        def stateFile = new File( target, DEPLOYED_STATE )
+        def deployed = new Properties()
+        if ( stateFile.file ) stateFile.withInputStream { deployed.load( it ) }
+
+        if ( configFile?.file && deployed.getProperty( CONFIG_KEY ) != BundleMetadataIndex.hashContents( configFile ) ) {
+            log.warn( 'The OSGi framework configuration changed, but is only applied when the daemon is restarted. ' +
+                    'Run the stopOsgiDaemon task to restart it.' )
+        }
+
+        def idByName = installedBundles()
+        def installed = [ ]
+        int changes = 0
+
+        for ( jar in bundleJars ) {
+            def hash = metadataIndex.get( jar ).hash
+            def id = idByName[ jar.name ]
+            if ( id == null ) {
+                def startLevel = startLevelByName[ jar.name ]
+                def location = "file:${bundlesPath}/${jar.name}"
+                log.info( 'Installing bundle {}', jar.name )
+                def newId = command( 'install', startLevel == null ? '-' : startLevel, jar.absolutePath, location )
+                if ( !metadataIndex.get( jar ).fragment ) installed << newId
+                changes++
+            } else if ( deployed.getProperty( jar.name ) != hash ) {
+                log.info( 'Updating bundle {}', jar.name )
+                command( 'update', id, jar.absolutePath )
+                changes++
+            }
+        }
+
+        def currentNames = bundleJars*.name as Set
+        deployed.stringPropertyNames().findAll { it != CONFIG_KEY && !( it in currentNames ) }.each { String name ->
+            def id = idByName[ name ]
+            if ( id != null ) {
+                log.info( 'Uninstalling bundle {}', name )
+                command( 'uninstall', id )
+                changes++
+            }
+        }
+
+        if ( changes ) {
+            command( 'refresh' )
+            installed.each { command( 'start', it ) }
+        }
+
+        def configHash = deployed.getProperty( CONFIG_KEY )
+        deployed.clear()
+        bundleJars.each { deployed.setProperty( it.name, metadataIndex.get( it ).hash ) }
+        if ( configHash ) deployed.setProperty( CONFIG_KEY, configHash )
+        stateFile.withOutputStream { deployed.store( it, 'Bundles deployed into the OSGi daemon' ) }
+
+        return changes
+    }
+
+    /**
+     * Stop the OSGi framework.
+     */
+    void shutdown() {
+        command( 'shutdown' )
+    }
+
+    /**
+     * @return the ID of all installed bundles by the file name in their location
+     */
+    private Map<String, String> installedBundles() {
+        writer.println( 'bundles' )
+        Map<String, String> result = [ : ]
+        String line
+        while ( ( line = reader.readLine() ) != null && !line.startsWith( 'OK' ) ) {
+            checkResponse( line, 'bundles' )
+            def parts = line.split( '\t', 3 )
+            def fileName = parts[ 2 ].replaceAll( '/+$', '' ).split( '[/\\\\]' ).last()
+            result[ fileName ] = parts[ 0 ]
+        }
+        result
+    }
+
+    private String command( Object... args ) {
+        writer.println( args.join( '\t' ) )
+        def response = reader.readLine()
+        checkResponse( response, args[ 0 ] )
+        response.substring( 'OK'.length() ).trim()
+    }
+
+    private static void checkResponse( String response, command ) {
+        if ( response == null ) {
+            throw new GradleException( "OSGi daemon closed the connection during command '$command'" )
+        }
+        if ( response.startsWith( 'ERROR' ) ) {
+            throw new GradleException( "OSGi daemon could not execute command '$command': " +
+                    response.substring( 'ERROR'.length() ).trim() )
+        }
+    }
+
+    @Override
+    void close() {
+        try {
+            writer.println( 'bye' )
+        } finally {
+            socket.close()
+        }
+    }
+
+}
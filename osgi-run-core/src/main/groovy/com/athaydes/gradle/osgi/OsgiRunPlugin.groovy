@@ -1,11 +1,19 @@
 package com.athaydes.gradle.osgi
 
+import com.athaydes.gradle.osgi.bnd.BundleConsolidator
+import com.athaydes.gradle.osgi.bnd.WrappedBundleCache
 import com.athaydes.gradle.osgi.dependency.DefaultOSGiDependency
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import org.gradle.api.GradleException
+import org.gradle.api.NamedDomainObjectContainer
 import org.gradle.api.Plugin
 import org.gradle.api.Project
 import org.gradle.api.Task
+import org.gradle.api.file.FileCollection
+import org.gradle.api.file.RegularFile
 import org.gradle.api.logging.Logger
 import org.gradle.api.logging.Logging
+import org.gradle.api.provider.Provider
 import org.gradle.api.tasks.Delete
 import org.gradle.api.tasks.bundling.Jar
 
@@ -16,6 +24,8 @@ class OsgiRunPlugin implements Plugin<Project> {
 
     static final Logger log = Logging.getLogger( OsgiRunPlugin )
     static final WRAP_EXTENSION = 'wrapInstructions'
+    static final RUNTIMES_EXTENSION = 'runtimes'
+    static final String BUNDLE_STORE = 'bundle-store'
 
     @Override
     void apply( Project project ) {
@@ -37,17 +47,42 @@ class OsgiRunPlugin implements Plugin<Project> {
             String target = CreateOsgiRuntimeTask.getTarget( project, osgiConfig )
             osgiConfig.outDirFile = target as File
 
-            configMainDeps( project, osgiConfig )
+            configMainDeps( project, osgiConfig, 'osgiMain' )
+
+            Map<String, String> runtimeByTarget = [ ( target ): 'default' ]
+            runtimesOf( osgiConfig ).each { NamedOsgiConfig runtime ->
+                ConfigurationsCreator.configBundles( project, runtime )
+
+                String runtimeTarget = CreateOsgiRuntimeTask.getTarget( project, runtime )
+                def other = runtimeByTarget.put( runtimeTarget, runtime.name )
+                if ( other ) {
+                    throw new GradleException( "OSGi runtimes '$other' and '${runtime.name}' have the same " +
+                            "outDir: $runtimeTarget" )
+                }
+                runtime.outDirFile = runtimeTarget as File
+
+                configMainDeps( project, runtime, "osgiMain${runtime.taskSuffix}" )
+            }
         }
     }
 
     static void createTasks( Project project, OsgiConfig osgiConfig ) {
+        // the runtime is resolved lazily, only once, and shared by all tasks
+        def runtimeModel = new OsgiRuntimeModel( project )
+
+        configureRuntimeTasks( project, osgiConfig )
+
         Task createBundlesDir = project.task(
                 type: CreateBundlesDir,
                 group: 'Build',
                 description:
                         'Copies all configured OSGi bundles into the bundles directory',
-                'createBundlesDir' )
+                'createBundlesDir' ) {
+            it.runtimeModel = runtimeModel
+            it.bundleArtifacts.from( runtimeModel.declaredFiles )
+            it.consolidationReportFile.convention(
+                    project.layout.buildDirectory.file( 'reports/osgi-run/consolidation.txt' ) )
+        }
 
         Task createOsgiRuntimeTask = project.task(
                 type: CreateOsgiRuntimeTask,
@@ -55,17 +90,85 @@ class OsgiRunPlugin implements Plugin<Project> {
                 group: 'Build',
                 description:
                         'Creates an OSGi environment which can then be started with generated scripts or with task runOsgi',
-                'createOsgiRuntime' )
+                'createOsgiRuntime' ) {
+            it.runtimeModel = runtimeModel
+            it.manifestCopies.set( project.provider { ManifestFileCopier.manifestCopies( osgiConfig ) } )
+        }
+
+        Task prewarmTask = project.task(
+                type: PrewarmOsgiRuntimeTask,
+                dependsOn: createOsgiRuntimeTask,
+                group: 'Build',
+                description:
+                        'Installs all bundles into the OSGi framework storage so that the runtime starts faster',
+                'prewarmOsgiRuntime' ) {
+            it.runtimeModel = runtimeModel
+        }
 
-        createOsgiRuntimeTask.doLast { ManifestFileCopier.run( project, osgiConfig ) }
+        // with the prewarm option, the framework configuration only works once the storage area has been filled
+        def prewarmIfEnabled = { osgiConfig.prewarm ? prewarmTask : [ ] }
+
+        project.task(
+                type: ResolveOsgiRuntimeTask,
+                dependsOn: createOsgiRuntimeTask,
+                group: 'Verification',
+                description:
+                        'Resolves all bundles of the OSGi environment, reporting bundles which would fail to resolve',
+                'resolveOsgiRuntime' ) {
+            it.reportFile.convention( project.layout.buildDirectory.file( 'reports/osgi-run/resolution.txt' ) )
+        }
+
+        project.task(
+                type: CreateCdsArchiveTask,
+                dependsOn: createOsgiRuntimeTask,
+                group: 'Build',
+                description:
+                        'Creates a class data sharing archive so that the OSGi runtime starts faster',
+                'createOsgiCdsArchive' ) {
+            // the archive must be created with the runtime in its final state
+            it.dependsOn prewarmIfEnabled
+            it.mustRunAfter prewarmTask
+        }
 
         project.task(
+                type: CreateRuntimeArchiveTask,
+                dependsOn: createOsgiRuntimeTask,
+                group: 'Build',
+                description: 'Packs the OSGi environment into a single executable jar',
+                'osgiRuntimeArchive' ) {
+            it.dependsOn prewarmIfEnabled
+            it.mustRunAfter prewarmTask
+            it.archiveFile.convention( runtimeArchiveOf( project, osgiConfig ) )
+        }
+
+        RunOsgiTask runOsgiTask = project.task(
                 type: RunOsgiTask,
                 dependsOn: createOsgiRuntimeTask,
                 group: 'Run',
                 description:
                         'Runs the OSGi environment, installing and starting the configured bundles',
-                'runOsgi' )
+                'runOsgi' ) {
+            it.dependsOn prewarmIfEnabled
+            it.runtimeModel = runtimeModel
+            it.projectJars.from( project.provider { projectJars( project, osgiConfig ) } )
+        }
+
+        Map<RunOsgiTask, OsgiConfig> runTasks = [ ( runOsgiTask ): osgiConfig ]
+
+        // watching requires the control bundle, so the OSGi runtime must be created in daemon mode
+        project.gradle.taskGraph.whenReady { graph ->
+            runTasks.each { RunOsgiTask task, OsgiConfig config ->
+                if ( graph.hasTask( task ) && task.watch ) {
+                    config.daemon = true
+                }
+            }
+        }
+
+        project.task(
+                type: StopOsgiDaemonTask,
+                group: 'Run',
+                description: 'Stops the OSGi environment started by the runOsgi task in daemon mode',
+                'stopOsgiDaemon' )
 
         Task cleanTask = project.task(
                 type: Delete,
@@ -82,12 +185,213 @@ class OsgiRunPlugin implements Plugin<Project> {
         }
 
         addTaskDependencies( project, createBundlesDir, cleanTask )
+
+        createNamedRuntimeTasks( project, osgiConfig, runTasks, cleanTask )
+    }
+
+    /**
+     * Create the tasks of each runtime declared in the runtimes block of the runOsgi extension.
+     *
+     * The artifacts of all named runtimes are resolved and processed (copied or wrapped) only once, into the
+     * bundle store. Each runtime's createBundlesDir task then materializes the bundles it needs from the store.
+     * The tasks of different runtimes do not depend on each other, so Gradle may create the runtimes in parallel.
+     */
+    static void createNamedRuntimeTasks( Project project, OsgiConfig osgiConfig,
+                                         Map<RunOsgiTask, OsgiConfig> runTasks, Task cleanTask ) {
+        def runtimes = runtimesOf( osgiConfig )
+        def storeParent = project.layout.buildDirectory.dir( 'osgi-run' )
+        def storeDir = storeParent.map { it.dir( BUNDLE_STORE ) }
+
+        // the store is only created with the first runtime
+        Task storeTask = null
+        Task createAllTask = null
+
+        runtimes.all { NamedOsgiConfig runtime ->
+            if ( !storeTask ) {
+                def storeModel = OsgiRuntimeModel.union( project, project.provider {
+                    runtimes.collect { ConfigurationsCreator.prefixOf( it ) }
+                } )
+
+                storeTask = project.task(
+                        type: CreateBundlesDir,
+                        group: 'Build',
+                        description: 'Processes the bundles of all named OSGi runtimes into the bundle store',
+                        'createBundleStore' ) {
+                    it.runtimeModel = storeModel
+                    it.bundleArtifacts.from( storeModel.declaredFiles )
+                    it.runtimeConfig.set( project.provider {
+                        bundleStoreConfig( osgiConfig, runtimes, storeDir.get().asFile )
+                    } )
+                    it.targetDir.set( storeParent )
+                }
+                dependOnJars( project, storeTask )
+                cleanTask.delete( storeDir )
+
+                createAllTask = project.task(
+                        group: 'Build',
+                        description: 'Creates all named OSGi runtimes',
+                        'createOsgiRuntimes' )
+            }
+
+            def suffix = runtime.taskSuffix
+            def mainConfiguration = "osgiMain$suffix"
+            project.configurations.create( mainConfiguration )
+
+            def runtimeModel = new OsgiRuntimeModel( project, ConfigurationsCreator.prefixOf( runtime ) )
+
+            Task createBundlesDir = project.task(
+                    type: CreateBundlesDir,
+                    dependsOn: storeTask,
+                    group: 'Build',
+                    description: "Copies the bundles of the ${runtime.name} OSGi runtime from the bundle store " +
+                            'into its bundles directory',
+                    "createBundlesDir$suffix" ) {
+                configureRuntime( project, it, runtime, mainConfiguration )
+                it.runtimeModel = runtimeModel
+                it.bundleArtifacts.from( runtimeModel.declaredFiles )
+                it.bundleStoreDir.set( storeDir )
+                it.storedBundles.from( project.fileTree( storeDir ).include( '*.jar' ).builtBy( storeTask ) )
+                it.consolidationReportFile.convention(
+                        project.layout.buildDirectory.file( "reports/osgi-run/consolidation-${runtime.name}.txt" ) )
+            }
+
+            Task createOsgiRuntimeTask = project.task(
+                    type: CreateOsgiRuntimeTask,
+                    dependsOn: createBundlesDir,
+                    group: 'Build',
+                    description: "Creates the ${runtime.name} OSGi environment",
+                    "createOsgiRuntime$suffix" ) {
+                configureRuntime( project, it, runtime, mainConfiguration )
+                it.runtimeModel = runtimeModel
+                it.manifestCopies.set( project.provider { ManifestFileCopier.manifestCopies( runtime ) } )
+            }
+            createAllTask.dependsOn createOsgiRuntimeTask
+
+            RunOsgiTask runTask = project.task(
+                    type: RunOsgiTask,
+                    dependsOn: createOsgiRuntimeTask,
+                    group: 'Run',
+                    description: "Runs the ${runtime.name} OSGi environment",
+                    "run$suffix" ) {
+                configureRuntime( project, it, runtime, mainConfiguration )
+                it.runtimeModel = runtimeModel
+                it.projectJars.from( project.provider { projectJars( project, runtime ) } )
+            }
+            runTasks[ runTask ] = runtime
+
+            project.task(
+                    type: CreateRuntimeArchiveTask,
+                    dependsOn: createOsgiRuntimeTask,
+                    group: 'Build',
+                    description: "Packs the ${runtime.name} OSGi environment into a single executable jar",
+                    "osgiRuntimeArchive$suffix" ) {
+                configureRuntime( project, it, runtime, mainConfiguration )
+                it.archiveFile.convention( runtimeArchiveOf( project, runtime ) )
+            }
+
+            cleanTask.delete( { CreateOsgiRuntimeTask.getTarget( project, runtime ) } )
+        }
+    }
+
+    /**
+     * @return the configuration of the createBundleStore task. Only the artifacts which are excluded from all
+     * runtimes can be excluded from the store.
+     */
+    private static OsgiConfig bundleStoreConfig( OsgiConfig osgiConfig, Collection<NamedOsgiConfig> runtimes,
+                                                 File storeDir ) {
+        def config = osgiConfig.forExecution( storeDir.parentFile )
+        config.bundlesPath = storeDir.name
+        // each runtime consolidates its own bundles
+        config.bundleConsolidation = BundleConsolidator.NONE
+        config.excludedBundles = runtimes.collect { runtime ->
+            ( runtime.excludedBundles as List ).collect { it.toString() }
+        }.inject { a, b -> a.intersect( b ) } ?: [ ]
+        config
+    }
+
+    /**
+     * @return the default location of the archive of the runtime, named after its directory
+     */
+    private static Provider<RegularFile> runtimeArchiveOf( Project project, OsgiConfig osgiConfig ) {
+        project.layout.buildDirectory.file( project.provider {
+            "distributions/${( CreateOsgiRuntimeTask.getTarget( project, osgiConfig ) as File ).name}.jar".toString()
+        } )
+    }
+
+    static NamedDomainObjectContainer<NamedOsgiConfig> runtimesOf( OsgiConfig osgiConfig ) {
+        osgiConfig[ RUNTIMES_EXTENSION ] as NamedDomainObjectContainer<NamedOsgiConfig>
+    }
+
+    /**
+     * Configure the properties shared by all tasks which work on the OSGi runtime. By default, tasks work on the
+     * default runtime (see {@link #configureRuntime}).
+     *
+     * The wrap instructions are shared by all runtimes, as their bundles are wrapped only once.
+     */
+    static void configureRuntimeTasks( Project project, OsgiConfig osgiConfig ) {
+        project.tasks.withType( AbstractOsgiRuntimeTask ).configureEach { task ->
+            configureRuntime( project, task, osgiConfig, 'osgiMain' )
+            task.wrapInstructions.set( project.provider {
+                ( osgiConfig[ WRAP_EXTENSION ] as WrapInstructionsConfig ).copy()
+            } )
+            task.metadataIndexFile.set( project.layout.file( project.provider {
+                BundleMetadataIndex.defaultLocation( project.buildDir )
+            } ) )
+            task.wrappedBundleCacheDir.set( WrappedBundleCache.defaultLocation( project.gradle.gradleUserHomeDir ) )
+            task.rootDir.set( project.rootDir )
+        }
+    }
+
+    /**
+     * Make the task work on the runtime with the given configuration.
+     *
+     * The configuration is copied whenever the task uses it, or once when the configuration cache entry is stored,
+     * so it may still be changed while the task graph is built (e.g. runOsgi --watch turns on daemon mode).
+     */
+    static void configureRuntime( Project project, AbstractOsgiRuntimeTask task, OsgiConfig osgiConfig,
+                                  String mainConfiguration ) {
+        def target = project.provider { CreateOsgiRuntimeTask.getTarget( project, osgiConfig ) as File }
+
+        task.runtimeConfig.set( project.provider { osgiConfig.forExecution( target.get() ) } )
+        task.targetDir.set( project.layout.dir( target ) )
+        task.mainJars.setFrom( project.configurations.named( mainConfiguration ) )
+    }
+
+    /**
+     * @return this project and the projects it uses as bundles
+     */
+    private static List<Project> bundleProjects( Project project, OsgiConfig osgiConfig ) {
+        def allProjectDeps = ConfigurationsCreator.allRuntimeDependencies( project, osgiConfig ).findAll {
+            it instanceof Project
+        } as List<Project>
+
+        allProjectDeps + project
+    }
+
+    /**
+     * @return the jars produced by this project and by the projects it uses as bundles
+     */
+    private static List<FileCollection> projectJars( Project project, OsgiConfig osgiConfig ) {
+        def projects = bundleProjects( project, osgiConfig )
+
+        log.debug "Jars of the following projects may be watched by the runOsgi task: {}", projects*.name
+
+        List<FileCollection> result = [ ]
+        projects.each { dep ->
+            dep.tasks.withType( Jar ) { Jar jar ->
+                result << jar.outputs.files
+            }
+        }
+        result
     }
 
     static OsgiConfig createExtensions( Project project ) {
         def osgiConfig = project.extensions.create( 'runOsgi', OsgiConfig )
         osgiConfig.extensions.create(
                 WRAP_EXTENSION, WrapInstructionsConfig )
+        osgiConfig.extensions.add( RUNTIMES_EXTENSION, project.container( NamedOsgiConfig ) { String name ->
+            new NamedOsgiConfig( name )
+        } )
         return osgiConfig
     }
 
@@ -105,10 +409,8 @@ class OsgiRunPlugin implements Plugin<Project> {
     static void addTaskDependencies( Project project,
                                      Task createBundlesdir,
                                      Task cleanTask ) {
+        dependOnJars( project, createBundlesdir )
         project.allprojects {
-            it.tasks.withType( Jar ) { jarTask ->
-                createBundlesdir.dependsOn jarTask
-            }
             it.tasks.withType( Delete ) { delTask ->
                 if ( delTask.name == 'clean' ) {
                     delTask.dependsOn cleanTask
@@ -117,16 +419,27 @@ class OsgiRunPlugin implements Plugin<Project> {
         }
     }
 
-    private static void configMainDeps( Project project, OsgiConfig osgiConfig ) {
-        def hasOsgiMainDeps = !project.configurations.osgiMain.dependencies.empty
+    /**
+     * Make the task depend on the jar tasks of all projects, as any of them may be used as a bundle.
+     */
+    static void dependOnJars( Project project, Task task ) {
+        project.allprojects {
+            it.tasks.withType( Jar ) { jarTask ->
+                task.dependsOn jarTask
+            }
+        }
+    }
+
+    private static void configMainDeps( Project project, OsgiConfig osgiConfig, String configurationName ) {
+        def hasOsgiMainDeps = !project.configurations.getByName( configurationName ).dependencies.empty
         if ( !hasOsgiMainDeps ) {
             assert osgiConfig.osgiMain, 'No osgiMain provided, cannot create OSGi runtime'
             if (osgiConfig.osgiMain instanceof URI) {
                 log.debug( 'Skipping adding osgiMain dependency for URI, will download directly: {}',
                         osgiConfig.osgiMain as URI )
             } else {
-                log.debug( 'Adding dependency to osgiMain configuration: {}', osgiConfig.osgiMain.toString() )
-                project.dependencies.add( 'osgiMain', osgiConfig.osgiMain ) {
+                log.debug( 'Adding dependency to {} configuration: {}', configurationName, osgiConfig.osgiMain.toString() )
+                project.dependencies.add( configurationName, osgiConfig.osgiMain ) {
                     transitive = false
                 }
             }
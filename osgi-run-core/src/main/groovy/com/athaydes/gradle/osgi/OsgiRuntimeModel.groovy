@@ -0,0 +1,225 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.dependency.DefaultOSGiDependency
+import groovy.transform.Immutable
+import org.gradle.api.Project
+import org.gradle.api.artifacts.Configuration
+import org.gradle.api.artifacts.ModuleDependency
+import org.gradle.api.artifacts.ProjectDependency
+import org.gradle.api.file.FileCollection
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+import org.gradle.api.provider.Provider
+
+/**
+ * Resolved model of the artifacts of an OSGi runtime.
+ *
+ * Each bundle declaration has its own configuration (see {@link ConfigurationsCreator}) so that no conflict
+ * resolution happens between them. This model resolves all of those configurations, as well as the system libs,
+ * only once, the first time any of its properties is used, so that all tasks can share the results.
+ *
+ * The model does not refer to the project, so it can be stored by the configuration cache together with the tasks.
+ * In that case, each task gets its own copy of the model.
+ */
+class OsgiRuntimeModel {
+
+    static final Logger log = Logging.getLogger( OsgiRuntimeModel )
+
+    /**
+     * An artifact which is part of the OSGi runtime.
+     */
+    @Immutable( knownImmutableClasses = [ File ] )
+    static class RuntimeArtifact {
+        File file
+
+        /**
+         * Index of the bundle declaration this artifact was resolved from.
+         */
+        int declarationIndex
+
+        /**
+         * The start level of the bundle declaration, or null if none was given.
+         */
+        Integer startLevel
+
+        boolean transitive
+        boolean fromProject
+    }
+
+    /**
+     * A bundle declaration, whose files are only resolved when needed.
+     */
+    @Immutable( knownImmutables = [ 'files' ] )
+    static class Declaration {
+        int index
+        Integer startLevel
+        boolean transitive
+        boolean fromProject
+        FileCollection files
+    }
+
+    private final Provider<List<Declaration>> declarations
+    private final FileCollection systemLib
+
+    private List<RuntimeArtifact> artifacts
+    private List<File> systemLibFiles
+    private long resolutionMillis
+
+    /**
+     * Create the model of the default runtime of the given project. The bundle declarations are only looked up once
+     * the model is first used, by which time the project must have been evaluated.
+     */
+    OsgiRuntimeModel( Project project ) {
+        this( project, ConfigurationsCreator.OSGI_DEP_PREFIX )
+    }
+
+    /**
+     * Create the model of the runtime whose bundle declarations have configurations with the given prefix
+     * (see {@link ConfigurationsCreator#prefixOf(OsgiConfig)}).
+     */
+    OsgiRuntimeModel( Project project, String prefix ) {
+        this( project.provider { declarationsOf( project, prefix ) }, project.files( project.configurations.systemLib ) )
+    }
+
+    OsgiRuntimeModel( Provider<List<Declaration>> declarations, FileCollection systemLib ) {
+        this.declarations = declarations
+        this.systemLib = systemLib
+    }
+
+    /**
+     * @return all artifacts of all bundle declarations, in declaration order
+     */
+    synchronized List<RuntimeArtifact> getArtifacts() {
+        if ( artifacts == null ) {
+            artifacts = resolveArtifacts()
+        }
+        artifacts
+    }
+
+    /**
+     * @return all files of the systemLib configuration
+     */
+    synchronized List<File> getSystemLibFiles() {
+        if ( systemLibFiles == null ) {
+            long startTime = System.currentTimeMillis()
+            systemLibFiles = systemLib.files.toList()
+            resolutionMillis += System.currentTimeMillis() - startTime
+        }
+        systemLibFiles
+    }
+
+    /**
+     * @return the time spent resolving the artifacts and system libs so far
+     */
+    synchronized long getResolutionMillis() {
+        resolutionMillis
+    }
+
+    /**
+     * @return the files of all bundle declarations, which are resolved only when the provided collections are used
+     */
+    Provider<List<FileCollection>> getDeclaredFiles() {
+        declarations.map { List<Declaration> all -> all*.files }
+    }
+
+    /**
+     * @return the files of each bundle declaration, in declaration order
+     */
+    List<Set<File>> getFilesByDeclaration() {
+        def result = [ ] as List<Set<File>>
+        for ( artifact in getArtifacts() ) {
+            while ( result.size() <= artifact.declarationIndex ) {
+                result << new LinkedHashSet<File>()
+            }
+            result[ artifact.declarationIndex ] << artifact.file
+        }
+        result
+    }
+
+    /**
+     * @return the start level of each artifact by file name. Later declarations win.
+     */
+    Map<String, Integer> getStartLevelByName() {
+        Map<String, Integer> result = [ : ]
+        for ( artifact in getArtifacts() ) {
+            result[ artifact.file.name ] = artifact.startLevel
+        }
+        result
+    }
+
+    private List<RuntimeArtifact> resolveArtifacts() {
+        def all = declarations.get()
+
+        // Gradle only allows configurations to be resolved from its own threads, but it downloads
+        // the artifacts of each configuration in parallel
+        long startTime = System.currentTimeMillis()
+
+        List<RuntimeArtifact> result = [ ]
+        for ( declaration in all ) {
+            for ( file in declaration.files ) {
+                result << new RuntimeArtifact( file, declaration.index, declaration.startLevel,
+                        declaration.transitive, declaration.fromProject )
+            }
+        }
+
+        resolutionMillis += System.currentTimeMillis() - startTime
+        log.info( 'Resolved {} artifacts of {} bundle declarations in {} ms',
+                result.size(), all.size(), System.currentTimeMillis() - startTime )
+
+        result
+    }
+
+    /**
+     * Create the model of all artifacts of the given runtimes, each of which is only resolved once as the
+     * runtimes' configurations are shared with their own models.
+     *
+     * @param project the runtimes belong to
+     * @param prefixes of the configurations of each runtime's bundle declarations
+     * @return model of the union of the runtimes
+     */
+    static OsgiRuntimeModel union( Project project, Provider<List<String>> prefixes ) {
+        new OsgiRuntimeModel( prefixes.map { List<String> all ->
+            List<Declaration> result = [ ]
+            for ( prefix in all ) {
+                for ( declaration in declarationsOf( project, prefix ) ) {
+                    result << new Declaration( result.size(), declaration.startLevel, declaration.transitive,
+                            declaration.fromProject, declaration.files )
+                }
+            }
+            result
+        }, project.files( project.configurations.systemLib ) )
+    }
+
+    /**
+     * @return the bundle declarations of the default runtime of the project, in declaration order,
+     * without resolving them
+     */
+    static List<Declaration> declarationsOf( Project project ) {
+        declarationsOf( project, ConfigurationsCreator.OSGI_DEP_PREFIX )
+    }
+
+    /**
+     * @return the bundle declarations whose configurations have the given prefix, in declaration order,
+     * without resolving them
+     */
+    static List<Declaration> declarationsOf( Project project, String prefix ) {
+        def configurations = project.configurations.findAll {
+            it.name.startsWith( prefix )
+        }.sort { declarationIndexOf( it, prefix ) }
+
+        configurations.collect { conf ->
+            // each configuration has a single dependency, the bundle declaration
+            def dependency = conf.dependencies.find()
+            Integer startLevel = dependency instanceof DefaultOSGiDependency ? dependency.startLevel : null
+            boolean transitive = dependency instanceof ModuleDependency ? dependency.transitive : true
+            boolean fromProject = dependency instanceof ProjectDependency
+
+            new Declaration( declarationIndexOf( conf, prefix ), startLevel, transitive, fromProject, project.files( conf ) )
+        }
+    }
+
+    private static int declarationIndexOf( Configuration configuration, String prefix ) {
+        configuration.name.substring( prefix.length() ) as int
+    }
+
+}
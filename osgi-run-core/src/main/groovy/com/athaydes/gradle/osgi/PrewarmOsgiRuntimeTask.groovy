@@ -0,0 +1,225 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.config.FelixConfigGenerator
+import com.athaydes.gradle.osgi.config.KnopflerfishConfigGenerator
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import com.athaydes.gradle.osgi.util.SupportBundles
+import org.gradle.api.GradleException
+import org.gradle.api.file.FileCollection
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+import org.gradle.api.model.ObjectFactory
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+import org.gradle.process.ExecOperations
+
+import javax.inject.Inject
+
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.DEFAULT_START_LEVEL
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.SUPPORT_DIR
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.getConfigFile
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.getSystemLibs
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.relativePath
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.startLevels
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.startupSupportBundles
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.supportBundle
+
+/**
+ * The prewarmOsgiRuntime task.
+ *
+ * Installs and resolves all bundles of the OSGi runtime created by the createOsgiRuntime task into the framework's
+ * storage area, without starting any of them.
+ *
+ * This task only runs with the prewarm option, in which case the createOsgiRuntime task generates a framework
+ * configuration which starts the framework from that storage area instead of installing all bundles again
+ * (see {@link com.athaydes.gradle.osgi.config.OsgiConfigContext#useStorage}).
+ */
+abstract class PrewarmOsgiRuntimeTask extends AbstractOsgiRuntimeTask {
+
+    static final Logger log = Logging.getLogger( PrewarmOsgiRuntimeTask )
+    static final String PREWARM_JAR = 'osgi-run-prewarm'
+    static final String PREWARM_MAIN = 'com.athaydes.gradle.osgi.support.prewarm.PrewarmLauncher'
+    static final String STORAGE_PROPERTY = 'org.osgi.framework.storage'
+    static final String PLAN_FILE = 'prewarm-plan.properties'
+
+    /**
+     * The resolved OSGi runtime, shared with the other tasks.
+     */
+    @Internal
+    OsgiRuntimeModel runtimeModel
+
+    PrewarmOsgiRuntimeTask() {
+        // the storage area is written by the framework, so it cannot be an output of this task
+        outputs.upToDateWhen {
+            PrewarmOsgiRuntimeTask task = it as PrewarmOsgiRuntimeTask
+            PrewarmOsgiRuntimeTask.storageDirFor( task.target, task.osgiConfig ).directory
+        }
+    }
+
+    @Inject
+    abstract ExecOperations getExecOperations()
+
+    @Inject
+    abstract ObjectFactory getObjects()
+
+    /**
+     * @return the framework configuration and all jars installed into the storage area
+     */
+    @InputFiles
+    @PathSensitive( PathSensitivity.RELATIVE )
+    FileCollection getRuntimeFiles() {
+        objects.fileTree().from( target )
+                .include( "${osgiConfig.bundlesPath}/*.jar".toString(), "${SUPPORT_DIR}/*.jar".toString(),
+                        "${CreateOsgiRuntimeTask.SYSTEM_LIBS}/*.jar".toString() ) +
+                objects.fileCollection().from( getConfigFile( target, osgiConfig ) ?: [ ] )
+    }
+
+    /**
+     * @return the bundles installed into the storage area and the framework properties they were installed with
+     */
+    @OutputFile
+    File getPlanFile() {
+        new File( target, PLAN_FILE )
+    }
+
+    @TaskAction
+    void prewarm() {
+        def osgiConfig = getOsgiConfig()
+        String target = getTarget()
+        def configFile = getConfigFile( target, osgiConfig )
+
+        if ( !osgiConfig.prewarm ) {
+            throw new GradleException( 'Cannot pre-warm the OSGi runtime unless its configuration starts the ' +
+                    'framework from the storage area, set runOsgi.prewarm = true' )
+        }
+
+        if ( !configFile?.exists() ) {
+            throw new GradleException( "Cannot pre-warm OSGi runtime with configSettings = " +
+                    "'${osgiConfig.configSettings}', run the createOsgiRuntime task first" )
+        }
+
+        def storageDir = storageDirFor( target, osgiConfig )
+        cleanStorage( storageDir, configFile )
+
+        // the launcher is not part of the OSGi runtime
+        def prewarmJar = new File( temporaryDir, "${PREWARM_JAR}.jar" )
+        SupportBundles.extract( PREWARM_JAR, prewarmJar )
+
+        def metadataIndex = loadMetadataIndex()
+
+        def plan = new Properties()
+        frameworkProperties( configFile, osgiConfig ).each { key, value ->
+            plan.setProperty( "framework.$key", value )
+        }
+        plan.setProperty( "framework.$STORAGE_PROPERTY", storageDir.absolutePath )
+
+        def bundles = bundlesToInstall( target, osgiConfig, configFile, metadataIndex )
+        bundles.eachWithIndex { Map bundle, int i ->
+            bundle.each { key, value ->
+                if ( value != null ) plan.setProperty( "bundle.${i}.$key", value.toString() )
+            }
+        }
+        metadataIndex.save()
+
+        def planFile = getPlanFile()
+        planFile.withWriter( 'UTF-8' ) { writer -> plan.store( writer, 'osgi-run pre-warm plan' ) }
+
+        log.info( 'Pre-warming {} bundles into {}', bundles.size(), storageDir )
+
+        def systemLibJars = getSystemLibs( target ).listFiles()?.findAll { it.name.endsWith( '.jar' ) } ?: [ ]
+
+        execOperations.javaexec {
+            it.classpath( systemLibJars + prewarmJar )
+            it.mainClass.set( PREWARM_MAIN )
+            it.args( planFile.absolutePath )
+            it.workingDir( target )
+        }
+    }
+
+    static File storageDirFor( String target, OsgiConfig osgiConfig ) {
+        switch ( osgiConfig.configSettings ) {
+            case 'felix': return new File( target, FelixConfigGenerator.STORAGE_DIR )
+            // Equinox keeps its storage in the configuration area, together with config.ini
+            case 'equinox': return getConfigFile( target, osgiConfig ).parentFile
+            case 'knopflerfish': return new File( target, KnopflerfishConfigGenerator.STORAGE_DIR )
+        }
+        throw new GradleException( "The OSGi runtime cannot be pre-warmed with configSettings = " +
+                "'${osgiConfig.configSettings}'" )
+    }
+
+    private static void cleanStorage( File storageDir, File configFile ) {
+        storageDir.listFiles()?.each { File file ->
+            if ( file != configFile ) {
+                file.directory ? file.deleteDir() : file.delete()
+            }
+        }
+    }
+
+    private static Map<String, String> frameworkProperties( File configFile, OsgiConfig osgiConfig ) {
+        Map<String, String> result = [ : ]
+        if ( osgiConfig.configSettings == 'knopflerfish' ) {
+            configFile.eachLine( 'UTF-8' ) { String line ->
+                def match = line =~ /^\s*-F([^\s=]+)\s*=\s*(.*)$/
+                if ( match ) result[ match.group( 1 ) ] = match.group( 2 ).trim()
+            }
+        } else {
+            def properties = new Properties()
+            configFile.withReader( 'UTF-8' ) { properties.load( it ) }
+            properties.stringPropertyNames().findAll { String key ->
+                !key.startsWith( 'felix.auto.' ) && key != 'osgi.bundles'
+            }.each { String key -> result[ key ] = properties.getProperty( key ) }
+        }
+        result
+    }
+
+    List<Map> bundlesToInstall( String target, OsgiConfig osgiConfig, File configFile,
+                                BundleMetadataIndex metadataIndex ) {
+        def bundlesDir = new File( "${target}/${osgiConfig.bundlesPath}" )
+        def bundleJars = bundlesDir.listFiles( { dir, name -> name ==~ /.+\.jar/ } as FilenameFilter )
+                ?.sort { it.name } ?: [ ]
+
+        def startLevelByName = startLevels( target, osgiConfig, runtimeModel )
+        def anyStartLevel = startLevelByName.values().any { it != null }
+        def properties = osgiConfig.configSettings == 'knopflerfish' ?
+                [ : ] : frameworkProperties( configFile, osgiConfig )
+
+        def location = { File jar ->
+            'file:' + relativePath( target, jar )
+        }
+
+        // mirror the way each framework launcher would install the bundles
+        def startLevelOf = { File jar ->
+            def startLevel = startLevelByName[ jar.name ]
+            switch ( osgiConfig.configSettings ) {
+                case 'felix':
+                    return anyStartLevel ? ( startLevel ?: DEFAULT_START_LEVEL ) : null
+                case 'equinox':
+                    return startLevel ?: ( properties[ 'osgi.bundles.defaultStartLevel' ] ?: DEFAULT_START_LEVEL )
+                case 'knopflerfish':
+                    return anyStartLevel ? ( startLevel ?: DEFAULT_START_LEVEL ) : null
+                default:
+                    return null
+            }
+        }
+
+        List<Map> bundles = [ ]
+
+        for ( name in startupSupportBundles( osgiConfig ) ) {
+            def supportJar = supportBundle( target, name )
+            bundles << [ location: location( supportJar ), file: supportJar.absolutePath, startLevel: 1, start: true ]
+        }
+
+        for ( jar in bundleJars ) {
+            def fragment = metadataIndex.get( jar ).fragment
+            bundles << [ location  : location( jar ), file: jar.absolutePath,
+                         startLevel: startLevelOf( jar ), start: !fragment ]
+        }
+
+        bundles
+    }
+
+}
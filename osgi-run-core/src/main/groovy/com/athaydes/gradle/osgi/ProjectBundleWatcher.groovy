@@ -0,0 +1,120 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.bnd.WrappedBundleCache
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import com.athaydes.gradle.osgi.util.FileMaterializer
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.FileSystems
+import java.nio.file.Path
+import java.nio.file.WatchKey
+import java.nio.file.WatchService
+import java.util.concurrent.TimeUnit
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY
+
+/**
+ * Watches the jars built by the projects which are part of the OSGi runtime, and redeploys them into the
+ * OSGi daemon whenever they change.
+ *
+ * Changes are only processed once no other change happened during the debounce period, so that all jars
+ * produced by one build are deployed together, and all their dependents refreshed only once.
+ */
+class ProjectBundleWatcher {
+
+    static final Logger log = Logging.getLogger( ProjectBundleWatcher )
+    static final long DEBOUNCE_MILLIS = 300
+
+    private final Map<Path, File> jarByPath
+    private final File bundlesDir
+    private final BundleMetadataIndex metadataIndex
+    private final WrapInstructionsConfig wrapInstructions
+    private final WrappedBundleCache wrappedBundleCache
+    private final FileMaterializer materializer
+
+    ProjectBundleWatcher( Collection<File> projectJars, File bundlesDir, BundleMetadataIndex metadataIndex,
+                          WrapInstructionsConfig wrapInstructions, WrappedBundleCache wrappedBundleCache,
+                          FileMaterializer materializer ) {
+        this.jarByPath = projectJars.collectEntries { [ ( it.toPath().toAbsolutePath() ): it ] }
+        this.bundlesDir = bundlesDir
+        this.metadataIndex = metadataIndex
+        this.wrapInstructions = wrapInstructions
+        this.wrappedBundleCache = wrappedBundleCache
+        this.materializer = materializer
+    }
+
+    /**
+     * Watch the project jars until the current thread is interrupted or the deploy action returns false.
+     *
+     * @param deploy action which deploys the bundles directory into the OSGi runtime,
+     * returning false if the runtime is no longer running
+     */
+    void watch( Closure<Boolean> deploy ) {
+        WatchService watchService = FileSystems.default.newWatchService()
+        try {
+            jarByPath.keySet()*.parent.unique().each { Path dir ->
+                dir.toFile().mkdirs()
+                dir.register( watchService, ENTRY_CREATE, ENTRY_MODIFY )
+            }
+
+            log.lifecycle( 'Watching {} project jar(s) for changes', jarByPath.size() )
+
+            Set<File> pending = [ ]
+            while ( !Thread.currentThread().isInterrupted() ) {
+                WatchKey key = pending ?
+                        watchService.poll( DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS ) :
+                        watchService.take()
+
+                if ( key == null ) {
+                    // nothing changed during the debounce period
+                    def processed = process( pending )
+                    pending.clear()
+                    if ( processed && !deploy() ) {
+                        log.lifecycle( 'OSGi runtime is no longer running, stopped watching' )
+                        return
+                    }
+                    continue
+                }
+
+                def dir = key.watchable() as Path
+                key.pollEvents().each { event ->
+                    def jar = jarByPath[ dir.resolve( event.context() as Path ) ]
+                    if ( jar ) pending << jar
+                }
+                key.reset()
+            }
+        } catch ( InterruptedException | ClosedWatchServiceException ignore ) {
+            // stopped watching
+        } finally {
+            watchService.close()
+        }
+    }
+
+    /**
+     * @return the jars which were processed, not including jars which could not be read
+     */
+    private Set<File> process( Set<File> jars ) {
+        Set<File> processed = [ ]
+        for ( jar in jars ) {
+            if ( !jar.file ) {
+                processed << jar
+                continue
+            }
+            try {
+                log.info( 'Project jar changed: {}', jar )
+                CreateBundlesDir.processArtifact( jar, bundlesDir, metadataIndex, wrapInstructions,
+                        wrappedBundleCache, materializer )
+                processed << jar
+            } catch ( IOException e ) {
+                // the jar may still be being written, it will be processed again once it changes
+                log.info( 'Unable to read {} yet: {}', jar, e.toString() )
+            }
+        }
+        if ( processed ) metadataIndex.save()
+        processed
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.bnd.RuntimeResolver
+import com.athaydes.gradle.osgi.bnd.RuntimeResolver.BundleInfo
+import com.athaydes.gradle.osgi.util.SystemPackageIndex
+import org.gradle.api.GradleException
+import org.gradle.api.file.FileCollection
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+import org.gradle.api.model.ObjectFactory
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+import javax.inject.Inject
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.getSystemLibs
+
+/**
+ * The resolveOsgiRuntime task.
+ *
+ * Resolves all bundles of the OSGi runtime at build time, reporting the bundles which would not resolve
+ * when the framework starts, violated uses constraints and bundles which are not used by any other bundle.
+ */
+abstract class ResolveOsgiRuntimeTask extends AbstractOsgiRuntimeTask {
+
+    static final Logger log = Logging.getLogger( ResolveOsgiRuntimeTask )
+
+    /**
+     * Prefixes of the JDK packages which the frameworks export through the system bundle.
+     * Other packages, such as sun.*, com.sun.* and jdk.*, are JDK internals.
+     */
+    static final List<String> JDK_PACKAGE_PREFIXES = [ 'java.', 'javax.', 'org.' ].asImmutable()
+
+    @Inject
+    abstract ObjectFactory getObjects()
+
+    @InputFiles
+    @PathSensitive( PathSensitivity.NAME_ONLY )
+    FileCollection getBundleJars() {
+        def dir = getBundlesDir()
+        objects.fileCollection().from( { jarsIn( dir ) } )
+    }
+
+    @InputFiles
+    @PathSensitive( PathSensitivity.NAME_ONLY )
+    FileCollection getSystemLibJars() {
+        def dir = getSystemLibs( target )
+        objects.fileCollection().from( { jarsIn( dir ) } )
+    }
+
+    /**
+     * @return the system packages configured by the user, which may include packages provided by the JDK
+     */
+    @Input
+    String getConfiguredSystemPackages() {
+        osgiConfig.config.get( SystemPackageIndex.SYSTEM_PACKAGES_EXTRA, '' ) as String
+    }
+
+    /**
+     * @return the packages of the JDK which runs the OSGi runtime that the framework exports through the system bundle
+     */
+    @Input
+    List<String> getJdkPackages() {
+        jdkPackages( javaHomeOf( RunOsgiTask.javaCmd() ) ).sort()
+    }
+
+    @Input
+    boolean getFailOnError() {
+        osgiConfig.failOnResolutionError
+    }
+
+    @OutputFile
+    abstract RegularFileProperty getReportFile()
+
+    @TaskAction
+    void resolve() {
+        def start = System.currentTimeMillis()
+        def metadataIndex = loadMetadataIndex()
+
+        def systemPackages = new SystemPackageIndex( metadataIndex ).appendExports(
+                jarsIn( getSystemLibs( target ) ), new StringBuilder( configuredSystemPackages ) ).toString()
+        metadataIndex.save()
+
+        List<BundleInfo> bundles = [ ]
+        for ( jar in jarsIn( getBundlesDir() ) ) {
+            def bundle = BundleInfo.read( jar )
+            if ( bundle ) {
+                bundles << bundle
+            } else {
+                log.warn( 'Not a bundle, it will not be installed by the OSGi framework: {}', jar.name )
+            }
+        }
+
+        def report = new RuntimeResolver( bundles, systemPackages, getJdkPackages() ).resolve()
+
+        def reportFile = getReportFile().get().asFile
+        reportFile.parentFile.mkdirs()
+        reportFile.write( report.toString(), 'UTF-8' )
+
+        log.info( 'Resolved OSGi runtime in {} ms', System.currentTimeMillis() - start )
+
+        if ( report.successful ) {
+            log.lifecycle( report.toString() )
+        } else if ( failOnError ) {
+            throw new GradleException( "The OSGi runtime does not resolve:\n$report" )
+        } else {
+            log.warn( report.toString() )
+        }
+    }
+
+    private File getBundlesDir() {
+        new File( target, osgiConfig.bundlesPath )
+    }
+
+    static List<File> jarsIn( File dir ) {
+        dir.listFiles()?.findAll { it.file && it.name.endsWith( '.jar' ) }?.sort { it.name } ?: [ ]
+    }
+
+    static File javaHomeOf( String javaCmd ) {
+        def java = new File( javaCmd )
+        java.absolute ? java.parentFile.parentFile : new File( System.getProperty( 'java.home' ) )
+    }
+
+    /**
+     * @param javaHome home directory of the JDK
+     * @return the packages of the JDK which are exported to all modules and start with one of the
+     * {@link #JDK_PACKAGE_PREFIXES}
+     */
+    static Set<String> jdkPackages( File javaHome ) {
+        def packages = new File( javaHome, 'lib/modules' ).file ?
+                moduleExports( javaHome ) : bootClassPathPackages( javaHome )
+        packages.findAll { String pkg -> JDK_PACKAGE_PREFIXES.any { pkg.startsWith( it ) } } as Set<String>
+    }
+
+    /**
+     * @return the packages which the modules of a Java 9+ JDK export to all modules
+     */
+    private static Set<String> moduleExports( File javaHome ) {
+        Class descriptorClass
+        try {
+            descriptorClass = Class.forName( 'java.lang.module.ModuleDescriptor' )
+        } catch ( ClassNotFoundException ignore ) {
+            log.warn( 'Gradle runs on Java 8, so it cannot read the modules of {}. ' +
+                    'Using the packages of the JDK running Gradle instead.', javaHome )
+            return bootClassPathPackages( new File( System.getProperty( 'java.home' ) ) )
+        }
+
+        Set<String> packages = [ ]
+        FileSystems.newFileSystem( URI.create( 'jrt:/' ), [ 'java.home': javaHome.absolutePath ] ).withCloseable { jrt ->
+            Files.newDirectoryStream( jrt.getPath( '/modules' ) ).withCloseable { modules ->
+                for ( Path module in modules ) {
+                    def moduleInfo = module.resolve( 'module-info.class' )
+                    if ( !Files.isRegularFile( moduleInfo ) ) continue
+                    try {
+                        def descriptor = Files.newInputStream( moduleInfo ).withCloseable { descriptorClass.read( it ) }
+                        descriptor.exports().findAll { !it.qualified }.each { packages << it.source() }
+                    } catch ( RuntimeException e ) {
+                        // InvalidModuleDescriptorException cannot be referred to, as Gradle may run on Java 8
+                        if ( e.class.name != 'java.lang.module.InvalidModuleDescriptorException' ) throw e
+                        // a JDK newer than the one running Gradle, whose java.* modules only contain public APIs
+                        log.debug( 'Cannot read module descriptor {}: {}', moduleInfo, e.toString() )
+                        if ( module.fileName.toString().startsWith( 'java.' ) ) {
+                            packages.addAll( classPackages( module ) )
+                        }
+                    }
+                }
+            }
+        }
+        packages
+    }
+
+    private static Set<String> classPackages( Path module ) {
+        Set<String> packages = [ ]
+        Files.walk( module ).withCloseable { paths ->
+            paths.filter { Path path -> path.fileName?.toString()?.endsWith( '.class' ) }.each { Path path ->
+                def pkg = module.relativize( path.parent )
+                if ( pkg.nameCount > 0 && pkg.toString() ) packages << pkg.toString().replace( '/', '.' )
+            }
+        }
+        packages
+    }
+
+    /**
+     * @return the packages of the classes in the boot class path of a Java 8 JRE
+     */
+    private static Set<String> bootClassPathPackages( File javaHome ) {
+        Set<String> packages = [ ]
+        def lib = [ 'jre/lib', 'lib' ].collect { new File( javaHome, it ) }.find { new File( it, 'rt.jar' ).file }
+        lib?.listFiles()?.findAll { it.file && it.name.endsWith( '.jar' ) }?.each { File jar ->
+            new ZipFile( jar ).withCloseable { ZipFile zip ->
+                zip.entries().each { ZipEntry entry ->
+                    def slash = entry.name.lastIndexOf( '/' )
+                    if ( slash > 0 && entry.name.endsWith( '.class' ) ) {
+                        packages << entry.name.substring( 0, slash ).replace( '/', '.' )
+                    }
+                }
+            }
+        }
+        packages
+    }
+
+}
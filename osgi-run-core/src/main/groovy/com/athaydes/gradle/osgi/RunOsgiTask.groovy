@@ -1,49 +1,169 @@
 package com.athaydes.gradle.osgi
 
 
-import org.gradle.api.DefaultTask
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import com.athaydes.gradle.osgi.util.ConsoleBridge
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.tasks.Internal
 import org.gradle.api.tasks.TaskAction
+import org.gradle.api.tasks.options.Option
 
 import java.util.concurrent.atomic.AtomicBoolean
 
 import static CreateOsgiRuntimeTask.createJavaRunArgs
-import static CreateOsgiRuntimeTask.getTarget
 import static CreateOsgiRuntimeTask.selectMainClass
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.CDS_ARCHIVE
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.cdsArgs
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.getConfigFile
 import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.getSystemLibs
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.startLevels
 
 /**
  * The runOsgi task.
  */
-class RunOsgiTask extends DefaultTask {
+abstract class RunOsgiTask extends AbstractOsgiRuntimeTask {
 
     static log = OsgiRunPlugin.log
+    static final String CONSOLE_LOG = 'logs/console.log'
+    static final int CONSOLE_LOG_BACKUPS = 3
+
+    /**
+     * The resolved OSGi runtime, shared with the other tasks.
+     */
+    @Internal
+    OsgiRuntimeModel runtimeModel
+
+    /**
+     * Whether to keep redeploying the project bundles into the running OSGi runtime whenever they are rebuilt.
+     * Implies daemon mode.
+     */
+    @Internal
+    @Option( option = 'watch', description = 'Keeps redeploying project bundles into the OSGi runtime ' +
+            'running in daemon mode whenever their jars change.' )
+    boolean watch = false
+
+    /**
+     * @return the jars produced by this project and by the projects it uses as bundles
+     */
+    @Internal
+    abstract ConfigurableFileCollection getProjectJars()
 
     @TaskAction
     void run() {
-        def config = project.extensions.getByName( 'runOsgi' ) as OsgiConfig
-
-        log.info "Running project ${project.name}"
+        def config = getOsgiConfig()
+
+        String target = getTarget()
+
+        log.info "Running OSGi runtime in ${target}"
+
+        def metadataIndex = loadMetadataIndex()
+
+        try {
+            if ( config.daemon ) {
+                runDaemon( target, config, metadataIndex )
+                if ( watch ) watchProjectBundles( target, config, metadataIndex )
+            } else {
+                def command = createCommand( target, config, metadataIndex )
+                metadataIndex.save()
+                if ( config.inheritIO ) {
+                    // the process uses the console of the JVM running Gradle directly
+                    new ProcessBuilder( command ).directory( target as File ).inheritIO().start().waitFor()
+                } else {
+                    delegateProcessTo( command.execute( ( List ) null, target as File ), target, config )
+                }
+            }
+        } finally {
+            metadataIndex.save()
+        }
+    }
 
-        String target = getTarget( project, config )
+    private List<String> createCommand( String target, OsgiConfig config, BundleMetadataIndex metadataIndex,
+                                        List<String> extraJavaArgs = [ ] ) {
         def systemLibs = getSystemLibs( target )
-        def mainClass = selectMainClass( project, systemLibs )
+        def mainClass = selectMainClass( mainJars.files, systemLibs, metadataIndex )
         def separator = File.pathSeparator
         def javaArgs = createJavaRunArgs( target, config, mainClass, separator )
-        def command = "${javaCmd()} ${javaArgs}"
+        def sharingArgs = new File( target, CDS_ARCHIVE ).exists() ? cdsArgs().tokenize() : [ ]
+        List<String> command = [ javaCmd() ] + extraJavaArgs + sharingArgs + javaArgs.tokenize()
+
+        log.info "Running command: ${command.join( ' ' )}"
+        return command
+    }
+
+    private void runDaemon( String target, OsgiConfig config, BundleMetadataIndex metadataIndex ) {
+        def bundleJars = bundleJars( target, config )
+        def configFile = getConfigFile( target, config )
+
+        def daemon = OsgiDaemon.connect( target )
+        if ( daemon ) {
+            daemon.withCloseable {
+                def start = System.currentTimeMillis()
+                def changes = it.redeploy( target, config.bundlesPath, bundleJars, configFile,
+                        startLevels( target, config, runtimeModel ), metadataIndex )
+                log.lifecycle( "Redeployed $changes bundle(s) into the running OSGi runtime " +
+                        "in ${System.currentTimeMillis() - start} ms" )
+            }
+        } else {
+            // the Gogo shell would stop the framework once it finds out there is no console
+            OsgiDaemon.launch( target, createCommand( target, config, metadataIndex,
+                    [ '-Dgosh.args=--nointeractive' ] ) )
+            OsgiDaemon.saveDeployedState( target, bundleJars, configFile, metadataIndex )
+        }
+    }
+
+    private void watchProjectBundles( String target, OsgiConfig config, BundleMetadataIndex metadataIndex ) {
+        def runtimeFiles = runtimeModel.filesByDeclaration.flatten() as Set<File>
+        def projectJars = getProjectJars().files.findAll { it in runtimeFiles }
+
+        if ( !projectJars ) {
+            log.warn 'None of the project jars are part of the OSGi runtime, nothing to watch'
+            return
+        }
 
-        log.info "Running command: ${command}"
+        def wrapInstructions = getWrapInstructions().get()
+        def wrappedBundleCache = createWrappedBundleCache( wrapInstructions )
 
-        def process = command.execute( ( List ) null, config.outDirFile )
+        def watcher = new ProjectBundleWatcher( projectJars, new File( target, config.bundlesPath ), metadataIndex,
+                wrapInstructions, wrappedBundleCache, createMaterializer( config ) )
 
-        delegateProcessTo( process )
+        watcher.watch {
+            def daemon = OsgiDaemon.connect( target )
+            if ( !daemon ) return false
+            daemon.withCloseable {
+                def start = System.currentTimeMillis()
+                def changes = it.redeploy( target, config.bundlesPath, bundleJars( target, config ),
+                        getConfigFile( target, config ), startLevels( target, config, runtimeModel ), metadataIndex )
+                log.lifecycle( "Redeployed $changes bundle(s) in ${System.currentTimeMillis() - start} ms" )
+            }
+            return true
+        }
     }
 
-    private void delegateProcessTo( Process process ) {
+    static List<File> bundleJars( String target, OsgiConfig config ) {
+        new File( target, config.bundlesPath ).listFiles()
+                ?.findAll { it.name.endsWith( '.jar' ) }?.sort { it.name } ?: [ ]
+    }
+
+    private void delegateProcessTo( Process process, String target, OsgiConfig config ) {
         def exit = new AtomicBoolean( false )
-        def line = null;
 
-        consume process.in, exit, System.out
-        consume process.err, exit, System.err
+        def tee = config.consoleLog ? new ConsoleBridge.RotatingLogFile( new File( target, CONSOLE_LOG ),
+                config.consoleLogMaxSizeMb * 1024L * 1024L, CONSOLE_LOG_BACKUPS ) : null
+
+        def onEnd = { exit.set( true ) } as Runnable
+        def pumps = [ ConsoleBridge.pump( process.in, System.out, tee, onEnd ),
+                      ConsoleBridge.pump( process.err, System.err, tee, onEnd ) ]
+
+        try {
+            forwardInput( process, exit )
+        } finally {
+            pumps*.join( 1000 )
+            tee?.close()
+        }
+    }
+
+    private void forwardInput( Process process, AtomicBoolean exit ) {
+        def line = null
 
         def input = System.in.newReader()
 
@@ -82,18 +202,6 @@ class RunOsgiTask extends DefaultTask {
         }
     }
 
-    void consume( InputStream stream, AtomicBoolean exit, PrintStream writer ) {
-        // REALLY low-level code necessary here to fix issue #1 (no output in Windows)
-        Thread.startDaemon {
-            byte[] bytes = new byte[64]
-            while ( !exit.get() ) {
-                def len = stream.read( bytes )
-                if ( len > 0 ) writer.write bytes, 0, len
-                else exit.set( true )
-            }
-        }
-    }
-
     static String javaCmd() {
         def javaHome = System.getenv( 'JAVA_HOME' ) ?: System.getProperty( 'java.home' )
         if ( javaHome ) {
@@ -0,0 +1,27 @@
+package com.athaydes.gradle.osgi
+
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * The stopOsgiDaemon task.
+ *
+ * Stops the OSGi runtime started by the runOsgi task in daemon mode, if it is running.
+ */
+abstract class StopOsgiDaemonTask extends AbstractOsgiRuntimeTask {
+
+    static final Logger log = Logging.getLogger( StopOsgiDaemonTask )
+
+    @TaskAction
+    void stop() {
+        def daemon = OsgiDaemon.connect( target )
+        if ( daemon ) {
+            daemon.withCloseable { it.shutdown() }
+            log.lifecycle( 'OSGi daemon stopped' )
+        } else {
+            log.lifecycle( 'OSGi daemon is not running' )
+        }
+    }
+
+}
@@ -14,8 +14,37 @@ class WrapInstructionsConfig {
 
     boolean enabled = true
     boolean printManifests = false
+
+    /**
+     * Whether to share wrapped bundles with other builds through a cache in the Gradle user home.
+     */
+    boolean useCache = true
+
+    /**
+     * Maximum size of the wrapped bundles cache, in MB.
+     */
+    long cacheMaxSizeMb = 512
+
     Map<Object, Map<String, Object[]>> manifests = [ : ]
 
+    /**
+     * @return a description of all instructions which affect the wrapped bundles
+     */
+    String getDescription() {
+        def instructions = manifests.collect { regx, Map<String, Object[]> config ->
+            "$regx -> " + config.collect { name, args -> "$name=${args.toList()}" }.join( ', ' )
+        }
+        "enabled=$enabled; " + instructions.join( '; ' )
+    }
+
+    /**
+     * @return copy of this configuration, for the tasks to use while they run
+     */
+    WrapInstructionsConfig copy() {
+        new WrapInstructionsConfig( enabled: enabled, printManifests: printManifests, useCache: useCache,
+                cacheMaxSizeMb: cacheMaxSizeMb, manifests: new LinkedHashMap<>( manifests ) )
+    }
+
     def manifest( regx, Closure config ) {
         manifests[ regx ] = [ : ]
         config.metaClass {
@@ -5,14 +5,14 @@ import aQute.bnd.osgi.Jar
 import aQute.bnd.version.MavenVersion
 import aQute.bnd.version.Version
 import com.athaydes.gradle.osgi.WrapInstructionsConfig
+import com.athaydes.gradle.osgi.util.BundleMetadata
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
 import com.athaydes.gradle.osgi.util.JarUtils
 import org.gradle.api.logging.Logger
 import org.gradle.api.logging.Logging
 
+import java.util.jar.JarFile
 import java.util.jar.Manifest
-import java.util.zip.ZipEntry
-import java.util.zip.ZipFile
-import java.util.zip.ZipOutputStream
 
 /**
  * Uses Bnd to wrap a jar.
@@ -21,13 +21,30 @@ class BndWrapper {
 
     static final Logger log = Logging.getLogger( BndWrapper )
 
-    static void wrapNonBundle( File jarFile, String bundlesDir,
-                               WrapInstructionsConfig wrapInstructions ) {
-        log.info "Wrapping non-bundle: {}", jarFile.name
-
+    static void wrapNonBundle( File jarFile, File bundlesDir,
+                               WrapInstructionsConfig wrapInstructions,
+                               BundleMetadata metadata = null,
+                               WrappedBundleCache cache = null ) {
         // make a copy of the Map so that if more than one Jar matches, all of them get the same instructions
         Map<String, Object[]> config = new LinkedHashMap<>( getWrapConfig( wrapInstructions, jarFile ) )
 
+        def bundle = new File( bundlesDir, jarFile.name )
+
+        String cacheKey = null
+        if ( cache ) {
+            def hash = metadata?.hash ?: BundleMetadataIndex.hashContents( jarFile )
+            cacheKey = WrappedBundleCache.keyOf( jarFile.name, hash, config )
+            if ( cache.copyTo( cacheKey, bundle ) ) {
+                log.info "Using cached wrapped bundle for non-bundle: {}", jarFile.name
+                if ( wrapInstructions.printManifests ) {
+                    printManifest( jarFile, new JarFile( bundle ).withCloseable { it.manifest } )
+                }
+                return
+            }
+        }
+
+        log.info "Wrapping non-bundle: {}", jarFile.name
+
         def consumeValue = { String key ->
             Object[] items = config.remove( key )
             if ( items ) items.join( ',' )
@@ -37,7 +54,7 @@ class BndWrapper {
         def newJar = new Jar( jarFile )
 
         Version implVersion = MavenVersion.parseString(
-                consumeValue( 'Bundle-Version' ) ?: JarUtils.versionOf( newJar )
+                consumeValue( 'Bundle-Version' ) ?: ( metadata?.version ?: JarUtils.versionOf( newJar ) )
         ).getOSGiVersion()
 
         if ( !config ) {
@@ -45,7 +62,7 @@ class BndWrapper {
                     jarFile.name
         }
 
-        String implTitle = consumeValue( 'Bundle-SymbolicName' ) ?: JarUtils.titleOf( newJar )
+        String implTitle = consumeValue( 'Bundle-SymbolicName' ) ?: ( metadata?.title ?: JarUtils.titleOf( newJar ) )
 
         String imports = consumeValue( 'Import-Package' ) ?: '*'
         String exports = consumeValue( 'Export-Package' ) ?: "*;version=$implVersion"
@@ -60,25 +77,33 @@ class BndWrapper {
             return it
         }
 
-        Manifest manifest = analyzer.calcManifest()
+        Manifest manifest
+        try {
+            manifest = analyzer.calcManifest()
+        } finally {
+            analyzer.close()
+        }
 
         if ( wrapInstructions.printManifests ) {
-            println " Manifest for ${jarFile.name} ".center( 100, '-' )
-            manifest.write( System.out )
-            println '-' * 100
+            printManifest( jarFile, manifest )
         }
 
-        def bundle = new File( "$bundlesDir/${jarFile.name}" )
+        def manifestBytes = new ByteArrayOutputStream()
+        manifest.write( manifestBytes )
 
-        JarUtils.copyJar( jarFile, bundle ) {
-            ZipFile input, ZipOutputStream out, ZipEntry entry ->
-                if ( entry.name == 'META-INF/MANIFEST.MF' ) {
-                    out.putNextEntry( new ZipEntry( entry.name ) )
-                    manifest.write( out )
-                } else {
-                    out.putNextEntry( entry )
-                    out.write( input.getInputStream( entry ).bytes )
-                }
+        JarUtils.rewriteJar( jarFile, bundle, [ 'META-INF/MANIFEST.MF': manifestBytes.toByteArray() ] )
+
+        if ( cacheKey ) {
+            cache.store( cacheKey, bundle )
+        }
+    }
+
+    private static void printManifest( File jarFile, Manifest manifest ) {
+        // jars may be wrapped concurrently, so avoid mixing up the printed manifests
+        synchronized ( BndWrapper ) {
+            println " Manifest for ${jarFile.name} ".center( 100, '-' )
+            manifest.write( System.out )
+            println '-' * 100
         }
     }
 
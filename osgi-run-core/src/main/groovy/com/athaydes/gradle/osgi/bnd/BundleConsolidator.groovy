@@ -0,0 +1,189 @@
+package com.athaydes.gradle.osgi.bnd
+
+import aQute.bnd.header.Parameters
+import aQute.bnd.version.Version
+import com.athaydes.gradle.osgi.bnd.RuntimeResolver.BundleInfo
+import com.athaydes.gradle.osgi.bnd.RuntimeResolver.BundleRequirement
+import com.athaydes.gradle.osgi.bnd.RuntimeResolver.Import
+import com.athaydes.gradle.osgi.util.BundleMetadata
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import groovy.transform.CompileStatic
+import org.gradle.api.GradleException
+
+/**
+ * Removes redundant bundles from the artifacts of an OSGi runtime.
+ *
+ * Because each bundle declaration is resolved on its own, without conflict resolution, transitive dependencies shared
+ * by several declarations may be added to the runtime more than once, often in slightly different versions.
+ *
+ * Artifacts with identical contents, and bundles with the same symbolic name and version, are always collapsed into
+ * the first one. Optionally, the versions of a bundle are also collapsed into a single one, as long as that version
+ * satisfies every requirement on the bundle (Import-Package of its packages, Require-Bundle and Fragment-Host)
+ * which any of the versions satisfied. Artifacts which are not bundles (and will be wrapped) are only collapsed
+ * when their contents are identical, as their symbolic name and version may be changed by the wrap instructions.
+ */
+@CompileStatic
+class BundleConsolidator {
+
+    static final String NONE = 'none'
+    static final String DUPLICATES = 'duplicates'
+    static final String VERSIONS = 'versions'
+    static final List<String> MODES = [ NONE, DUPLICATES, VERSIONS ].asImmutable()
+
+    private final BundleMetadataIndex metadataIndex
+
+    BundleConsolidator( BundleMetadataIndex metadataIndex ) {
+        this.metadataIndex = metadataIndex
+    }
+
+    /**
+     * @param artifacts all artifacts of the runtime, in declaration order
+     * @param mode one of {@link #MODES}
+     * @return the artifacts which can be removed from the runtime, and why
+     */
+    ConsolidationReport consolidate( List<File> artifacts, String mode ) {
+        if ( !( mode in MODES ) ) {
+            throw new GradleException( "Unknown bundleConsolidation: '$mode', must be one of $MODES" )
+        }
+        def report = new ConsolidationReport( artifactCount: artifacts.size() )
+        if ( mode == NONE ) return report
+
+        List<File> remaining = [ ]
+        Map<String, File> byHash = [ : ]
+        Map<String, File> bySymbolicNameAndVersion = [ : ]
+
+        for ( artifact in artifacts ) {
+            def metadata = metadataIndex.get( artifact )
+            def identical = byHash.putIfAbsent( metadata.hash, artifact )
+            if ( identical ) {
+                report.removed[ artifact.name ] = "identical to ${identical.name}".toString()
+                continue
+            }
+            def symbolicName = symbolicNameOf( metadata )
+            if ( symbolicName ) {
+                def version = versionOf( metadata )
+                def sameVersion = bySymbolicNameAndVersion.putIfAbsent( "$symbolicName:$version".toString(), artifact )
+                if ( sameVersion ) {
+                    report.removed[ artifact.name ] = ( "same symbolic name and version as ${sameVersion.name} " +
+                            "($symbolicName $version)" ).toString()
+                    continue
+                }
+            }
+            remaining << artifact
+        }
+
+        if ( mode == VERSIONS ) {
+            consolidateVersions( remaining, report )
+        }
+
+        report
+    }
+
+    private void consolidateVersions( List<File> artifacts, ConsolidationReport report ) {
+        def bundles = artifacts.findAll { symbolicNameOf( metadataIndex.get( it ) ) }
+                .collect { BundleInfo.read( it ) }.findAll { it != null }
+
+        def versionsBySymbolicName = bundles.groupBy { it.symbolicName }.findAll { it.value.size() > 1 }
+
+        versionsBySymbolicName.each { String symbolicName, List<BundleInfo> versions ->
+            def others = bundles.findAll { !( it in versions ) }
+            def candidates = versions.sort( false ) { BundleInfo a, BundleInfo b -> b.version <=> a.version }
+
+            // report why the highest version could not be used
+            String blocker = null
+            def selected = candidates.find { BundleInfo candidate ->
+                def candidateBlocker = blockerOf( candidate, versions, others )
+                if ( blocker == null ) blocker = candidateBlocker
+                candidateBlocker == null
+            }
+
+            if ( selected ) {
+                for ( version in versions ) {
+                    if ( version != selected ) {
+                        report.removed[ version.name ] = ( "$symbolicName ${version.version} replaced by " +
+                                "${selected.version} from ${selected.name}, which satisfies all its users" ).toString()
+                    }
+                }
+            } else {
+                report.kept[ symbolicName ] = ( "${versions.collect { it.version }.sort().join( ', ' )} kept, " +
+                        "no version satisfies all users: $blocker" ).toString()
+            }
+        }
+    }
+
+    /**
+     * @return a requirement of another bundle which some version of the bundle satisfies, but the candidate does not,
+     * or null if the candidate satisfies all such requirements
+     */
+    private static String blockerOf( BundleInfo candidate, List<BundleInfo> versions, List<BundleInfo> others ) {
+        def symbolicName = candidate.symbolicName
+        for ( other in others ) {
+            for ( Import imp in other.imports ) {
+                if ( versions.any { exports( it, imp ) } && !exports( candidate, imp ) ) {
+                    return "${other.name} imports ${imp}".toString()
+                }
+            }
+            List<BundleRequirement> requirements = new ArrayList<>( other.requiredBundles )
+            if ( other.fragment ) requirements << other.fragmentHost
+            for ( required in requirements ) {
+                if ( required.symbolicName == symbolicName && !required.range.includes( candidate.version ) &&
+                        versions.any { required.range.includes( it.version ) } ) {
+                    return "${other.name} requires ${required}".toString()
+                }
+            }
+        }
+        null
+    }
+
+    private static boolean exports( BundleInfo bundle, Import imp ) {
+        bundle.exports.any { it.pkg == imp.pkg && imp.range.includes( it.version ) }
+    }
+
+    /**
+     * @return the normalized version of the bundle, or its version as given if it is not a valid OSGi version
+     */
+    private static String versionOf( BundleMetadata metadata ) {
+        try {
+            Version.parseVersion( metadata.version ?: '0' ).toString()
+        } catch ( IllegalArgumentException ignore ) {
+            metadata.version
+        }
+    }
+
+    /**
+     * @return the symbolic name of the bundle, without directives, or null if the jar is not a bundle
+     */
+    private static String symbolicNameOf( BundleMetadata metadata ) {
+        metadata.symbolicName ? new Parameters( metadata.symbolicName ).keySet()[ 0 ] : null
+    }
+
+    static class ConsolidationReport {
+        int artifactCount
+
+        /**
+         * The names of the artifacts which can be removed, with the reason.
+         */
+        final Map<String, String> removed = new LinkedHashMap<>()
+
+        /**
+         * The symbolic names of the bundles whose versions could not be consolidated, with the reason.
+         */
+        final Map<String, String> kept = new TreeMap<>()
+
+        @Override
+        String toString() {
+            def builder = new StringBuilder()
+            builder.append( "Consolidated ${artifactCount} artifacts, removed ${removed.size()}\n" )
+            if ( removed ) {
+                builder.append( '\nRemoved artifacts:\n' )
+                removed.each { name, reason -> builder.append( "  $name: $reason\n" ) }
+            }
+            if ( kept ) {
+                builder.append( '\nBundles kept in more than one version:\n' )
+                kept.each { name, reason -> builder.append( "  $name: $reason\n" ) }
+            }
+            builder.toString()
+        }
+    }
+
+}
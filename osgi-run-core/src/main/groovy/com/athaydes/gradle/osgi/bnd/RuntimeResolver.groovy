@@ -0,0 +1,482 @@
+package com.athaydes.gradle.osgi.bnd
+
+import aQute.bnd.header.Attrs
+import aQute.bnd.header.Parameters
+import aQute.bnd.osgi.Processor
+import aQute.bnd.version.Version
+import aQute.bnd.version.VersionRange
+import groovy.transform.CompileStatic
+
+import java.util.jar.JarFile
+import java.util.jar.Manifest
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+/**
+ * Resolves the bundles of an OSGi runtime against each other and against the packages exported by the
+ * system bundle, without starting any OSGi framework.
+ *
+ * Resolution follows the framework rules for Import-Package, Require-Bundle and Fragment-Host: bundles
+ * with mandatory requirements which cannot be satisfied do not resolve, and bundles which do not resolve
+ * cannot provide packages to other bundles. Each import is wired to the provider with the highest version,
+ * and the uses directives of the wired exports are checked against the importer's own wiring.
+ */
+@CompileStatic
+class RuntimeResolver {
+
+    static final String SYSTEM_BUNDLE = 'system bundle'
+
+    private final List<BundleInfo> bundles
+    private final BundleInfo systemBundle
+    private Map<String, List<String>> unattachedFragments
+
+    /**
+     * @param bundles all bundles of the OSGi runtime
+     * @param systemPackages packages exported by the system bundle, in Export-Package syntax
+     * @param jdkPackages packages provided by the JDK, which are exported by the system bundle without a version
+     */
+    RuntimeResolver( List<BundleInfo> bundles, String systemPackages, Collection<String> jdkPackages ) {
+        this.bundles = bundles
+        this.systemBundle = new BundleInfo( SYSTEM_BUNDLE, 'system.bundle', Version.emptyVersion )
+        systemBundle.exports.addAll( BundleInfo.exports( systemPackages, systemBundle ) )
+        for ( pkg in jdkPackages ) {
+            systemBundle.exports << new Export( pkg, Version.emptyVersion, [ ], systemBundle )
+        }
+    }
+
+    ResolutionReport resolve() {
+        def report = new ResolutionReport( bundleCount: bundles.size() )
+
+        Set<BundleInfo> resolved = new LinkedHashSet<>( attachFragments( report ) )
+
+        // bundles which do not resolve cannot provide capabilities, which may stop other bundles from resolving
+        boolean changed = true
+        while ( changed ) {
+            changed = false
+            def index = new PackageIndex( [ systemBundle ] + ( resolved as List<BundleInfo> ) )
+            def bySymbolicName = resolved.groupBy { it.symbolicName }
+            for ( bundle in new ArrayList<BundleInfo>( resolved ) ) {
+                def missing = missingRequirements( bundle, index, bySymbolicName )
+                if ( missing ) {
+                    resolved.remove( bundle )
+                    report.unresolved[ bundle.name ] = missing
+                    changed = true
+                }
+            }
+        }
+
+        def index = new PackageIndex( [ systemBundle ] + ( resolved as List<BundleInfo> ) )
+        Map<BundleInfo, Map<String, BundleInfo>> wiringByBundle = [ : ]
+        for ( bundle in resolved ) {
+            wiringByBundle[ bundle ] = wiring( bundle, index )
+        }
+
+        for ( bundle in resolved ) {
+            report.usesViolations.addAll( usesViolations( bundle, index, wiringByBundle ) )
+        }
+
+        Set<BundleInfo> wiredTo = [ ] as Set
+        wiringByBundle.each { bundle, wiring ->
+            wiring.values().each { provider -> if ( provider != bundle ) wiredTo << provider }
+        }
+        bundles.findAll { !it.fragment && it in resolved && it.library && !( it in wiredTo ) }.each {
+            report.unused << it.name
+        }
+
+        return report
+    }
+
+    /**
+     * Find the bundles each bundle depends on, that is, the bundles which provide the packages it imports,
+     * the bundles it requires and the bundles which provide the capabilities it requires.
+     *
+     * Unlike {@link #resolve()}, this does not check whether the bundles resolve: each requirement is wired to
+     * the best provider amongst all bundles. The requirements of fragments are attributed to their hosts.
+     *
+     * @return the dependencies of each bundle which is not a fragment, not including the system bundle
+     */
+    Map<BundleInfo, Set<BundleInfo>> dependencies() {
+        def hosts = attachFragments( new ResolutionReport() )
+        def index = new PackageIndex( [ systemBundle ] + hosts )
+        def bySymbolicName = hosts.groupBy { it.symbolicName }
+
+        Map<BundleInfo, Set<BundleInfo>> result = [ : ]
+        for ( bundle in hosts ) {
+            Set<BundleInfo> providers = new LinkedHashSet<>( wiring( bundle, index ).values() )
+            for ( required in bundle.requiredBundles ) {
+                def provider = bySymbolicName[ required.symbolicName ]?.find { required.range.includes( it.version ) }
+                if ( provider ) providers << provider
+            }
+            for ( requirement in bundle.requiredCapabilities ) {
+                providers.addAll( hosts.findAll { BundleInfo other ->
+                    other.capabilities.any { requirement.matches( it ) }
+                } )
+            }
+            providers.remove( bundle )
+            providers.remove( systemBundle )
+            result[ bundle ] = providers
+        }
+        result
+    }
+
+    private List<BundleInfo> attachFragments( ResolutionReport report ) {
+        def hosts = bundles.findAll { !it.fragment }
+        if ( unattachedFragments == null ) {
+            // fragments are attached only once, as that changes their hosts
+            unattachedFragments = [ : ]
+            def hostsBySymbolicName = hosts.groupBy { it.symbolicName }
+            for ( fragment in bundles.findAll { it.fragment } ) {
+                def host = hostsBySymbolicName[ fragment.fragmentHost.symbolicName ]?.find {
+                    fragment.fragmentHost.range.includes( it.version )
+                }
+                if ( host ) {
+                    host.imports.addAll( fragment.imports )
+                    host.requiredBundles.addAll( fragment.requiredBundles )
+                    host.exports.addAll( fragment.exports.collect { new Export( it.pkg, it.version, it.uses, host ) } )
+                    host.capabilities.addAll( fragment.capabilities )
+                    host.requiredCapabilities.addAll( fragment.requiredCapabilities )
+                } else {
+                    unattachedFragments[ fragment.name ] = [ "Fragment-Host: ${fragment.fragmentHost}".toString() ]
+                }
+            }
+        }
+        report.unresolved.putAll( unattachedFragments )
+        hosts
+    }
+
+    private static List<String> missingRequirements( BundleInfo bundle, PackageIndex index,
+                                                     Map<String, List<BundleInfo>> bySymbolicName ) {
+        List<String> missing = [ ]
+        for ( imp in bundle.imports ) {
+            // java.* packages are always loaded from the boot class loader
+            if ( imp.pkg.startsWith( 'java.' ) ) continue
+            if ( !imp.optional && !index.candidates( imp ) ) {
+                def otherVersions = index.exportsOf( imp.pkg ).collect { "${it.version} from ${it.provider.name}" }
+                missing << "Import-Package: ${imp}".toString() + (
+                        otherVersions ? " (available: ${otherVersions.join( ', ' )})" : '' )
+            }
+        }
+        for ( required in bundle.requiredBundles ) {
+            if ( !required.optional && !bySymbolicName[ required.symbolicName ]?.any {
+                required.range.includes( it.version )
+            } ) {
+                missing << "Require-Bundle: ${required}".toString()
+            }
+        }
+        missing
+    }
+
+    /**
+     * @return the provider of each package used by the bundle
+     */
+    private static Map<String, BundleInfo> wiring( BundleInfo bundle, PackageIndex index ) {
+        Map<String, BundleInfo> result = [ : ]
+        for ( export in bundle.exports ) {
+            result[ export.pkg ] = bundle
+        }
+        for ( imp in bundle.imports ) {
+            def candidates = index.candidates( imp )
+            if ( candidates ) {
+                // a bundle which exports and imports a package uses its own export if that satisfies the import
+                def selected = candidates.find { it.provider == bundle } ?: candidates.first()
+                result[ imp.pkg ] = selected.provider
+            }
+        }
+        result
+    }
+
+    private static List<String> usesViolations( BundleInfo bundle, PackageIndex index,
+                                                Map<BundleInfo, Map<String, BundleInfo>> wiringByBundle ) {
+        List<String> violations = [ ]
+        def wiring = wiringByBundle[ bundle ]
+        wiring.each { pkg, provider ->
+            if ( provider == bundle ) return
+            def export = index.exportsOf( pkg ).find { it.provider == provider }
+            def providerWiring = wiringByBundle[ provider ]
+            for ( used in export?.uses ?: [ ] ) {
+                def ownProvider = wiring[ used ]
+                def exportersProvider = providerWiring?.get( used )
+                if ( ownProvider && exportersProvider && ownProvider != exportersProvider ) {
+                    violations << ( "${bundle.name} uses package ${used} from ${ownProvider.name}, but package ${pkg} " +
+                            "from ${provider.name} uses ${used} from ${exportersProvider.name}" ).toString()
+                }
+            }
+        }
+        violations
+    }
+
+    private static class PackageIndex {
+        private final Map<String, List<Export>> exportsByPackage = [ : ]
+
+        PackageIndex( List<BundleInfo> providers ) {
+            for ( provider in providers ) {
+                for ( export in provider.exports ) {
+                    exportsByPackage.computeIfAbsent( export.pkg ) { [ ] } << export
+                }
+            }
+            // the highest version is preferred, the system bundle wins ties
+            exportsByPackage.values().each { List<Export> exports ->
+                exports.sort { Export a, Export b ->
+                    b.version <=> a.version ?: ( a.provider.name == SYSTEM_BUNDLE ? -1 :
+                            b.provider.name == SYSTEM_BUNDLE ? 1 : a.provider.name <=> b.provider.name )
+                }
+            }
+        }
+
+        List<Export> exportsOf( String pkg ) {
+            exportsByPackage[ pkg ] ?: Collections.<Export> emptyList()
+        }
+
+        List<Export> candidates( Import imp ) {
+            exportsOf( imp.pkg ).findAll { imp.range.includes( it.version ) }
+        }
+    }
+
+    static class Export {
+        final String pkg
+        final Version version
+        final List<String> uses
+        final BundleInfo provider
+
+        Export( String pkg, Version version, List<String> uses, BundleInfo provider ) {
+            this.pkg = pkg
+            this.version = version
+            this.uses = uses
+            this.provider = provider
+        }
+    }
+
+    static class Import {
+        final String pkg
+        final String rangeText
+        final VersionRange range
+        final boolean optional
+
+        Import( String pkg, String rangeText, boolean optional ) {
+            this.pkg = pkg
+            this.rangeText = rangeText
+            this.range = new VersionRange( rangeText )
+            this.optional = optional
+        }
+
+        @Override
+        String toString() {
+            "$pkg;version=\"$rangeText\""
+        }
+    }
+
+    static class BundleRequirement {
+        final String symbolicName
+        final String rangeText
+        final VersionRange range
+        final boolean optional
+
+        BundleRequirement( String symbolicName, String rangeText, boolean optional ) {
+            this.symbolicName = symbolicName
+            this.rangeText = rangeText
+            this.range = new VersionRange( rangeText )
+            this.optional = optional
+        }
+
+        @Override
+        String toString() {
+            "$symbolicName;bundle-version=\"$rangeText\""
+        }
+    }
+
+    static class Capability {
+        final String namespace
+        final Map<String, List<String>> attributes
+
+        Capability( String namespace, Map<String, List<String>> attributes ) {
+            this.namespace = namespace
+            this.attributes = attributes
+        }
+    }
+
+    /**
+     * Requirement on a generic capability.
+     *
+     * Only the equality terms of the filter are checked, which is enough to tell which bundle provides
+     * a service or an extender, but not to decide whether the requirement resolves.
+     */
+    static class CapabilityRequirement {
+        private static final Pattern EQUALITY_TERM = ~/\(([^()=<>~!&|]+)=([^()]*)\)/
+        private static final Pattern NEGATED_TERM = ~/\(!\([^()]*\)\)/
+
+        final String namespace
+        final String filter
+        private final Map<String, Pattern> terms = [ : ]
+
+        CapabilityRequirement( String namespace, String filter ) {
+            this.namespace = namespace
+            this.filter = filter
+            Matcher matcher = EQUALITY_TERM.matcher( NEGATED_TERM.matcher( filter ?: '' ).replaceAll( '' ) )
+            while ( matcher.find() ) {
+                def value = matcher.group( 2 ).trim().split( /\*/, -1 ).collect { Pattern.quote( it ) }.join( '.*' )
+                terms[ matcher.group( 1 ).trim() ] = Pattern.compile( value )
+            }
+        }
+
+        boolean matches( Capability capability ) {
+            capability.namespace == namespace && terms.every { String key, Pattern value ->
+                capability.attributes[ key ]?.any { value.matcher( it ).matches() }
+            }
+        }
+    }
+
+    /**
+     * The requirements and capabilities of a bundle which are relevant for resolution.
+     */
+    static class BundleInfo {
+        final String name
+        final String symbolicName
+        final Version version
+        final List<Export> exports = [ ]
+        final List<Import> imports = [ ]
+        final List<BundleRequirement> requiredBundles = [ ]
+        final List<Capability> capabilities = [ ]
+        final List<CapabilityRequirement> requiredCapabilities = [ ]
+        BundleRequirement fragmentHost
+
+        /**
+         * Whether the bundle does anything by itself, rather than only providing packages to other bundles.
+         */
+        boolean active
+
+        BundleInfo( String name, String symbolicName, Version version ) {
+            this.name = name
+            this.symbolicName = symbolicName
+            this.version = version
+        }
+
+        boolean isFragment() {
+            fragmentHost != null
+        }
+
+        boolean isLibrary() {
+            !active && exports
+        }
+
+        /**
+         * @return the bundle information of the given jar, or null if the jar is not a bundle
+         */
+        static BundleInfo read( File jar ) {
+            Manifest manifest = new JarFile( jar ).withCloseable { JarFile file -> file.manifest }
+            if ( manifest == null ) return null
+            def attributes = manifest.mainAttributes
+            def symbolicName = new Parameters( attributes.getValue( 'Bundle-SymbolicName' ) ).keySet()[ 0 ]
+            if ( !symbolicName ) return null
+
+            def bundle = new BundleInfo( jar.name, symbolicName,
+                    Version.parseVersion( attributes.getValue( 'Bundle-Version' ) ?: '0' ) )
+
+            bundle.exports.addAll( exports( attributes.getValue( 'Export-Package' ), bundle ) )
+
+            eachClause( attributes.getValue( 'Import-Package' ) ) { String pkg, Attrs attrs ->
+                bundle.imports << new Import( pkg, attrs.get( 'version' ) ?: '0.0.0',
+                        attrs.get( 'resolution:' ) == 'optional' )
+            }
+            eachClause( attributes.getValue( 'Require-Bundle' ) ) { String name, Attrs attrs ->
+                bundle.requiredBundles << new BundleRequirement( name, attrs.get( 'bundle-version' ) ?: '0.0.0',
+                        attrs.get( 'resolution:' ) == 'optional' )
+            }
+            eachClause( attributes.getValue( 'Fragment-Host' ) ) { String name, Attrs attrs ->
+                bundle.fragmentHost = new BundleRequirement( name, attrs.get( 'bundle-version' ) ?: '0.0.0', false )
+            }
+
+            eachClause( attributes.getValue( 'Provide-Capability' ) ) { String namespace, Attrs attrs ->
+                Map<String, List<String>> capabilityAttributes = [ : ]
+                for ( entry in attrs.entrySet() ) {
+                    // directives are not matched by filters, typed attributes look like name:List<String>
+                    if ( entry.key.endsWith( ':' ) ) continue
+                    capabilityAttributes[ entry.key.split( ':' )[ 0 ] ] =
+                            entry.value.split( ',' ).collect { it.trim() }.findAll { it }
+                }
+                bundle.capabilities << new Capability( namespace, capabilityAttributes )
+            }
+            eachClause( attributes.getValue( 'Require-Capability' ) ) { String namespace, Attrs attrs ->
+                if ( attrs.get( 'resolution:' ) != 'optional' ) {
+                    bundle.requiredCapabilities << new CapabilityRequirement( namespace, attrs.get( 'filter:' ) )
+                }
+            }
+
+            bundle.active = [ 'Bundle-Activator', 'Service-Component', 'Bundle-Blueprint' ].any {
+                attributes.getValue( it )
+            } || attributes.getValue( 'Require-Capability' )?.contains( 'osgi.extender' )
+
+            // bundles built by older tools rely on the extenders without requiring them
+            if ( !bundle.requiredCapabilities.any { it.namespace == 'osgi.extender' } ) {
+                if ( attributes.getValue( 'Service-Component' ) ) {
+                    bundle.requiredCapabilities << new CapabilityRequirement(
+                            'osgi.extender', '(osgi.extender=osgi.component)' )
+                }
+                if ( attributes.getValue( 'Bundle-Blueprint' ) ) {
+                    bundle.requiredCapabilities << new CapabilityRequirement(
+                            'osgi.extender', '(osgi.extender=osgi.blueprint)' )
+                }
+            }
+
+            return bundle
+        }
+
+        static List<Export> exports( String header, BundleInfo provider ) {
+            List<Export> result = [ ]
+            eachClause( header ) { String pkg, Attrs attrs ->
+                def version = attrs.get( 'version' ) ?: attrs.get( 'specification-version' ) ?: '0'
+                def uses = attrs.get( 'uses:' )?.split( ',' )?.collect { it.trim() }?.findAll { it } ?: [ ]
+                result << new Export( pkg, Version.parseVersion( version ), uses, provider )
+            }
+            result
+        }
+
+        private static void eachClause( String header, Closure action ) {
+            if ( !header?.trim() ) return
+            new Parameters( header ).each { String key, Attrs attrs ->
+                action( Processor.removeDuplicateMarker( key ), attrs )
+            }
+        }
+
+        @Override
+        String toString() {
+            name
+        }
+    }
+
+    /**
+     * The result of resolving an OSGi runtime.
+     */
+    static class ResolutionReport {
+        int bundleCount
+        final Map<String, List<String>> unresolved = new TreeMap<>()
+        final List<String> usesViolations = [ ]
+        final List<String> unused = [ ]
+
+        boolean isSuccessful() {
+            !unresolved && !usesViolations
+        }
+
+        @Override
+        String toString() {
+            def builder = new StringBuilder()
+            builder.append( "Resolved ${bundleCount - unresolved.size()} of ${bundleCount} bundles\n" )
+            if ( unresolved ) {
+                builder.append( '\nUnresolved bundles:\n' )
+                unresolved.each { name, requirements ->
+                    builder.append( "  $name\n" )
+                    requirements.each { builder.append( "    missing $it\n" ) }
+                }
+            }
+            if ( usesViolations ) {
+                builder.append( '\nUses constraint violations:\n' )
+                usesViolations.each { builder.append( "  $it\n" ) }
+            }
+            if ( unused ) {
+                builder.append( '\nBundles which only export packages, but are not used by any other bundle:\n' )
+                unused.each { builder.append( "  $it\n" ) }
+            }
+            builder.toString()
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.athaydes.gradle.osgi.bnd
+
+import com.athaydes.gradle.osgi.bnd.RuntimeResolver.BundleInfo
+import groovy.transform.CompileStatic
+
+/**
+ * Assigns start levels to bundles so that every bundle starts after the bundles it depends on.
+ *
+ * The dependency graph is layered by its longest path: a bundle gets the start level after the highest
+ * start level of its dependencies. Bundles which depend on each other form a cycle, and are given the same
+ * start level. Explicit start levels are always kept, and bundles depending on them are placed after them.
+ */
+@CompileStatic
+class StartLevelPlanner {
+
+    private final Map<BundleInfo, Set<BundleInfo>> dependencies
+    private final Map<String, Integer> explicitLevels
+    private final int baseLevel
+
+    // Tarjan's strongly connected components algorithm
+    private final Map<BundleInfo, Integer> indexOf = [ : ]
+    private final Map<BundleInfo, Integer> lowLinkOf = [ : ]
+    private final Deque<BundleInfo> stack = new ArrayDeque<>()
+    private final Set<BundleInfo> onStack = [ ] as Set
+    private final Map<BundleInfo, Integer> levelByBundle = [ : ]
+
+    /**
+     * @param dependencies the bundles each bundle depends on, as given by {@link RuntimeResolver#dependencies()}
+     * @param explicitLevels start levels set by the user, by bundle file name
+     * @param baseLevel start level of bundles without dependencies
+     */
+    StartLevelPlanner( Map<BundleInfo, Set<BundleInfo>> dependencies, Map<String, Integer> explicitLevels,
+                       int baseLevel ) {
+        this.dependencies = dependencies
+        this.explicitLevels = explicitLevels
+        this.baseLevel = baseLevel
+    }
+
+    /**
+     * Compute the start level of all given bundles.
+     *
+     * @param bundles all bundles of the OSGi runtime
+     * @param explicitLevels start levels set by the user, by bundle file name
+     * @param baseLevel start level of bundles without dependencies
+     * @return the start level of each bundle, by bundle file name
+     */
+    static Map<String, Integer> plan( List<BundleInfo> bundles, Map<String, Integer> explicitLevels, int baseLevel ) {
+        def dependencies = new RuntimeResolver( bundles, '', Collections.<String> emptyList() ).dependencies()
+        def planner = new StartLevelPlanner( dependencies, explicitLevels, baseLevel )
+        Map<String, Integer> result = new TreeMap<>( planner.levels() )
+
+        // fragments must be installed no later than their hosts, so they are attached when the host resolves
+        def hosts = dependencies.keySet().groupBy { it.symbolicName }
+        for ( fragment in bundles.findAll { it.fragment } ) {
+            def host = hosts[ fragment.fragmentHost.symbolicName ]?.find {
+                fragment.fragmentHost.range.includes( it.version )
+            }
+            result[ fragment.name ] = explicitLevels[ fragment.name ] ?:
+                    ( host ? result[ host.name ] : baseLevel )
+        }
+        result
+    }
+
+    /**
+     * @return the start level of each bundle in the dependency graph, by bundle file name
+     */
+    Map<String, Integer> levels() {
+        for ( bundle in dependencies.keySet() ) {
+            if ( !indexOf.containsKey( bundle ) ) visit( bundle )
+        }
+        Map<String, Integer> result = [ : ]
+        levelByBundle.each { bundle, level -> result[ bundle.name ] = level }
+        result
+    }
+
+    private void visit( BundleInfo bundle ) {
+        indexOf[ bundle ] = indexOf.size()
+        lowLinkOf[ bundle ] = indexOf[ bundle ]
+        stack.push( bundle )
+        onStack << bundle
+
+        for ( dependency in dependencies[ bundle ] ?: Collections.<BundleInfo> emptySet() ) {
+            if ( !indexOf.containsKey( dependency ) ) {
+                visit( dependency )
+                lowLinkOf[ bundle ] = Math.min( lowLinkOf[ bundle ], lowLinkOf[ dependency ] )
+            } else if ( dependency in onStack ) {
+                lowLinkOf[ bundle ] = Math.min( lowLinkOf[ bundle ], indexOf[ dependency ] )
+            }
+        }
+
+        if ( lowLinkOf[ bundle ] == indexOf[ bundle ] ) {
+            // the component is complete, and all components it depends on already have a level
+            Set<BundleInfo> component = [ ] as Set
+            BundleInfo member = null
+            while ( member != bundle ) {
+                member = stack.pop()
+                onStack.remove( member )
+                component << member
+            }
+            assignLevel( component )
+        }
+    }
+
+    private void assignLevel( Set<BundleInfo> component ) {
+        int level = baseLevel
+        for ( member in component ) {
+            for ( dependency in dependencies[ member ] ?: Collections.<BundleInfo> emptySet() ) {
+                if ( !( dependency in component ) ) {
+                    level = Math.max( level, levelByBundle[ dependency ] + 1 )
+                }
+            }
+        }
+        for ( member in component ) {
+            levelByBundle[ member ] = explicitLevels[ member.name ] ?: level
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.athaydes.gradle.osgi.bnd
+
+import aQute.bnd.osgi.About
+import groovy.transform.CompileStatic
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Content-addressed store of bundles wrapped by Bnd, shared by all builds run by the same user.
+ *
+ * Wrapped bundles are keyed by the hash of the original jar, the wrap instructions that apply to it and the
+ * Bnd version, so a bundle is only re-used if wrapping the jar again would produce the same result.
+ *
+ * Eviction is based on the total size of the store: the least recently used bundles are removed first.
+ */
+@CompileStatic
+class WrappedBundleCache {
+
+    static final Logger log = Logging.getLogger( WrappedBundleCache )
+
+    final File cacheDir
+    final long maxSizeInBytes
+
+    private final AtomicInteger hits = new AtomicInteger()
+    private final AtomicInteger misses = new AtomicInteger()
+
+    WrappedBundleCache( File cacheDir, long maxSizeInBytes ) {
+        this.cacheDir = cacheDir
+        this.maxSizeInBytes = maxSizeInBytes
+    }
+
+    /**
+     * @param gradleUserHome Gradle user home directory
+     * @return the default location of the cache
+     */
+    static File defaultLocation( File gradleUserHome ) {
+        new File( gradleUserHome, 'caches/osgi-run/wrapped-bundles' )
+    }
+
+    /**
+     * Compute the key of a wrapped bundle.
+     *
+     * @param jarName name of the original jar, as it may be used to determine the bundle's version and name
+     * @param jarHash hash of the contents of the original jar
+     * @param instructions the wrap instructions which apply to the jar
+     * @return key for the wrapped bundle
+     */
+    static String keyOf( String jarName, String jarHash, Map<String, Object[]> instructions ) {
+        def digest = MessageDigest.getInstance( 'SHA-1' )
+        def update = { String value -> digest.update( ( value + '\n' ).getBytes( 'UTF-8' ) ) }
+        update( jarName )
+        update( jarHash )
+        update( About.CURRENT.toString() )
+        instructions.each { String name, Object[] args ->
+            update( "$name=${args.toList()}".toString() )
+        }
+        digest.digest().encodeHex().toString()
+    }
+
+    /**
+     * Copy the bundle stored under the given key to the destination, if it exists.
+     *
+     * @param key of the wrapped bundle
+     * @param destination file to copy the bundle to
+     * @return true if the bundle was found in the cache, false otherwise
+     */
+    boolean copyTo( String key, File destination ) {
+        def cached = entryFor( key )
+        try {
+            Files.copy( cached.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING )
+        } catch ( NoSuchFileException ignore ) {
+            misses.incrementAndGet()
+            return false
+        }
+
+        // keep track of the last use of the bundle for eviction
+        cached.setLastModified( System.currentTimeMillis() )
+        hits.incrementAndGet()
+        true
+    }
+
+    /**
+     * Store a wrapped bundle in the cache.
+     *
+     * @param key of the wrapped bundle
+     * @param bundle the wrapped bundle
+     */
+    void store( String key, File bundle ) {
+        cacheDir.mkdirs()
+        def temp = File.createTempFile( key, '.tmp', cacheDir )
+        try {
+            Files.copy( bundle.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING )
+            try {
+                Files.move( temp.toPath(), entryFor( key ).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING )
+            } catch ( AtomicMoveNotSupportedException ignore ) {
+                Files.move( temp.toPath(), entryFor( key ).toPath(), StandardCopyOption.REPLACE_EXISTING )
+            }
+        } catch ( IOException e ) {
+            // another build may be storing the same bundle, which is fine as the contents are the same
+            log.debug( 'Unable to store wrapped bundle {} in the cache: {}', bundle.name, e.toString() )
+        } finally {
+            temp.delete()
+        }
+    }
+
+    int getHits() {
+        hits.get()
+    }
+
+    int getMisses() {
+        misses.get()
+    }
+
+    /**
+     * Remove the least recently used bundles until the cache fits within its maximum size,
+     * then log the statistics of this cache's usage.
+     */
+    void evictAndLogStatistics() {
+        def entries = ( cacheDir.listFiles( { File dir, String name ->
+            name.endsWith( '.jar' )
+        } as FilenameFilter ) ?: new File[0] ).toList()
+
+        long totalSize = ( long ) entries.sum( 0L ) { File f -> f.length() }
+        int evicted = 0
+
+        if ( totalSize > maxSizeInBytes ) {
+            for ( entry in entries.sort { File f -> f.lastModified() } ) {
+                long size = entry.length()
+                if ( entry.delete() ) {
+                    totalSize -= size
+                    evicted++
+                }
+                if ( totalSize <= maxSizeInBytes ) break
+            }
+        }
+
+        if ( hits.get() > 0 || misses.get() > 0 || evicted > 0 ) {
+            log.info( 'Wrapped bundles cache: {} hits, {} misses, {} evicted, {} KB in {}',
+                    hits.get(), misses.get(), evicted, totalSize.intdiv( 1024 ), cacheDir )
+        }
+    }
+
+    private File entryFor( String key ) {
+        new File( cacheDir, key + '.jar' )
+    }
+
+}
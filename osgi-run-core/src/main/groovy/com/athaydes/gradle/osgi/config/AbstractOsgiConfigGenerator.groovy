@@ -0,0 +1,49 @@
+package com.athaydes.gradle.osgi.config
+
+import groovy.transform.CompileStatic
+
+/**
+ * Base class of the built-in config generators.
+ *
+ * Values of the configuration maps may be closures taking the {@link Writer} as argument, so that values listing
+ * all bundles of the runtime are written directly, without being built in memory first.
+ */
+@CompileStatic
+abstract class AbstractOsgiConfigGenerator implements OsgiConfigGenerator {
+
+    static void writeValue( Writer writer, value ) {
+        if ( value instanceof Closure ) {
+            ( value as Closure ).call( writer )
+        } else {
+            writer.write( String.valueOf( value ) )
+        }
+    }
+
+    /**
+     * Write the entries of the map as Java properties, in the map's order.
+     */
+    static void writeProperties( Writer writer, Map map ) {
+        map.each { key, value ->
+            writer.write( String.valueOf( key ) )
+            writer.write( ' = ' )
+            writeValue( writer, value )
+            writer.write( '\n' )
+        }
+    }
+
+    /**
+     * @return a value writing the given bundles, each one as given by the bundle closure
+     */
+    static Closure bundleList( Collection<OsgiConfigContext.RuntimeBundle> bundles, String separator,
+                               Closure<Void> bundle ) {
+        return { Writer writer ->
+            boolean first = true
+            for ( item in bundles ) {
+                if ( !first ) writer.write( separator )
+                first = false
+                bundle( writer, item )
+            }
+        }
+    }
+
+}
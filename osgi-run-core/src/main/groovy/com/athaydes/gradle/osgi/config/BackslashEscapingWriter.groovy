@@ -0,0 +1,48 @@
+package com.athaydes.gradle.osgi.config
+
+import groovy.transform.CompileStatic
+
+/**
+ * Writer escaping all backslashes, as they are escape characters in the configuration files of all frameworks,
+ * but are used as the path separator on Windows.
+ */
+@CompileStatic
+class BackslashEscapingWriter extends FilterWriter {
+
+    BackslashEscapingWriter( Writer out ) {
+        super( out )
+    }
+
+    @Override
+    void write( int c ) throws IOException {
+        if ( c == ( '\\' as char ) ) out.write( '\\\\' )
+        else out.write( c )
+    }
+
+    @Override
+    void write( char[] chars, int offset, int length ) throws IOException {
+        int start = offset
+        int end = offset + length
+        for ( int i = offset; i < end; i++ ) {
+            if ( chars[ i ] == ( '\\' as char ) ) {
+                out.write( chars, start, i - start + 1 )
+                out.write( '\\' as char )
+                start = i + 1
+            }
+        }
+        out.write( chars, start, end - start )
+    }
+
+    @Override
+    void write( String text, int offset, int length ) throws IOException {
+        int start = offset
+        int end = offset + length
+        for ( int i = text.indexOf( '\\', offset ); i >= 0 && i < end; i = text.indexOf( '\\', i + 1 ) ) {
+            out.write( text, start, i - start + 1 )
+            out.write( '\\' as char )
+            start = i + 1
+        }
+        out.write( text, start, end - start )
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.athaydes.gradle.osgi.config
+
+import com.athaydes.gradle.osgi.config.OsgiConfigContext.RuntimeBundle
+import groovy.transform.CompileStatic
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+
+import static com.athaydes.gradle.osgi.CreateOsgiRuntimeTask.SYSTEM_LIBS
+
+/**
+ * Generates the configuration/config.ini file of Eclipse Equinox, which lists all bundles in the osgi.bundles
+ * property.
+ *
+ * The configuration directory is within the system-libs directory, where the framework jar is, so bundles are
+ * referred to relative to that directory. When the framework starts from its configuration area,
+ * which keeps the installed bundles, osgi.bundles is not written.
+ */
+@CompileStatic
+class EquinoxConfigGenerator extends AbstractOsgiConfigGenerator {
+
+    static final Logger log = Logging.getLogger( EquinoxConfigGenerator )
+
+    @Override
+    String getName() {
+        'equinox'
+    }
+
+    @Override
+    File configFile( String target ) {
+        new File( "${target}/$SYSTEM_LIBS/configuration/config.ini" )
+    }
+
+    @Override
+    void write( OsgiConfigContext context, Writer writer ) {
+        Map config = context.osgiConfig.config
+
+        if ( context.useStorage ) {
+            writeProperties( writer, withStorage(
+                    context.withBeginningStartLevel( config, 'osgi.startLevel', 6 ) + context.supportProperties ) )
+            return
+        }
+
+        def supportEntries = context.supportBundlePaths.collect { "../$it@1:start".toString() }
+
+        if ( !context.bundles ) {
+            log.info( "Could not find any bundles in ${context.target}" )
+            writeProperties( writer, config + context.supportProperties + (
+                    supportEntries ? [ 'osgi.bundles': supportEntries.join( ',' ) ] : [ : ] ) )
+            return
+        }
+
+        def bundleEntries = bundleList( context.bundles, ',' ) { Writer out, RuntimeBundle bundle ->
+            out.write( '../' )
+            out.write( bundle.path )
+            if ( !bundle.fragment ) {
+                out.write( bundle.startLevel == null ? '@start' : "@${bundle.startLevel}:start".toString() )
+            }
+        }
+
+        Map bundleStartEntries = [ 'osgi.bundles': { Writer out ->
+            for ( entry in supportEntries ) {
+                out.write( entry )
+                out.write( ',' )
+            }
+            bundleEntries( out )
+        } ]
+
+        config = context.withBeginningStartLevel( config, 'osgi.startLevel', 6 )
+
+        writeProperties( writer, config + ( context.supportProperties as Map ) + bundleStartEntries )
+    }
+
+    /**
+     * @return the configuration which makes Equinox keep its configuration area and the bundles installed in it
+     */
+    private static Map withStorage( Map config ) {
+        Map result = new LinkedHashMap()
+        config.each { key, value ->
+            if ( !( key in [ 'osgi.bundles', 'osgi.clean' ] ) ) result[ key ] = value
+        }
+        result[ 'osgi.clean' ] = false
+        result
+    }
+
+}
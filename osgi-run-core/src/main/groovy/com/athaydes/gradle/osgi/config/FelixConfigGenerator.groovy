@@ -0,0 +1,111 @@
+package com.athaydes.gradle.osgi.config
+
+import com.athaydes.gradle.osgi.config.OsgiConfigContext.RuntimeBundle
+import groovy.transform.CompileStatic
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+
+import static com.athaydes.gradle.osgi.PrewarmOsgiRuntimeTask.STORAGE_PROPERTY
+
+/**
+ * Generates the conf/config.properties file of Apache Felix.
+ *
+ * Without start levels, the bundles are found by Felix in its auto-deploy directory. Otherwise, each bundle is
+ * listed in the felix.auto.start property of its start level, or felix.auto.install for fragments.
+ * When the framework starts from its storage area, no felix.auto properties are written.
+ */
+@CompileStatic
+class FelixConfigGenerator extends AbstractOsgiConfigGenerator {
+
+    static final Logger log = Logging.getLogger( FelixConfigGenerator )
+    static final String STORAGE_DIR = 'felix-cache'
+
+    @Override
+    String getName() {
+        'felix'
+    }
+
+    @Override
+    File configFile( String target ) {
+        new File( "${target}/conf/config.properties" )
+    }
+
+    @Override
+    void write( OsgiConfigContext context, Writer writer ) {
+        Map config = context.osgiConfig.config
+
+        if ( !context.bundles ) {
+            log.info( "Could not find any bundles in ${context.target}" )
+        } else if ( !context.hasStartLevels() ) {
+            log.debug( "No StartLevels specified" )
+        } else if ( context.useStorage ) {
+            config = context.withBeginningStartLevel( config, 'org.osgi.framework.startlevel.beginning', 1 )
+        } else {
+            Map<Integer, List<RuntimeBundle>> bundlesByStartLevel = new TreeMap<>()
+            Map<Integer, List<RuntimeBundle>> fragmentBundlesByStartLevel = new TreeMap<>()
+
+            for ( bundle in context.bundles ) {
+                def map = bundle.fragment ? fragmentBundlesByStartLevel : bundlesByStartLevel
+                map.computeIfAbsent( bundle.startLevel ?: context.defaultStartLevel ) { [ ] } << bundle
+            }
+
+            config = new LinkedHashMap( context.withBeginningStartLevel(
+                    config, 'org.osgi.framework.startlevel.beginning', 1 ) )
+            fragmentBundlesByStartLevel.each { startLevel, bundles ->
+                config[ "felix.auto.install.$startLevel".toString() ] = bundleUrls( bundles )
+            }
+            bundlesByStartLevel.each { startLevel, bundles ->
+                config[ "felix.auto.start.$startLevel".toString() ] = bundleUrls( bundles )
+            }
+        }
+
+        if ( context.supportBundlePaths ) {
+            config = withSupportBundles( config, context )
+        }
+
+        writeProperties( writer, context.useStorage ? withStorage( config ) : config )
+    }
+
+    /**
+     * @return the configuration without the felix.auto properties, so that Felix only starts the bundles in its
+     * storage area, which is kept between launches
+     */
+    private static Map withStorage( Map config ) {
+        Map result = new LinkedHashMap()
+        config.each { key, value ->
+            def name = key.toString()
+            if ( !name.startsWith( 'felix.auto.' ) && !name.startsWith( STORAGE_PROPERTY ) ) {
+                result[ key ] = value
+            }
+        }
+        result[ STORAGE_PROPERTY ] = STORAGE_DIR
+        result[ "${STORAGE_PROPERTY}.clean".toString() ] = 'none'
+        result
+    }
+
+    private static Map withSupportBundles( Map config, OsgiConfigContext context ) {
+        def result = new LinkedHashMap( config )
+        result.putAll( context.supportProperties )
+
+        // all other bundles must start after the support bundles
+        result.putIfAbsent( 'felix.startlevel.bundle', 2 )
+        result.putIfAbsent( 'org.osgi.framework.startlevel.beginning', 2 )
+
+        def supportUrls = context.supportBundlePaths.collect { "file:$it" }.join( ' ' )
+        def levelOneBundles = result[ 'felix.auto.start.1' ]
+        result[ 'felix.auto.start.1' ] = levelOneBundles ? { Writer writer ->
+            writer.write( supportUrls )
+            writer.write( ' ' )
+            writeValue( writer, levelOneBundles )
+        } : supportUrls
+        result
+    }
+
+    private static Closure bundleUrls( List<RuntimeBundle> bundles ) {
+        bundleList( bundles, ' ' ) { Writer writer, RuntimeBundle bundle ->
+            writer.write( 'file:' )
+            writer.write( bundle.path )
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.athaydes.gradle.osgi.config
+
+import com.athaydes.gradle.osgi.config.OsgiConfigContext.RuntimeBundle
+import groovy.transform.CompileStatic
+
+import static com.athaydes.gradle.osgi.PrewarmOsgiRuntimeTask.STORAGE_PROPERTY
+
+/**
+ * Generates the init.xargs file of Knopflerfish, which sets the framework properties and then installs
+ * and starts each bundle. When the framework starts from its storage area, only the framework properties are written.
+ */
+@CompileStatic
+class KnopflerfishConfigGenerator extends AbstractOsgiConfigGenerator {
+
+    static final String STORAGE_DIR = 'fwdir'
+
+    @Override
+    String getName() {
+        'knopflerfish'
+    }
+
+    @Override
+    File configFile( String target ) {
+        new File( "${target}/init.xargs" )
+    }
+
+    @Override
+    void write( OsgiConfigContext context, Writer writer ) {
+        // framework properties must be set before the framework is launched
+        def frameworkConfig = context.supportProperties.collectEntries { key, value ->
+            [ ( "-F$key".toString() ): value ]
+        } + context.withBeginningStartLevel( context.osgiConfig.config,
+                '-Forg.osgi.framework.startlevel.beginning', 1 )
+
+        if ( context.useStorage ) {
+            writeEntries( writer, withStorage( frameworkConfig ) )
+            return
+        }
+
+        writeEntries( writer, frameworkConfig )
+        if ( context.supportBundlePaths ) {
+            writer.write( '\n' )
+            writer.write( context.supportBundlePaths.collect { "-istart file:$it" }.join( '\n' ) )
+        }
+
+        writeBundleInstructions( writer, context )
+    }
+
+    /**
+     * @return the configuration which makes Knopflerfish launch from its storage area, kept between launches,
+     * without installing any bundles
+     */
+    private static Map withStorage( Map config ) {
+        def storageKey = "-F$STORAGE_PROPERTY".toString()
+        Map result = new LinkedHashMap()
+        result[ storageKey ] = STORAGE_DIR
+        config.each { key, value ->
+            if ( !( key.toString().trim() in [ '-init', '-install', '-istart', storageKey ] ) ) result[ key ] = value
+        }
+        result
+    }
+
+    static void writeBundleInstructions( Writer writer, OsgiConfigContext context ) {
+        writer.write( '\n' )
+        if ( !context.hasStartLevels() ) {
+            for ( bundle in context.bundles ) {
+                writeInstruction( writer, bundle )
+            }
+            return
+        }
+
+        // -startlevel applies to all bundles installed after it, so bundles are installed in start level order
+        Map<Integer, List<RuntimeBundle>> bundlesByStartLevel = new TreeMap<>()
+        for ( bundle in context.bundles ) {
+            bundlesByStartLevel.computeIfAbsent( bundle.startLevel ?: context.defaultStartLevel ) { [ ] } << bundle
+        }
+        bundlesByStartLevel.each { startLevel, bundles ->
+            writer.write( "-startlevel ${startLevel}\n" )
+            for ( bundle in bundles ) {
+                writeInstruction( writer, bundle )
+            }
+        }
+    }
+
+    private static void writeInstruction( Writer writer, RuntimeBundle bundle ) {
+        writer.write( bundle.fragment ? '-install file:' : '-istart file:' )
+        writer.write( bundle.path )
+        writer.write( '\n' )
+    }
+
+    private static void writeEntries( Writer writer, Map map ) {
+        map.each { key, value ->
+            def separator = key ==~ /\s*-[DF].*/ ? '=' : ''
+            writer.write( "${key} ${separator} " )
+            writeValue( writer, value )
+            writer.write( '\n' )
+        }
+    }
+
+}
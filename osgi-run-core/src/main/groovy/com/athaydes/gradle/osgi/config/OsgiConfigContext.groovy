@@ -0,0 +1,143 @@
+package com.athaydes.gradle.osgi.config
+
+import com.athaydes.gradle.osgi.OsgiConfig
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import groovy.transform.CompileStatic
+import groovy.transform.Immutable
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+
+/**
+ * The OSGi runtime an {@link OsgiConfigGenerator} writes the configuration for.
+ */
+@CompileStatic
+class OsgiConfigContext {
+
+    static final Logger log = Logging.getLogger( OsgiConfigContext )
+
+    /**
+     * Directory of the OSGi runtime.
+     */
+    final String target
+
+    final OsgiConfig osgiConfig
+
+    /**
+     * The bundles in the bundles directory, sorted by file name.
+     */
+    final List<RuntimeBundle> bundles
+
+    /**
+     * Paths of the support bundles which must be started before all other bundles, relative to the OSGi runtime.
+     */
+    final List<String> supportBundlePaths
+
+    /**
+     * Framework properties required by the support bundles.
+     */
+    final Map<String, String> supportProperties
+
+    /**
+     * The start level of bundles without a start level, in frameworks where every bundle needs one.
+     */
+    final int defaultStartLevel
+
+    /**
+     * Whether the framework starts from the storage area filled by the prewarmOsgiRuntime task. If so, the
+     * configuration must keep that storage area and must not make the framework install any bundles.
+     */
+    final boolean useStorage
+
+    OsgiConfigContext( String target, OsgiConfig osgiConfig, List<RuntimeBundle> bundles,
+                       List<String> supportBundlePaths, Map<String, String> supportProperties,
+                       int defaultStartLevel, boolean useStorage = false ) {
+        this.target = target
+        this.osgiConfig = osgiConfig
+        this.bundles = bundles
+        this.supportBundlePaths = supportBundlePaths
+        this.supportProperties = supportProperties
+        this.defaultStartLevel = defaultStartLevel
+        this.useStorage = useStorage
+    }
+
+    /**
+     * @param bundlesDir the bundles directory of the OSGi runtime
+     * @param bundlesPath path of the bundles directory relative to the OSGi runtime, using '/' as separator
+     * @param startLevelMap start level of the bundles by file name
+     * @param metadataIndex index of the bundles' metadata
+     * @return the bundles in the bundles directory, sorted by file name
+     */
+    static List<RuntimeBundle> listBundles( File bundlesDir, String bundlesPath, Map<String, Integer> startLevelMap,
+                                            BundleMetadataIndex metadataIndex ) {
+        def names = bundlesDir.list()
+        if ( names == null ) return [ ]
+        Arrays.sort( names )
+        List<RuntimeBundle> bundles = new ArrayList<>( names.length )
+        for ( name in names ) {
+            if ( name.length() <= 4 || !name.endsWith( '.jar' ) ) continue
+            def jar = new File( bundlesDir, name )
+            bundles << new RuntimeBundle( name, bundlesPath + '/' + name, metadataIndex.get( jar ).fragment,
+                    startLevelMap[ name ] )
+        }
+        bundles
+    }
+
+    /**
+     * @return true if any bundle has a start level
+     */
+    boolean hasStartLevels() {
+        bundles.any { it.startLevel != null }
+    }
+
+    /**
+     * The framework only starts bundles up to its beginning start level, so that must include the highest start level
+     * in use. Bundles without a start level are given the {@link #defaultStartLevel}.
+     *
+     * @param config the framework configuration
+     * @param key the property of the beginning start level
+     * @param frameworkDefault the beginning start level of the framework, if the property is not set
+     * @return the configuration, with the beginning start level added if necessary
+     */
+    Map withBeginningStartLevel( Map config, String key, int frameworkDefault ) {
+        if ( !hasStartLevels() ) return config
+        int highest = 0
+        for ( bundle in bundles ) {
+            highest = Math.max( highest, bundle.startLevel != null ? bundle.startLevel : defaultStartLevel )
+        }
+        def configured = config[ key ]
+        if ( configured == null ) {
+            return highest > frameworkDefault ? [ ( key ): highest ] + config : config
+        }
+        if ( ( configured.toString().trim() as int ) < highest ) {
+            log.warn( 'Bundles with a start level above {} = {} will not be started, the highest start level is {}',
+                    key, configured, highest )
+        }
+        config
+    }
+
+    /**
+     * A bundle of the OSGi runtime.
+     */
+    @Immutable
+    static class RuntimeBundle {
+
+        /**
+         * Name of the bundle's file.
+         */
+        String name
+
+        /**
+         * Path of the bundle's file relative to the OSGi runtime, using '/' as separator.
+         */
+        String path
+
+        boolean fragment
+
+        /**
+         * Start level of the bundle, or null if it has none.
+         */
+        Integer startLevel
+
+    }
+
+}
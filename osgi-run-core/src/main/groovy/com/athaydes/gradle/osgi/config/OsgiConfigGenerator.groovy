@@ -0,0 +1,37 @@
+package com.athaydes.gradle.osgi.config
+
+/**
+ * Generates the configuration file of an OSGi framework, which tells the framework which bundles of the
+ * OSGi runtime to install and start.
+ *
+ * The generator used by a runtime is the one whose name is the runtime's configSettings. Besides the built-in
+ * generators for Felix, Equinox and Knopflerfish, generators for other frameworks may be added by jars in the build
+ * script classpath which declare them in {@code META-INF/services/com.athaydes.gradle.osgi.config.OsgiConfigGenerator}.
+ *
+ * @see OsgiConfigGenerators
+ */
+interface OsgiConfigGenerator {
+
+    /**
+     * @return the configSettings value this generator is used for
+     */
+    String getName()
+
+    /**
+     * @param target directory of the OSGi runtime
+     * @return the configuration file of the framework within the OSGi runtime
+     */
+    File configFile( String target )
+
+    /**
+     * Write the configuration of the framework.
+     *
+     * The bundles in the context are listed once and their metadata read once before generation starts,
+     * so implementations should write the configuration in a single pass over them.
+     *
+     * @param context the OSGi runtime to write the configuration for
+     * @param writer the configuration file
+     */
+    void write( OsgiConfigContext context, Writer writer )
+
+}
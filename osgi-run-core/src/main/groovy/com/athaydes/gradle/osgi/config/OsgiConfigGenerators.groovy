@@ -0,0 +1,34 @@
+package com.athaydes.gradle.osgi.config
+
+import org.gradle.api.GradleException
+
+/**
+ * Finds the {@link OsgiConfigGenerator} of each configSettings value.
+ */
+class OsgiConfigGenerators {
+
+    static final String NONE = 'none'
+
+    static final List<OsgiConfigGenerator> BUILT_IN = [
+            new FelixConfigGenerator(),
+            new EquinoxConfigGenerator(),
+            new KnopflerfishConfigGenerator() ].asImmutable()
+
+    /**
+     * @param configSettings the configSettings of an OSGi runtime
+     * @return the generator of the runtime's configuration, or null if configSettings is 'none'
+     * @throws GradleException if there is no generator for the configSettings
+     */
+    static OsgiConfigGenerator forConfigSettings( String configSettings ) {
+        if ( configSettings == NONE ) return null
+        def generator = BUILT_IN.find { it.name == configSettings } ?:
+                ServiceLoader.load( OsgiConfigGenerator, OsgiConfigGenerator.classLoader ).find {
+                    it.name == configSettings
+                }
+        if ( !generator ) {
+            throw new GradleException( "Unknown OSGi configSettings: ${configSettings}" )
+        }
+        generator
+    }
+
+}
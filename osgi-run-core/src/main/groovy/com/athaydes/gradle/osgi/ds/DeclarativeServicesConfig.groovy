@@ -2,13 +2,23 @@ package com.athaydes.gradle.osgi.ds
 
 import groovy.xml.MarkupBuilder
 import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.runtime.InvokerHelper
 import org.gradle.api.GradleException
 
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
 /**
  * Config for Declarative Services.
  */
 class DeclarativeServicesConfig {
 
+    /**
+     * Groovy declarations compiled by any project, by the hash of their source, so that each script is only compiled
+     * once while the Gradle daemon runs.
+     */
+    private static final Map<String, Class<? extends Script>> compiledScripts = new ConcurrentHashMap<>()
+
     private final groovyConfigBase = new GroovyConfigBaseClass()
 
     def declarations = null
@@ -20,14 +30,17 @@ class DeclarativeServicesConfig {
     }
 
     String getXmlFileContents() {
-        groovyConfigBase.run() ?: readDeclarations()
+        declaredXml ?: readDeclarations( declarations )
     }
 
-    private String readDeclarations() {
-        readDeclarations declarations
+    /**
+     * @return the XML written by the declarations closure, if any
+     */
+    String getDeclaredXml() {
+        groovyConfigBase.run()
     }
 
-    private String readDeclarations( source ) {
+    static String readDeclarations( source ) {
         switch ( source ) {
             case String: // fall-through
             case File: return readFileDeclarations( source as File )
@@ -48,14 +61,23 @@ class DeclarativeServicesConfig {
     }
 
     private static String runGroovyConfig( File groovyScript ) {
-        def compilerConfig = new CompilerConfiguration()
-        compilerConfig.scriptBaseClass = GroovyConfigBaseClass.name
-        GroovyShell shell = new GroovyShell( GroovyConfigBaseClass.classLoader, new Binding(), compilerConfig )
-        def result = shell.parse( groovyScript )
+        def source = groovyScript.getText( 'UTF-8' )
+        def scriptClass = compiledScripts.computeIfAbsent( sha256( source ) ) {
+            def compilerConfig = new CompilerConfiguration()
+            compilerConfig.scriptBaseClass = GroovyConfigBaseClass.name
+            GroovyShell shell = new GroovyShell( GroovyConfigBaseClass.classLoader, new Binding(), compilerConfig )
+            shell.parse( source, groovyScript.name ).class
+        }
+        // each run needs its own script instance, as the instance holds the XML being written
+        def result = InvokerHelper.createScript( scriptClass, new Binding() )
         result.run()
         result.toString()
     }
 
+    private static String sha256( String text ) {
+        MessageDigest.getInstance( 'SHA-256' ).digest( text.getBytes( 'UTF-8' ) ).encodeHex().toString()
+    }
+
     void show() {
         println getXmlFileContents()
     }
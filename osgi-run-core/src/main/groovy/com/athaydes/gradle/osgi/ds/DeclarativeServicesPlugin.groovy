@@ -2,27 +2,63 @@ package com.athaydes.gradle.osgi.ds
 
 import org.gradle.api.Plugin
 import org.gradle.api.Project
+import org.gradle.api.java.archives.Manifest
 import org.gradle.api.tasks.bundling.Jar
 
 /**
  * Plugin that adds OSGi Declarative Services support to a Project.
+ *
+ * The Declarative Services XML file is generated by the generateDeclarativeServices task and added to every bundle
+ * built by the project's jar tasks while the jar is written, together with the Service-Component manifest header.
  */
 class DeclarativeServicesPlugin implements Plugin<Project> {
 
-    final dsJarBuilder = new DSJarBuilder()
+    static final String SERVICE_COMPONENT = 'Service-Component'
 
     @Override
     void apply( Project project ) {
         def dsConfig = project.extensions.create( 'declarativeServices', DeclarativeServicesConfig )
-        project.tasks.withType( Jar ) { jarTask ->
-            jarTask.doLast {
-                if ( jarTask.didWork ) {
-                    jarTask.outputs.files.each { File output ->
-                        dsJarBuilder.addDeclarativeServices( output, dsConfig )
-                    }
-                }
+
+        def generateTask = project.task(
+                type: GenerateDeclarativeServicesTask,
+                group: 'Build',
+                description: 'Generates the OSGi Declarative Services XML file',
+                'generateDeclarativeServices' ) { GenerateDeclarativeServicesTask task ->
+            task.declaredXml.set( project.provider { dsConfig.declaredXml } )
+            task.declarationFiles.from( { dsConfig.declaredXml ? [ ] : dsConfig.declarations } )
+            task.xmlFileName.set( project.provider { dsConfig.xmlFileName } )
+            task.outputDir.set( project.layout.buildDirectory.dir( 'generated/osgi-ds' ) )
+        } as GenerateDeclarativeServicesTask
+
+        project.tasks.withType( Jar ).configureEach { Jar jarTask ->
+            // whether the jar is a bundle is only known once the project has been configured
+            def bundle = project.provider { isBundle( jarTask ) }
+            jarTask.from( { bundle.get() ? generateTask : [ ] } )
+
+            // an absent value leaves the header out of the manifest
+            if ( !hasAttribute( jarTask.manifest, SERVICE_COMPONENT ) ) {
+                jarTask.manifest.attributes( ( SERVICE_COMPONENT ): project.provider {
+                    bundle.get() && DeclarativeServicesPlugin.hasDeclarations( dsConfig ) ? dsConfig.xmlFileName : null
+                } )
             }
         }
     }
 
+    static boolean hasDeclarations( DeclarativeServicesConfig dsConfig ) {
+        dsConfig.declaredXml || dsConfig.declarations
+    }
+
+    /**
+     * @return true if the jar task builds an OSGi bundle, either with the bnd plugin or by declaring
+     * the symbolic name of the bundle in its manifest
+     */
+    static boolean isBundle( Jar jarTask ) {
+        jarTask.extensions.findByName( 'bundle' ) != null ||
+                hasAttribute( jarTask.manifest, 'Bundle-SymbolicName' )
+    }
+
+    static boolean hasAttribute( Manifest manifest, String name ) {
+        manifest.attributes.keySet().any { it.equalsIgnoreCase( name ) }
+    }
+
 }
@@ -0,0 +1,72 @@
+package com.athaydes.gradle.osgi.ds
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * The generateDeclarativeServices task.
+ *
+ * Generates the Declarative Services XML file from the declarations of the project, so that the jar tasks of the
+ * project only need to add it to the bundles they build. The file is only generated again when the declarations
+ * change.
+ */
+@CacheableTask
+abstract class GenerateDeclarativeServicesTask extends DefaultTask {
+
+    static final Logger log = Logging.getLogger( GenerateDeclarativeServicesTask )
+
+    /**
+     * @return the XML written by the declarations closure, if any
+     */
+    @Input
+    abstract Property<String> getDeclaredXml()
+
+    /**
+     * @return the declaration files, used if the declarations closure did not write anything
+     */
+    @InputFiles
+    @PathSensitive( PathSensitivity.RELATIVE )
+    abstract ConfigurableFileCollection getDeclarationFiles()
+
+    @Input
+    abstract Property<String> getXmlFileName()
+
+    @OutputDirectory
+    abstract DirectoryProperty getOutputDir()
+
+    @TaskAction
+    void generate() {
+        def outputDir = getOutputDir().get().asFile
+        outputDir.deleteDir()
+        outputDir.mkdirs()
+
+        def dsXml = declaredXml.get() ?: DeclarativeServicesConfig.readDeclarations(
+                declarationFiles.empty ? null : declarationFiles.files.toList() )
+
+        if ( dsXml ) {
+            def xmlFile = new File( outputDir, xmlFileName.get() )
+            xmlFile.parentFile.mkdirs()
+            xmlFile.withOutputStream { out ->
+                if ( !dsXml.startsWith( '<?' ) ) {
+                    out.write( '<?xml version="1.0" encoding="UTF-8"?>\n'.getBytes( 'UTF-8' ) )
+                }
+                out.write( dsXml.getBytes( 'UTF-8' ) )
+            }
+            log.info( 'Generated Declarative Services file {}', xmlFile )
+        } else {
+            log.info( 'No Declarative Services declared' )
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.athaydes.gradle.osgi.util
+
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+import groovy.transform.CompileStatic
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Time spent in each phase of a task, and counters of the work it did.
+ *
+ * The metrics of all tasks are written to a single JSON file in the OSGi runtime directory, each task
+ * replacing its own entry, so that builds can be compared over time.
+ *
+ * Phases may be timed by many threads at once, in which case their time is the sum of the time spent by
+ * all threads.
+ */
+@CompileStatic
+class BuildMetrics {
+
+    static final Logger log = Logging.getLogger( BuildMetrics )
+    static final String FILE_NAME = 'osgi-run-metrics.json'
+
+    /**
+     * Metrics which are collected, but never reported.
+     */
+    static final BuildMetrics NONE = new BuildMetrics( 'none' )
+
+    final String taskName
+    private final long startTime = System.currentTimeMillis()
+    private final long startNanos = System.nanoTime()
+
+    // phases and counters are reported in the order they are first used
+    private final Map<String, AtomicLong> nanosByPhase = Collections.synchronizedMap( new LinkedHashMap<>() )
+    private final Map<String, AtomicLong> counters = Collections.synchronizedMap( new LinkedHashMap<>() )
+
+    BuildMetrics( String taskName ) {
+        this.taskName = taskName
+    }
+
+    /**
+     * Run the given action, adding the time it takes to the given phase.
+     *
+     * @param phase name of the phase
+     * @param action to run
+     * @return the result of the action
+     */
+    public <T> T time( String phase, Closure<T> action ) {
+        long start = System.nanoTime()
+        try {
+            return action.call()
+        } finally {
+            addTime( phase, System.nanoTime() - start )
+        }
+    }
+
+    void addTime( String phase, long nanos ) {
+        nanosByPhase.computeIfAbsent( phase ) { new AtomicLong() }.addAndGet( nanos )
+    }
+
+    void increment( String counter, long amount = 1 ) {
+        counters.computeIfAbsent( counter ) { new AtomicLong() }.addAndGet( amount )
+    }
+
+    long counter( String counter ) {
+        counters[ counter ]?.get() ?: 0L
+    }
+
+    /**
+     * @return the time of each phase in milliseconds
+     */
+    Map<String, Long> getPhaseMillis() {
+        Map<String, Long> result = [ : ]
+        synchronized ( nanosByPhase ) {
+            nanosByPhase.each { phase, nanos -> result[ phase ] = TimeUnit.NANOSECONDS.toMillis( nanos.get() ) }
+        }
+        result
+    }
+
+    Map<String, Long> getCounters() {
+        Map<String, Long> result = [ : ]
+        synchronized ( counters ) {
+            counters.each { name, value -> result[ name ] = value.get() }
+        }
+        result
+    }
+
+    Map<String, Object> toMap() {
+        [ timestamp     : startTime,
+          durationMillis: TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startNanos ),
+          phasesMillis  : phaseMillis,
+          counters      : getCounters() ] as Map<String, Object>
+    }
+
+    /**
+     * @return a one-line summary of the metrics
+     */
+    String summary() {
+        def phases = phaseMillis.collect { phase, millis -> "$phase ${millis} ms".toString() }.join( ', ' )
+        def counts = getCounters().collect { name, value -> "$name=$value".toString() }.join( ', ' )
+        "$taskName took ${TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startNanos )} ms ($phases) [$counts]"
+    }
+
+    /**
+     * Write the metrics into the metrics file of the given OSGi runtime directory, keeping the metrics of other tasks,
+     * and log a summary.
+     *
+     * @param target OSGi runtime directory
+     */
+    void report( File target ) {
+        def file = new File( target, FILE_NAME )
+        Map<String, Object> all = [ : ]
+        if ( file.file ) {
+            try {
+                all.putAll( new JsonSlurper().parse( file, 'UTF-8' ) as Map<String, Object> )
+            } catch ( e ) {
+                log.debug( 'Unable to read {}, it will be replaced: {}', file, e.toString() )
+            }
+        }
+        all[ taskName ] = toMap()
+        file.parentFile.mkdirs()
+        file.write( JsonOutput.prettyPrint( JsonOutput.toJson( all ) ), 'UTF-8' )
+        log.info( summary() )
+    }
+
+}
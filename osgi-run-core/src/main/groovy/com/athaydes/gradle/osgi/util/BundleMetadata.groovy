@@ -0,0 +1,164 @@
+package com.athaydes.gradle.osgi.util
+
+import groovy.transform.CompileStatic
+import groovy.transform.ToString
+
+import java.util.jar.Attributes
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+/**
+ * Metadata of a jar which is relevant to osgi-run, extracted in a single pass over the jar.
+ */
+@CompileStatic
+@ToString( includePackage = false, includeNames = true, ignoreNulls = true )
+class BundleMetadata {
+
+    /**
+     * Hash of the contents of the jar this metadata was extracted from.
+     */
+    final String hash
+
+    final boolean hasManifest
+
+    /**
+     * true if the Manifest contains any Bundle header.
+     */
+    final boolean bundle
+
+    final String symbolicName
+
+    /**
+     * The version of the jar, as determined by {@link JarUtils#versionOf(aQute.bnd.osgi.Jar)}.
+     */
+    final String version
+
+    /**
+     * The title of the jar, as determined by {@link JarUtils#titleOf(aQute.bnd.osgi.Jar)}.
+     */
+    final String title
+
+    final String fragmentHost
+    final String mainClass
+    final String exportPackage
+    final String importPackage
+
+    /**
+     * The packages containing classes in the jar, in the order they first appear in the jar.
+     */
+    final List<String> classPackages
+
+    BundleMetadata( String hash, boolean hasManifest, boolean bundle,
+                    String symbolicName, String version, String title,
+                    String fragmentHost, String mainClass,
+                    String exportPackage, String importPackage,
+                    List<String> classPackages ) {
+        this.hash = hash
+        this.hasManifest = hasManifest
+        this.bundle = bundle
+        this.symbolicName = symbolicName
+        this.version = version
+        this.title = title
+        this.fragmentHost = fragmentHost
+        this.mainClass = mainClass
+        this.exportPackage = exportPackage
+        this.importPackage = importPackage
+        this.classPackages = Collections.unmodifiableList( classPackages )
+    }
+
+    boolean isFragment() {
+        fragmentHost != null
+    }
+
+    /**
+     * Read the metadata of a jar.
+     *
+     * @param jar file to read
+     * @param hash hash of the jar's contents
+     * @return the jar's metadata
+     */
+    static BundleMetadata read( File jar, String hash ) {
+        def zip = new ZipFile( jar )
+        try {
+            ZipEntry manifestEntry = zip.getEntry( 'META-INF/MANIFEST.MF' )
+            Attributes attributes = null
+            if ( manifestEntry ) {
+                attributes = zip.getInputStream( manifestEntry ).withCloseable { InputStream stream ->
+                    new Manifest( stream ).mainAttributes
+                }
+            }
+
+            def entries = new EntriesSummary( zip )
+
+            boolean bundle = attributes?.keySet()?.any { it.toString().startsWith( 'Bundle' ) } ?: false
+
+            String version = attributes?.getValue( 'Bundle-Version' ) ?:
+                    attributes?.getValue( 'Implementation-Version' ) ?:
+                            entries.mavenMetadataVersion( zip ) ?:
+                                    FileNameUtils.versionFrom( jar.name )
+
+            String title = attributes?.getValue( 'Bundle-SymbolicName' ) ?:
+                    attributes?.getValue( 'Implementation-Title' ) ?:
+                            FileNameUtils.titleFrom( jar.name )
+
+            return new BundleMetadata( hash, manifestEntry != null, bundle,
+                    attributes?.getValue( 'Bundle-SymbolicName' ),
+                    version, title,
+                    attributes?.getValue( 'Fragment-Host' ),
+                    attributes?.getValue( 'Main-Class' ),
+                    attributes?.getValue( 'Export-Package' ),
+                    attributes?.getValue( 'Import-Package' ),
+                    entries.classPackages.toList() )
+        } finally {
+            zip.close()
+        }
+    }
+
+    /**
+     * Summary of the entries of a jar, collected from a single pass over the jar's central directory.
+     */
+    private static class EntriesSummary {
+
+        final Set<String> classPackages = new LinkedHashSet<>()
+
+        // Bnd keeps resources sorted by name, so use the first pom.properties in that order
+        String pomPropertiesName = null
+
+        EntriesSummary( ZipFile zip ) {
+            String lastDirectory = ''
+            def entries = zip.entries()
+            while ( entries.hasMoreElements() ) {
+                String name = entries.nextElement().name
+                if ( name.endsWith( '.class' ) ) {
+                    int lastSlashIndex = name.lastIndexOf( '/' )
+
+                    // ignore the default package and multi-release/other META-INF classes
+                    if ( lastSlashIndex < 0 || name.startsWith( 'META-INF/' ) ) continue
+
+                    // entries are normally grouped by directory, so avoid creating a new String for each class
+                    if ( lastSlashIndex != lastDirectory.length() ||
+                            !name.startsWith( lastDirectory ) ) {
+                        lastDirectory = name.substring( 0, lastSlashIndex )
+                        classPackages << lastDirectory.replace( '/' as char, '.' as char )
+                    }
+                } else if ( name.endsWith( '/pom.properties' ) &&
+                        ( pomPropertiesName == null || name < pomPropertiesName ) ) {
+                    pomPropertiesName = name
+                }
+            }
+        }
+
+        String mavenMetadataVersion( ZipFile zip ) {
+            if ( pomPropertiesName ) {
+                return zip.getInputStream( zip.getEntry( pomPropertiesName ) ).withCloseable { InputStream stream ->
+                    def props = new Properties()
+                    props.load( stream )
+                    props.getProperty( 'version' )
+                }
+            }
+            null
+        }
+    }
+
+}
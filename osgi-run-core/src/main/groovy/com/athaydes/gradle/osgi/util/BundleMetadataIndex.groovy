@@ -0,0 +1,259 @@
+package com.athaydes.gradle.osgi.util
+
+import groovy.transform.CompileStatic
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Index of {@link BundleMetadata}, keyed by the hash of each jar's contents.
+ *
+ * The index is persisted between builds so that only jars which changed need to be read again.
+ * To avoid re-hashing every jar on each build, the hash of each file is also remembered together
+ * with the file's length and modification time.
+ */
+@CompileStatic
+class BundleMetadataIndex {
+
+    static final Logger log = Logging.getLogger( BundleMetadataIndex )
+
+    /**
+     * Must be incremented every time the format of the index file or the contents of
+     * {@link BundleMetadata} change.
+     */
+    static final int FORMAT_VERSION = 2
+
+    private final File indexFile
+    private final Map<String, BundleMetadata> metadataByHash = new ConcurrentHashMap<>()
+    private final Map<String, FileStamp> stampsByPath = new ConcurrentHashMap<>()
+    private volatile boolean modified = false
+
+    private BundleMetadataIndex( File indexFile ) {
+        this.indexFile = indexFile
+    }
+
+    /**
+     * @param buildDir the project's build directory
+     * @return the location of the index file within the build directory
+     */
+    static File defaultLocation( File buildDir ) {
+        new File( buildDir, 'osgi-run/bundle-metadata.idx' )
+    }
+
+    /**
+     * Load the index from the given file.
+     *
+     * If the file does not exist or cannot be read, an empty index is returned.
+     *
+     * @param indexFile file where the index is persisted
+     * @return the index
+     */
+    static BundleMetadataIndex load( File indexFile ) {
+        def index = new BundleMetadataIndex( indexFile )
+        if ( indexFile.file ) {
+            try {
+                new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ) ) ).withCloseable {
+                    DataInputStream input -> index.readFrom( input )
+                }
+            } catch ( IOException e ) {
+                log.info( 'Unable to read bundle metadata index, will re-create it: {}', e.toString() )
+                index.metadataByHash.clear()
+                index.stampsByPath.clear()
+            }
+        }
+        log.debug( 'Loaded bundle metadata index with {} entries from {}', index.metadataByHash.size(), indexFile )
+        return index
+    }
+
+    /**
+     * Get the metadata of the given jar, reading it only if the jar is not yet in the index.
+     *
+     * @param jar file
+     * @return the jar's metadata
+     */
+    BundleMetadata get( File jar ) {
+        String hash = hashOf( jar )
+        def metadata = metadataByHash.get( hash )
+        if ( metadata == null ) {
+            log.debug( 'Reading metadata of {}', jar.name )
+            metadata = BundleMetadata.read( jar, hash )
+            metadataByHash.put( hash, metadata )
+            modified = true
+        }
+        return metadata
+    }
+
+    /**
+     * Get the hash of the contents of the given file.
+     *
+     * @param file to hash
+     * @return hex-encoded hash
+     */
+    String hashOf( File file ) {
+        String path = file.absolutePath
+        def stamp = stampsByPath.get( path )
+        if ( stamp == null || !stamp.matches( file ) ) {
+            stamp = new FileStamp( file.length(), file.lastModified(), hashContents( file ) )
+            stampsByPath.put( path, stamp )
+            modified = true
+        }
+        return stamp.hash
+    }
+
+    /**
+     * Register a copy of a file whose hash is already known, so that the copy does not need to be hashed again.
+     *
+     * @param copy the copy of a file
+     * @param hash the hash of the original file
+     */
+    void registerCopy( File copy, String hash ) {
+        stampsByPath.put( copy.absolutePath, new FileStamp( copy.length(), copy.lastModified(), hash ) )
+        modified = true
+    }
+
+    /**
+     * Persist the index if it was modified since it was loaded.
+     *
+     * Files which no longer exist, as well as metadata which is not referenced by any existing file,
+     * are removed from the index before saving it.
+     */
+    void save() {
+        def stampsToRemove = stampsByPath.findAll { String path, FileStamp stamp -> !new File( path ).file }
+        if ( stampsToRemove ) {
+            stampsByPath.keySet().removeAll( stampsToRemove.keySet() )
+            modified = true
+        }
+        def usedHashes = stampsByPath.values()*.hash as Set<String>
+        if ( metadataByHash.keySet().retainAll( usedHashes ) ) {
+            modified = true
+        }
+
+        if ( !modified ) return
+
+        indexFile.parentFile.mkdirs()
+
+        // tasks of different runtimes may save the index concurrently, the last one wins
+        def tempFile = File.createTempFile( indexFile.name, '.tmp', indexFile.parentFile )
+        try {
+            new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ) ) ).withCloseable {
+                DataOutputStream output -> writeTo( output )
+            }
+            Files.move( tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING )
+        } catch ( IOException e ) {
+            log.warn( 'Unable to save bundle metadata index at {}: {}', indexFile, e.toString() )
+        } finally {
+            tempFile.delete()
+        }
+        modified = false
+        log.debug( 'Saved bundle metadata index with {} entries to {}', metadataByHash.size(), indexFile )
+    }
+
+    static String hashContents( File file ) {
+        def digest = MessageDigest.getInstance( 'SHA-1' )
+        byte[] buffer = new byte[ 64 * 1024 ]
+        new FileInputStream( file ).withCloseable { InputStream input ->
+            int len
+            while ( ( len = input.read( buffer ) ) > 0 ) {
+                digest.update( buffer, 0, len )
+            }
+        }
+        return digest.digest().encodeHex().toString()
+    }
+
+    private void writeTo( DataOutputStream output ) {
+        output.writeInt( FORMAT_VERSION )
+        output.writeInt( stampsByPath.size() )
+        stampsByPath.each { String path, FileStamp stamp ->
+            output.writeUTF( path )
+            output.writeLong( stamp.length )
+            output.writeLong( stamp.lastModified )
+            output.writeUTF( stamp.hash )
+        }
+        output.writeInt( metadataByHash.size() )
+        for ( metadata in metadataByHash.values() ) {
+            output.writeUTF( metadata.hash )
+            output.writeBoolean( metadata.hasManifest )
+            output.writeBoolean( metadata.bundle )
+            writeString( output, metadata.symbolicName )
+            writeString( output, metadata.version )
+            writeString( output, metadata.title )
+            writeString( output, metadata.fragmentHost )
+            writeString( output, metadata.mainClass )
+            writeString( output, metadata.exportPackage )
+            writeString( output, metadata.importPackage )
+            output.writeInt( metadata.classPackages.size() )
+            for ( classPackage in metadata.classPackages ) {
+                output.writeUTF( classPackage )
+            }
+        }
+    }
+
+    private void readFrom( DataInputStream input ) {
+        int version = input.readInt()
+        if ( version != FORMAT_VERSION ) {
+            log.info( 'Bundle metadata index has an old format, will re-create it' )
+            return
+        }
+        int stampCount = input.readInt()
+        for ( int i = 0; i < stampCount; i++ ) {
+            String path = input.readUTF()
+            stampsByPath.put( path, new FileStamp( input.readLong(), input.readLong(), input.readUTF() ) )
+        }
+        int metadataCount = input.readInt()
+        for ( int i = 0; i < metadataCount; i++ ) {
+            def metadata = new BundleMetadata( input.readUTF(), input.readBoolean(), input.readBoolean(),
+                    readString( input ), readString( input ), readString( input ),
+                    readString( input ), readString( input ),
+                    readString( input ), readString( input ),
+                    readStrings( input ) )
+            metadataByHash.put( metadata.hash, metadata )
+        }
+    }
+
+    private static void writeString( DataOutputStream output, String value ) {
+        output.writeBoolean( value != null )
+        if ( value != null ) {
+            // writeUTF is limited to 64KB, but Manifest headers can be larger than that
+            byte[] bytes = value.getBytes( 'UTF-8' )
+            output.writeInt( bytes.length )
+            output.write( bytes )
+        }
+    }
+
+    private static String readString( DataInputStream input ) {
+        if ( !input.readBoolean() ) return null
+        byte[] bytes = new byte[ input.readInt() ]
+        input.readFully( bytes )
+        new String( bytes, 'UTF-8' )
+    }
+
+    private static List<String> readStrings( DataInputStream input ) {
+        int count = input.readInt()
+        List<String> result = new ArrayList<>( count )
+        for ( int i = 0; i < count; i++ ) {
+            result << input.readUTF()
+        }
+        result
+    }
+
+    private static class FileStamp {
+        final long length
+        final long lastModified
+        final String hash
+
+        FileStamp( long length, long lastModified, String hash ) {
+            this.length = length
+            this.lastModified = lastModified
+            this.hash = hash
+        }
+
+        boolean matches( File file ) {
+            file.length() == length && file.lastModified() == lastModified
+        }
+    }
+
+}
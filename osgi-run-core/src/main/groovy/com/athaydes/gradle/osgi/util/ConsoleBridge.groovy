@@ -0,0 +1,147 @@
+package com.athaydes.gradle.osgi.util
+
+import groovy.transform.CompileStatic
+
+/**
+ * Forwards the output of a process to the console, optionally copying it to a log file.
+ *
+ * Output is read in large chunks and written in whole lines whenever more output is immediately available,
+ * so that the process is never throttled by the console and lines from different streams do not get mixed up.
+ * Anything else, such as a shell prompt, is written as soon as the process stops producing output.
+ */
+@CompileStatic
+class ConsoleBridge {
+
+    static final int BUFFER_SIZE = 64 * 1024
+    private static final byte NEW_LINE = 10
+
+    /**
+     * Start a daemon thread which forwards everything from the source to the destination.
+     *
+     * @param source stream to read from
+     * @param destination stream to write to
+     * @param tee optional stream which also receives everything written to the destination
+     * @param onEnd action to run once the source is exhausted
+     * @return the thread forwarding the stream
+     */
+    static Thread pump( InputStream source, OutputStream destination, OutputStream tee, Runnable onEnd ) {
+        Thread.startDaemon( 'osgi-run-console' ) {
+            try {
+                forward( source, destination, tee )
+            } catch ( IOException ignore ) {
+                // process died
+            } finally {
+                onEnd.run()
+            }
+        }
+    }
+
+    static void forward( InputStream source, OutputStream destination, OutputStream tee ) {
+        byte[] buffer = new byte[ BUFFER_SIZE ]
+        int length = 0
+        while ( true ) {
+            int read = source.read( buffer, length, buffer.length - length )
+            if ( read < 0 ) {
+                write( buffer, length, destination, tee )
+                return
+            }
+            length += read
+
+            boolean moreAvailable = source.available() > 0
+            int end = length
+            if ( moreAvailable && length < buffer.length ) {
+                // only complete lines are written while the process keeps writing
+                end = lastNewLine( buffer, length ) + 1
+            }
+
+            if ( end > 0 ) {
+                write( buffer, end, destination, tee )
+                System.arraycopy( buffer, end, buffer, 0, length - end )
+                length -= end
+            }
+
+            if ( !moreAvailable ) {
+                destination.flush()
+                tee?.flush()
+            }
+        }
+    }
+
+    private static void write( byte[] buffer, int length, OutputStream destination, OutputStream tee ) {
+        if ( length == 0 ) return
+        destination.write( buffer, 0, length )
+        tee?.write( buffer, 0, length )
+    }
+
+    private static int lastNewLine( byte[] buffer, int length ) {
+        for ( int i = length - 1; i >= 0; i-- ) {
+            if ( buffer[ i ] == NEW_LINE ) return i
+        }
+        return -1
+    }
+
+    /**
+     * Log file which is rotated once it reaches its maximum size.
+     *
+     * The previous files are kept with the suffixes {@code .1}, {@code .2} and so on, the highest being the oldest.
+     */
+    static class RotatingLogFile extends OutputStream {
+
+        private final File file
+        private final long maxBytes
+        private final int backups
+        private OutputStream output
+        private long size
+
+        RotatingLogFile( File file, long maxBytes, int backups ) {
+            this.file = file
+            this.maxBytes = maxBytes
+            this.backups = backups
+            file.parentFile.mkdirs()
+            size = file.length()
+            output = new BufferedOutputStream( new FileOutputStream( file, true ), BUFFER_SIZE )
+        }
+
+        @Override
+        synchronized void write( int b ) {
+            rotateIfNeeded( 1 )
+            output.write( b )
+            size++
+        }
+
+        @Override
+        synchronized void write( byte[] bytes, int offset, int length ) {
+            rotateIfNeeded( length )
+            output.write( bytes, offset, length )
+            size += length
+        }
+
+        @Override
+        synchronized void flush() {
+            output.flush()
+        }
+
+        @Override
+        synchronized void close() {
+            output.close()
+        }
+
+        private void rotateIfNeeded( int length ) {
+            if ( size == 0 || size + length <= maxBytes ) return
+            output.close()
+            new File( "${file.path}.$backups" ).delete()
+            for ( int i = backups - 1; i >= 1; i-- ) {
+                new File( "${file.path}.$i" ).renameTo( new File( "${file.path}.${i + 1}" ) )
+            }
+            if ( backups > 0 ) {
+                file.renameTo( new File( "${file.path}.1" ) )
+            } else {
+                file.delete()
+            }
+            output = new BufferedOutputStream( new FileOutputStream( file ), BUFFER_SIZE )
+            size = 0
+        }
+
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.athaydes.gradle.osgi.util
+
+import groovy.transform.CompileStatic
+import org.gradle.api.GradleException
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Places files into the OSGi runtime by copying or linking them, according to the materialization mode.
+ *
+ * Only files which are never modified in place (ie. which live outside of the project's directory, such as
+ * artifacts in the Gradle cache) are linked. All other files are always copied, as are files for which the
+ * link cannot be created, for example because the source and the destination are in different file systems.
+ *
+ * The bundle store is an exception: its files are never modified in place, only replaced, so they can always be
+ * linked.
+ */
+@CompileStatic
+class FileMaterializer {
+
+    static final Logger log = Logging.getLogger( FileMaterializer )
+
+    enum Mode {
+        COPY, HARDLINK, SYMLINK, REFLINK
+    }
+
+    final Mode mode
+    private final File projectDir
+    private final File storeDir
+    private final AtomicBoolean warnedAboutFallback = new AtomicBoolean( false )
+
+    /**
+     * @param materialization the materialization mode, one of 'copy', 'hardlink', 'symlink' or 'reflink'
+     * @param projectDir files under this directory are always copied
+     * @param storeDir the bundle store directory, whose files may be linked even if it is under the projectDir
+     */
+    FileMaterializer( String materialization, File projectDir, File storeDir = null ) {
+        this.mode = parseMode( materialization )
+        this.projectDir = projectDir.canonicalFile
+        this.storeDir = storeDir?.canonicalFile
+    }
+
+    static Mode parseMode( String materialization ) {
+        def mode = Mode.values().find { it.name().equalsIgnoreCase( materialization ) }
+        if ( !mode ) {
+            throw new GradleException( "Invalid materialization: '$materialization'. " +
+                    "Valid values are ${Mode.values()*.name()*.toLowerCase()}" )
+        }
+        mode
+    }
+
+    /**
+     * Materialize the source file at the destination, replacing any existing file.
+     *
+     * @param source file
+     * @param destination file
+     * @return true if the file was copied, false if it was linked
+     */
+    boolean materialize( File source, File destination ) {
+        // never write through an existing link
+        Files.deleteIfExists( destination.toPath() )
+
+        if ( mode != Mode.COPY && canLink( source ) ) {
+            try {
+                if ( link( source, destination ) ) {
+                    return false
+                }
+            } catch ( IOException | UnsupportedOperationException e ) {
+                if ( !warnedAboutFallback.getAndSet( true ) ) {
+                    log.warn( 'Unable to {} {}, will copy files instead: {}',
+                            mode.name().toLowerCase(), source.name, e.toString() )
+                }
+                Files.deleteIfExists( destination.toPath() )
+            }
+        }
+
+        Files.copy( source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING )
+        return true
+    }
+
+    private boolean canLink( File source ) {
+        def path = source.canonicalPath
+        !path.startsWith( projectDir.path + File.separator ) ||
+                ( storeDir != null && path.startsWith( storeDir.path + File.separator ) )
+    }
+
+    private boolean link( File source, File destination ) {
+        switch ( mode ) {
+            case Mode.HARDLINK:
+                Files.createLink( destination.toPath(), source.toPath() )
+                return true
+            case Mode.SYMLINK:
+                Files.createSymbolicLink( destination.toPath(), source.absoluteFile.toPath() )
+                return true
+            case Mode.REFLINK:
+                return reflink( source, destination )
+            default:
+                return false
+        }
+    }
+
+    private boolean reflink( File source, File destination ) {
+        def macOs = System.getProperty( 'os.name' ).toLowerCase().contains( 'mac' )
+        def command = macOs ?
+                [ 'cp', '-c', source.absolutePath, destination.absolutePath ] :
+                [ 'cp', '--reflink=always', source.absolutePath, destination.absolutePath ]
+        def process = new ProcessBuilder( command ).redirectErrorStream( true ).start()
+        def output = process.inputStream.text
+        if ( process.waitFor() != 0 ) {
+            if ( !warnedAboutFallback.getAndSet( true ) ) {
+                log.warn( 'Reflinks are not supported for {}, will copy files instead: {}', source.name, output.trim() )
+            }
+            Files.deleteIfExists( destination.toPath() )
+            return false
+        }
+        true
+    }
+
+}
@@ -0,0 +1,349 @@
+package com.athaydes.gradle.osgi.util
+
+import groovy.transform.CompileStatic
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.ZipException
+
+/**
+ * Rewrites a jar, replacing or adding only some of its entries.
+ *
+ * Entries which do not change are copied as raw, compressed bytes directly from the source file,
+ * without being inflated and deflated again, so the memory used does not depend on the size of the jar.
+ *
+ * Zip64 archives are not supported, in which case a {@link ZipException} is thrown and the destination
+ * should be discarded.
+ */
+@CompileStatic
+class JarRewriter {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50
+    private static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50
+
+    private static final int LOCAL_HEADER_SIZE = 30
+    private static final int CENTRAL_HEADER_SIZE = 46
+    private static final int END_OF_CENTRAL_DIR_SIZE = 22
+    private static final int MAX_COMMENT_SIZE = 0xFFFF
+
+    // general purpose flag indicating sizes and CRC are in a data descriptor after the entry's data
+    private static final int DATA_DESCRIPTOR_FLAG = 0x08
+    private static final int UTF8_FLAG = 0x800
+
+    private static final int STORED = 0
+    private static final int DEFLATED = 8
+
+    /**
+     * Rewrite a jar.
+     *
+     * @param source jar to read
+     * @param destination jar to write (must not be the same as source)
+     * @param replacedEntries contents of entries which should replace existing ones. Entries which
+     * do not exist in the source jar are added to the end of the destination jar.
+     * @param addedEntries contents of entries to add to the end of the destination jar
+     * @throws ZipException if the source jar cannot be rewritten without re-compressing it
+     */
+    static void rewrite( File source, File destination,
+                         Map<String, byte[]> replacedEntries,
+                         Map<String, byte[]> addedEntries = [ : ] ) throws IOException {
+        FileChannel input = FileChannel.open( source.toPath(), StandardOpenOption.READ )
+        try {
+            List<CentralEntry> entries = readCentralDirectory( input )
+
+            destination.delete()
+            FileChannel output = FileChannel.open( destination.toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE )
+            try {
+                def writer = new Writer( output )
+                Map<String, byte[]> pendingReplacements = new LinkedHashMap<>( replacedEntries )
+                for ( entry in entries ) {
+                    byte[] replacement = pendingReplacements.remove( entry.name )
+                    if ( replacement != null ) {
+                        writer.writeNewEntry( entry.name, replacement, entry.lastModified )
+                    } else {
+                        writer.copyEntry( input, entry )
+                    }
+                }
+                long now = dosTime( System.currentTimeMillis() )
+                ( pendingReplacements + addedEntries ).each { String name, byte[] contents ->
+                    writer.writeNewEntry( name, contents, now )
+                }
+                writer.finish()
+            } finally {
+                output.close()
+            }
+        } finally {
+            input.close()
+        }
+    }
+
+    private static List<CentralEntry> readCentralDirectory( FileChannel input ) {
+        long fileSize = input.size()
+        int tailSize = (int) Math.min( fileSize, END_OF_CENTRAL_DIR_SIZE + MAX_COMMENT_SIZE )
+        ByteBuffer tail = read( input, fileSize - tailSize, tailSize )
+
+        int endPosition = -1
+        for ( int i = tailSize - END_OF_CENTRAL_DIR_SIZE; i >= 0; i-- ) {
+            if ( tail.getInt( i ) == END_OF_CENTRAL_DIR_SIGNATURE ) {
+                endPosition = i
+                break
+            }
+        }
+        if ( endPosition < 0 ) {
+            throw new ZipException( 'End of central directory not found' )
+        }
+
+        int entryCount = u16( tail, endPosition + 10 )
+        long directorySize = u32( tail, endPosition + 12 )
+        long directoryOffset = u32( tail, endPosition + 16 )
+        if ( entryCount == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL ) {
+            throw new ZipException( 'Zip64 archives are not supported' )
+        }
+        if ( directoryOffset + directorySize > fileSize ) {
+            throw new ZipException( 'Invalid central directory offset' )
+        }
+
+        ByteBuffer directory = read( input, directoryOffset, (int) directorySize )
+        List<CentralEntry> entries = new ArrayList<>( entryCount )
+        int position = 0
+        for ( int i = 0; i < entryCount; i++ ) {
+            if ( directory.getInt( position ) != CENTRAL_HEADER_SIGNATURE ) {
+                throw new ZipException( 'Invalid central directory header' )
+            }
+            int recordSize = CENTRAL_HEADER_SIZE + u16( directory, position + 28 ) +
+                    u16( directory, position + 30 ) + u16( directory, position + 32 )
+            byte[] record = new byte[ recordSize ]
+            directory.position( position )
+            directory.get( record )
+            def entry = new CentralEntry( record )
+            if ( entry.compressedSize == 0xFFFFFFFFL || entry.localHeaderOffset == 0xFFFFFFFFL ) {
+                throw new ZipException( 'Zip64 entries are not supported' )
+            }
+            entries << entry
+            position += recordSize
+        }
+        return entries
+    }
+
+    private static ByteBuffer read( FileChannel input, long position, int size ) {
+        ByteBuffer buffer = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN )
+        while ( buffer.hasRemaining() ) {
+            if ( input.read( buffer, position + buffer.position() ) < 0 ) {
+                throw new EOFException( 'Unexpected end of zip file' )
+            }
+        }
+        buffer.flip()
+        return buffer
+    }
+
+    private static int u16( ByteBuffer buffer, int index ) {
+        buffer.getShort( index ) & 0xFFFF
+    }
+
+    private static long u32( ByteBuffer buffer, int index ) {
+        buffer.getInt( index ) & 0xFFFFFFFFL
+    }
+
+    private static long dosTime( long time ) {
+        def calendar = Calendar.instance
+        calendar.timeInMillis = time
+        int year = calendar.get( Calendar.YEAR )
+        if ( year < 1980 ) {
+            return ( 1 << 21 ) | ( 1 << 16 )
+        }
+        return ( ( year - 1980 ) << 25 ) | ( ( calendar.get( Calendar.MONTH ) + 1 ) << 21 ) |
+                ( calendar.get( Calendar.DAY_OF_MONTH ) << 16 ) | ( calendar.get( Calendar.HOUR_OF_DAY ) << 11 ) |
+                ( calendar.get( Calendar.MINUTE ) << 5 ) | ( calendar.get( Calendar.SECOND ) >> 1 )
+    }
+
+    /**
+     * An entry of the central directory of the source jar.
+     */
+    private static class CentralEntry {
+        final byte[] record
+        final ByteBuffer buffer
+        final String name
+
+        CentralEntry( byte[] record ) {
+            this.record = record
+            this.buffer = ByteBuffer.wrap( record ).order( ByteOrder.LITTLE_ENDIAN )
+            int nameLength = u16( buffer, 28 )
+            def charset = ( flags & UTF8_FLAG ) != 0 ? 'UTF-8' : 'Cp437'
+            this.name = new String( record, CENTRAL_HEADER_SIZE, nameLength, charset )
+        }
+
+        int getFlags() { u16( buffer, 8 ) }
+
+        long getLastModified() { u32( buffer, 12 ) }
+
+        long getCompressedSize() { u32( buffer, 20 ) }
+
+        long getLocalHeaderOffset() { u32( buffer, 42 ) }
+    }
+
+    private static class Writer {
+        final FileChannel output
+        final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream()
+        int entryCount = 0
+
+        Writer( FileChannel output ) {
+            this.output = output
+        }
+
+        void copyEntry( FileChannel input, CentralEntry entry ) {
+            ByteBuffer localHeader = read( input, entry.localHeaderOffset, LOCAL_HEADER_SIZE )
+            if ( localHeader.getInt( 0 ) != LOCAL_HEADER_SIGNATURE ) {
+                throw new ZipException( "Invalid local header for entry ${entry.name}" )
+            }
+            int localNameLength = u16( localHeader, 26 )
+            int localExtraLength = u16( localHeader, 28 )
+            ByteBuffer localExtra = read( input,
+                    entry.localHeaderOffset + LOCAL_HEADER_SIZE + localNameLength, localExtraLength )
+            long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + localNameLength + localExtraLength
+
+            // sizes and CRC are written in the local header, so any data descriptor is dropped
+            int flags = entry.flags & ~DATA_DESCRIPTOR_FLAG
+            byte[] nameBytes = Arrays.copyOfRange( entry.record, CENTRAL_HEADER_SIZE,
+                    CENTRAL_HEADER_SIZE + u16( entry.buffer, 28 ) )
+
+            long offset = checkedPosition()
+            ByteBuffer header = ByteBuffer.allocate( LOCAL_HEADER_SIZE + nameBytes.length + localExtraLength )
+                    .order( ByteOrder.LITTLE_ENDIAN )
+            header.putInt( LOCAL_HEADER_SIGNATURE )
+                    .putShort( entry.buffer.getShort( 6 ) ) // version needed to extract
+                    .putShort( (short) flags )
+                    .putShort( entry.buffer.getShort( 10 ) ) // compression method
+                    .putInt( entry.buffer.getInt( 12 ) ) // last modified time and date
+                    .putInt( entry.buffer.getInt( 16 ) ) // CRC
+                    .putInt( entry.buffer.getInt( 20 ) ) // compressed size
+                    .putInt( entry.buffer.getInt( 24 ) ) // uncompressed size
+                    .putShort( (short) nameBytes.length )
+                    .putShort( (short) localExtraLength )
+                    .put( nameBytes )
+                    .put( localExtra )
+            writeFully( header )
+
+            long remaining = entry.compressedSize
+            long position = dataOffset
+            while ( remaining > 0 ) {
+                long transferred = input.transferTo( position, remaining, output )
+                if ( transferred <= 0 ) {
+                    throw new EOFException( "Unexpected end of data for entry ${entry.name}" )
+                }
+                position += transferred
+                remaining -= transferred
+            }
+
+            byte[] record = entry.record.clone()
+            ByteBuffer recordBuffer = ByteBuffer.wrap( record ).order( ByteOrder.LITTLE_ENDIAN )
+            recordBuffer.putShort( 8, (short) flags )
+            recordBuffer.putInt( 42, (int) offset )
+            centralDirectory.write( record )
+            entryCount++
+        }
+
+        void writeNewEntry( String name, byte[] contents, long dosTime ) {
+            def crc = new CRC32()
+            crc.update( contents )
+
+            def deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true )
+            def compressed = new ByteArrayOutputStream( contents.length )
+            try {
+                deflater.setInput( contents )
+                deflater.finish()
+                byte[] buffer = new byte[ 8192 ]
+                while ( !deflater.finished() ) {
+                    int len = deflater.deflate( buffer )
+                    compressed.write( buffer, 0, len )
+                }
+            } finally {
+                deflater.end()
+            }
+
+            // only compress if doing so actually reduces the size
+            boolean deflate = compressed.size() < contents.length
+            byte[] data = deflate ? compressed.toByteArray() : contents
+            int method = deflate ? DEFLATED : STORED
+            short version = (short) ( deflate ? 20 : 10 )
+            byte[] nameBytes = name.getBytes( 'UTF-8' )
+
+            long offset = checkedPosition()
+            ByteBuffer header = ByteBuffer.allocate( LOCAL_HEADER_SIZE + nameBytes.length )
+                    .order( ByteOrder.LITTLE_ENDIAN )
+            header.putInt( LOCAL_HEADER_SIGNATURE )
+                    .putShort( version )
+                    .putShort( (short) UTF8_FLAG )
+                    .putShort( (short) method )
+                    .putInt( (int) dosTime )
+                    .putInt( (int) crc.value )
+                    .putInt( data.length )
+                    .putInt( contents.length )
+                    .putShort( (short) nameBytes.length )
+                    .putShort( (short) 0 )
+                    .put( nameBytes )
+            writeFully( header )
+            writeFully( ByteBuffer.wrap( data ) )
+
+            ByteBuffer record = ByteBuffer.allocate( CENTRAL_HEADER_SIZE + nameBytes.length )
+                    .order( ByteOrder.LITTLE_ENDIAN )
+            record.putInt( CENTRAL_HEADER_SIGNATURE )
+                    .putShort( version ) // version made by
+                    .putShort( version )
+                    .putShort( (short) UTF8_FLAG )
+                    .putShort( (short) method )
+                    .putInt( (int) dosTime )
+                    .putInt( (int) crc.value )
+                    .putInt( data.length )
+                    .putInt( contents.length )
+                    .putShort( (short) nameBytes.length )
+                    .putShort( (short) 0 ) // extra length
+                    .putShort( (short) 0 ) // comment length
+                    .putShort( (short) 0 ) // disk number
+                    .putShort( (short) 0 ) // internal attributes
+                    .putInt( 0 ) // external attributes
+                    .putInt( (int) offset )
+                    .put( nameBytes )
+            centralDirectory.write( record.array() )
+            entryCount++
+        }
+
+        void finish() {
+            if ( entryCount >= 0xFFFF ) {
+                throw new ZipException( 'Too many entries, Zip64 would be required' )
+            }
+            long directoryOffset = checkedPosition()
+            writeFully( ByteBuffer.wrap( centralDirectory.toByteArray() ) )
+            ByteBuffer end = ByteBuffer.allocate( END_OF_CENTRAL_DIR_SIZE ).order( ByteOrder.LITTLE_ENDIAN )
+            end.putInt( END_OF_CENTRAL_DIR_SIGNATURE )
+                    .putShort( (short) 0 ) // number of this disk
+                    .putShort( (short) 0 ) // disk where central directory starts
+                    .putShort( (short) entryCount )
+                    .putShort( (short) entryCount )
+                    .putInt( centralDirectory.size() )
+                    .putInt( (int) directoryOffset )
+                    .putShort( (short) 0 ) // comment length
+            writeFully( end )
+        }
+
+        private long checkedPosition() {
+            long position = output.position()
+            if ( position >= 0xFFFFFFFFL ) {
+                throw new ZipException( 'Jar too large, Zip64 would be required' )
+            }
+            return position
+        }
+
+        private void writeFully( ByteBuffer buffer ) {
+            buffer.rewind()
+            while ( buffer.hasRemaining() ) {
+                output.write( buffer )
+            }
+        }
+    }
+
+}
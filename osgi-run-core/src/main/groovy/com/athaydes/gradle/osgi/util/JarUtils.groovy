@@ -2,9 +2,12 @@ package com.athaydes.gradle.osgi.util
 
 import aQute.bnd.osgi.Jar
 import aQute.bnd.osgi.Resource
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
 
 import java.util.concurrent.Callable
 import java.util.zip.ZipEntry
+import java.util.zip.ZipException
 import java.util.zip.ZipFile
 import java.util.zip.ZipOutputStream
 
@@ -13,6 +16,8 @@ import java.util.zip.ZipOutputStream
  */
 class JarUtils {
 
+    static final Logger log = Logging.getLogger( JarUtils )
+
     /**
      * Attempt to consume the Manifest Jar entry.
      *
@@ -60,7 +65,7 @@ class JarUtils {
     static void copyJar( File source, File destination,
                          Closure copyFunction,
                          Closure afterFunction = { _ -> } ) {
-        def destinationStream = new ZipOutputStream( destination.newOutputStream() )
+        def destinationStream = new ZipOutputStream( new BufferedOutputStream( destination.newOutputStream() ) )
         def input = new ZipFile( source )
         try {
             for ( entry in input.entries() ) {
@@ -79,6 +84,43 @@ class JarUtils {
         }
     }
 
+    /**
+     * Rewrite a jar, replacing and adding the given entries.
+     *
+     * Entries which are not replaced are copied without being re-compressed whenever possible.
+     *
+     * @param source jar to read
+     * @param destination jar to write
+     * @param replacedEntries contents of the entries to replace
+     * @param addedEntries contents of the entries to add
+     */
+    static void rewriteJar( File source, File destination,
+                            Map<String, byte[]> replacedEntries,
+                            Map<String, byte[]> addedEntries = [ : ] ) {
+        try {
+            JarRewriter.rewrite( source, destination, replacedEntries, addedEntries )
+        } catch ( ZipException e ) {
+            log.debug( 'Cannot copy raw entries of jar {} ({}), will re-compress it', source.name, e.message )
+            def pendingReplacements = new LinkedHashMap<String, byte[]>( replacedEntries )
+            copyJar( source, destination, { ZipFile input, ZipOutputStream out, ZipEntry entry ->
+                def replacement = pendingReplacements.remove( entry.name )
+                def newEntry = new ZipEntry( entry.name )
+                newEntry.time = entry.time
+                out.putNextEntry( newEntry )
+                if ( replacement != null ) {
+                    out.write( replacement )
+                } else {
+                    input.getInputStream( entry ).withCloseable { stream -> out << stream }
+                }
+            }, { ZipOutputStream out ->
+                ( pendingReplacements + addedEntries ).each { String name, byte[] contents ->
+                    out.putNextEntry( new ZipEntry( name ) )
+                    out.write( contents )
+                }
+            } )
+        }
+    }
+
     static boolean hasManifest( File file ) {
         withManifestEntry( file, { ZipFile zip, ZipEntry entry -> true }, { false } )
     }
@@ -0,0 +1,63 @@
+package com.athaydes.gradle.osgi.util
+
+import org.gradle.api.GradleException
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Runs actions over a collection of items using a bounded number of threads.
+ */
+class ParallelExecutor {
+
+    /**
+     * Run the given action for each item, using at most {@code parallelism} threads.
+     *
+     * This method only returns after the action has been run for all items.
+     * If the action throws an Exception for any item, the first such Exception is re-thrown.
+     *
+     * @param items to process
+     * @param parallelism maximum number of threads to use
+     * @param name name used for the threads
+     * @param action to run for each item
+     */
+    static <T> void forEach( Collection<T> items, int parallelism, String name, Closure action ) {
+        if ( parallelism <= 1 || items.size() <= 1 ) {
+            items.each( action )
+            return
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min( parallelism, items.size() ), threadFactory( name ) )
+        try {
+            List<Future> futures = items.collect { item -> executor.submit( { action( item ) } as Callable ) }
+            for ( future in futures ) {
+                try {
+                    future.get()
+                } catch ( ExecutionException e ) {
+                    futures*.cancel( false )
+                    def cause = e.cause
+                    if ( cause instanceof RuntimeException ) throw cause
+                    throw new GradleException( "Error in $name: $cause", cause )
+                }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private static ThreadFactory threadFactory( String name ) {
+        def counter = new AtomicInteger()
+        return { Runnable runnable ->
+            def thread = new Thread( runnable, "$name-${counter.incrementAndGet()}" )
+            thread.daemon = true
+            thread
+        } as ThreadFactory
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.athaydes.gradle.osgi.util
+
+import groovy.transform.CompileStatic
+import org.gradle.api.GradleException
+
+import java.nio.file.Files
+
+/**
+ * Bundles embedded in the osgi-run plugin which can be added to the OSGi runtime.
+ */
+@CompileStatic
+class SupportBundles {
+
+    static final String RESOURCE_DIR = '/com/athaydes/gradle/osgi/support'
+
+    /**
+     * Extract the support bundle with the given name.
+     *
+     * @param name of the bundle
+     * @param destination file to write the bundle to
+     */
+    static void extract( String name, File destination ) {
+        def resource = open( name )
+        destination.parentFile.mkdirs()
+        Files.deleteIfExists( destination.toPath() )
+        resource.withCloseable { InputStream stream -> Files.copy( stream, destination.toPath() ) }
+    }
+
+    /**
+     * Open the support bundle with the given name.
+     *
+     * @param name of the bundle
+     * @return stream of the bundle's contents, which must be closed by the caller
+     */
+    static InputStream open( String name ) {
+        def resource = SupportBundles.getResourceAsStream( "$RESOURCE_DIR/${name}.jar" )
+        if ( resource == null ) {
+            throw new GradleException( "Support bundle not found in the osgi-run plugin: $name" )
+        }
+        resource
+    }
+
+}
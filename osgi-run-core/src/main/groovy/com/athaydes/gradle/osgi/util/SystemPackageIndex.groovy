@@ -0,0 +1,70 @@
+package com.athaydes.gradle.osgi.util
+
+import aQute.bnd.version.MavenVersion
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Index of the packages exported by system libs through the system bundle.
+ *
+ * The packages of each jar are taken from its {@link BundleMetadata}, so jars are only scanned once per content hash.
+ */
+@CompileStatic
+class SystemPackageIndex {
+
+    static final String SYSTEM_PACKAGES_EXTRA = 'org.osgi.framework.system.packages.extra'
+
+    private final BundleMetadataIndex metadataIndex
+    private final Map<String, String> exportsByHash = new ConcurrentHashMap<>()
+
+    SystemPackageIndex( BundleMetadataIndex metadataIndex ) {
+        this.metadataIndex = metadataIndex
+    }
+
+    /**
+     * Append the packages exported by the given jars to the given builder, separated by commas.
+     *
+     * @param jars system libs
+     * @param builder to append the exports to. If not empty, a comma is appended before the first export.
+     * @return the builder
+     */
+    StringBuilder appendExports( Collection<File> jars, StringBuilder builder ) {
+        for ( jar in jars ) {
+            def exports = exportsOf( metadataIndex.get( jar ) )
+            if ( exports ) {
+                if ( builder.length() > 0 ) {
+                    builder.append( ',' )
+                }
+                builder.append( exports )
+            }
+        }
+        builder
+    }
+
+    /**
+     * @param metadata of a jar
+     * @return the Export-Package header of the jar if it has one,
+     * or all of its class packages with the jar's version otherwise
+     */
+    String exportsOf( BundleMetadata metadata ) {
+        exportsByHash.computeIfAbsent( metadata.hash ) {
+            if ( metadata.exportPackage?.trim() ) {
+                return metadata.exportPackage.trim()
+            }
+            if ( !metadata.classPackages ) {
+                return ''
+            }
+            def version = MavenVersion.parseString( metadata.version ).OSGiVersion.toString()
+            def builder = new StringBuilder( metadata.classPackages.size() * ( 32 + version.length() ) )
+            for ( classPackage in metadata.classPackages ) {
+                if ( builder.length() > 0 ) {
+                    builder.append( ',' )
+                }
+                builder.append( classPackage ).append( ';version=' ).append( version )
+            }
+            builder.toString()
+        }
+    }
+
+}
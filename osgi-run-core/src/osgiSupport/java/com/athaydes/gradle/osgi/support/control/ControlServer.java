@@ -0,0 +1,203 @@
+package com.athaydes.gradle.osgi.support.control;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bundle which lets the osgi-run plugin control a running OSGi framework.
+ * <p>
+ * A server socket is opened on the loopback interface and its port, together with a random token, is written
+ * to the file given by the {@code osgirun.control.file} framework property. Clients must send the token as the
+ * first line, then one command per line, with its arguments separated by tabs. Each command is answered with a
+ * line starting with {@code OK} or {@code ERROR}:
+ * <ul>
+ * <li>{@code bundles}: one line per bundle with its ID, state and location, then {@code OK}.</li>
+ * <li>{@code install <start-level|-> <file> <location>}: installs a bundle, answers its ID.</li>
+ * <li>{@code update <id> <file>}: updates a bundle with the contents of the given file.</li>
+ * <li>{@code uninstall <id>}: uninstalls a bundle.</li>
+ * <li>{@code refresh}: refreshes all updated and uninstalled bundles, waiting for the refresh to complete.</li>
+ * <li>{@code start <id>}: starts a bundle.</li>
+ * <li>{@code shutdown}: stops the framework.</li>
+ * </ul>
+ */
+public class ControlServer implements BundleActivator {
+
+    static final String CONTROL_FILE_PROPERTY = "osgirun.control.file";
+    static final long REFRESH_TIMEOUT_SECONDS = 120;
+
+    private volatile BundleContext context;
+    private volatile ServerSocket serverSocket;
+    private volatile File controlFile;
+    private String token;
+
+    @Override
+    public void start( BundleContext context ) throws IOException {
+        this.context = context;
+        token = UUID.randomUUID().toString();
+        serverSocket = new ServerSocket( 0, 4, InetAddress.getLoopbackAddress() );
+
+        String controlFileName = context.getProperty( CONTROL_FILE_PROPERTY );
+        controlFile = new File( controlFileName == null ? "daemon/control.properties" : controlFileName );
+        writeControlFile();
+
+        Thread acceptor = new Thread( this::acceptConnections, "osgi-run-control" );
+        acceptor.setDaemon( true );
+        acceptor.start();
+    }
+
+    @Override
+    public void stop( BundleContext context ) throws IOException {
+        controlFile.delete();
+        serverSocket.close();
+    }
+
+    private void writeControlFile() throws IOException {
+        File dir = controlFile.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File temp = new File( dir, controlFile.getName() + ".tmp" );
+        try ( PrintWriter writer = new PrintWriter( new OutputStreamWriter(
+                Files.newOutputStream( temp.toPath() ), StandardCharsets.UTF_8 ) ) ) {
+            writer.println( "port=" + serverSocket.getLocalPort() );
+            writer.println( "token=" + token );
+        }
+
+        // only the user running the framework may read the token
+        temp.setReadable( false, false );
+        temp.setReadable( true, true );
+
+        Files.move( temp.toPath(), controlFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    private void acceptConnections() {
+        while ( !serverSocket.isClosed() ) {
+            try ( Socket socket = serverSocket.accept() ) {
+                // clients are served one at a time, so that concurrent redeployments cannot interleave
+                serve( socket );
+            } catch ( SocketException e ) {
+                // server socket closed
+            } catch ( IOException e ) {
+                System.err.println( "osgi-run control connection failed: " + e );
+            }
+        }
+    }
+
+    private void serve( Socket socket ) throws IOException {
+        BufferedReader reader = new BufferedReader( new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.UTF_8 ) );
+        PrintWriter writer = new PrintWriter( new OutputStreamWriter(
+                socket.getOutputStream(), StandardCharsets.UTF_8 ), true );
+
+        if ( !token.equals( reader.readLine() ) ) {
+            writer.println( "ERROR unauthorized" );
+            return;
+        }
+
+        String line;
+        while ( ( line = reader.readLine() ) != null ) {
+            String[] parts = line.split( "\t" );
+            try {
+                if ( !execute( parts, writer ) ) {
+                    return;
+                }
+            } catch ( Exception e ) {
+                writer.println( "ERROR " + String.valueOf( e ).replace( '\n', ' ' ) );
+            }
+        }
+    }
+
+    private boolean execute( String[] command, PrintWriter writer ) throws Exception {
+        switch ( command[ 0 ] ) {
+            case "bundles":
+                for ( Bundle bundle : context.getBundles() ) {
+                    writer.println( bundle.getBundleId() + "\t" + bundle.getState() + "\t" + bundle.getLocation() );
+                }
+                writer.println( "OK" );
+                return true;
+            case "install": {
+                Bundle bundle;
+                try ( InputStream stream = new FileInputStream( command[ 2 ] ) ) {
+                    bundle = context.installBundle( command[ 3 ], stream );
+                }
+                if ( !"-".equals( command[ 1 ] ) ) {
+                    bundle.adapt( BundleStartLevel.class ).setStartLevel( Integer.parseInt( command[ 1 ] ) );
+                }
+                writer.println( "OK " + bundle.getBundleId() );
+                return true;
+            }
+            case "update":
+                try ( InputStream stream = new FileInputStream( command[ 2 ] ) ) {
+                    bundle( command[ 1 ] ).update( stream );
+                }
+                writer.println( "OK" );
+                return true;
+            case "uninstall":
+                bundle( command[ 1 ] ).uninstall();
+                writer.println( "OK" );
+                return true;
+            case "refresh":
+                refresh();
+                writer.println( "OK" );
+                return true;
+            case "start":
+                bundle( command[ 1 ] ).start();
+                writer.println( "OK" );
+                return true;
+            case "shutdown":
+                writer.println( "OK" );
+                context.getBundle( 0 ).stop();
+                return false;
+            case "bye":
+                return false;
+            default:
+                writer.println( "ERROR unknown command: " + command[ 0 ] );
+                return true;
+        }
+    }
+
+    private Bundle bundle( String id ) throws BundleException {
+        Bundle bundle = context.getBundle( Long.parseLong( id ) );
+        if ( bundle == null ) {
+            throw new BundleException( "No bundle with ID " + id );
+        }
+        return bundle;
+    }
+
+    private void refresh() throws InterruptedException {
+        CountDownLatch refreshed = new CountDownLatch( 1 );
+
+        // refreshes all bundles which were updated or uninstalled, and all bundles which depend on them
+        context.getBundle( 0 ).adapt( FrameworkWiring.class ).refreshBundles( null, event -> {
+            if ( event.getType() == FrameworkEvent.PACKAGES_REFRESHED ) refreshed.countDown();
+        } );
+
+        if ( !refreshed.await( REFRESH_TIMEOUT_SECONDS, TimeUnit.SECONDS ) ) {
+            throw new IllegalStateException( "Bundles not refreshed within " + REFRESH_TIMEOUT_SECONDS + " seconds" );
+        }
+    }
+
+}
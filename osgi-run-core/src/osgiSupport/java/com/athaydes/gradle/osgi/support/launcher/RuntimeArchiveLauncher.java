@@ -0,0 +1,163 @@
+package com.athaydes.gradle.osgi.support.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Starts the OSGi runtime packed into the executable jar this class is loaded from.
+ * <p>
+ * The files of the runtime are kept in the jar under the {@code runtime/} directory. On the first start, they are
+ * extracted into a cache directory named after the runtime and the identity of its contents, so that later starts
+ * of the same archive do not extract anything. The framework is then launched in that directory, in a new JVM,
+ * with the same classpath, main class and arguments as the run scripts of the runtime. Any arguments given to this
+ * launcher are passed on to the framework.
+ * <p>
+ * The cache directory defaults to {@code ~/.osgi-run/runtimes}, and may be changed with the
+ * {@code osgirun.cache.dir} system property.
+ */
+public class RuntimeArchiveLauncher {
+
+    public static final String RUNTIME_DIR = "runtime/";
+    public static final String CACHE_DIR_PROPERTY = "osgirun.cache.dir";
+    public static final String RUNTIME_NAME = "Osgi-Run-Runtime-Name";
+    public static final String RUNTIME_ID = "Osgi-Run-Runtime-Id";
+    public static final String MAIN_CLASS = "Osgi-Run-Main-Class";
+    public static final String CLASS_PATH = "Osgi-Run-Class-Path";
+    public static final String JAVA_ARGS = "Osgi-Run-Java-Args";
+    public static final String PROGRAM_ARGS = "Osgi-Run-Program-Args";
+
+    private static final String COMPLETE_MARKER = ".osgi-run-extracted";
+
+    public static void main( String[] args ) throws Exception {
+        File archive = archiveFile();
+
+        File runtimeDir;
+        Attributes attributes;
+        try ( JarFile jar = new JarFile( archive ) ) {
+            attributes = jar.getManifest().getMainAttributes();
+            runtimeDir = new File( cacheDir(), attributes.getValue( RUNTIME_NAME ) + "-" +
+                    attributes.getValue( RUNTIME_ID ) );
+            if ( !new File( runtimeDir, COMPLETE_MARKER ).isFile() ) {
+                extract( jar, runtimeDir );
+            }
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getPath() );
+        command.addAll( tokenize( attributes.getValue( JAVA_ARGS ) ) );
+        String classPath = attributes.getValue( CLASS_PATH );
+        if ( classPath != null && !classPath.isEmpty() ) {
+            command.add( "-cp" );
+            command.add( String.join( File.pathSeparator, classPath.split( "," ) ) );
+        }
+        command.add( attributes.getValue( MAIN_CLASS ) );
+        command.addAll( tokenize( attributes.getValue( PROGRAM_ARGS ) ) );
+        command.addAll( Arrays.asList( args ) );
+
+        Process process = new ProcessBuilder( command ).directory( runtimeDir ).inheritIO().start();
+
+        // stopping the launcher stops the framework
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+            if ( process.isAlive() ) {
+                process.destroy();
+            }
+        } ) );
+
+        System.exit( process.waitFor() );
+    }
+
+    private static File archiveFile() throws URISyntaxException {
+        return new File( RuntimeArchiveLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI() );
+    }
+
+    private static File cacheDir() {
+        String cacheDir = System.getProperty( CACHE_DIR_PROPERTY );
+        if ( cacheDir != null && !cacheDir.isEmpty() ) {
+            return new File( cacheDir );
+        }
+        return new File( System.getProperty( "user.home" ), ".osgi-run" + File.separator + "runtimes" );
+    }
+
+    /**
+     * Extract the runtime into a temporary directory, then move it to its final location, so that a runtime
+     * which was only partially extracted, or is being extracted by another launcher, is never used.
+     */
+    private static void extract( JarFile jar, File runtimeDir ) throws IOException {
+        Path parent = runtimeDir.getAbsoluteFile().getParentFile().toPath();
+        Files.createDirectories( parent );
+        Path tempDir = Files.createTempDirectory( parent, "." + runtimeDir.getName() + "-" );
+
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while ( entries.hasMoreElements() ) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if ( entry.isDirectory() || !name.startsWith( RUNTIME_DIR ) ) continue;
+                Path file = tempDir.resolve( name.substring( RUNTIME_DIR.length() ) ).normalize();
+                if ( !file.startsWith( tempDir ) ) {
+                    throw new IOException( "Invalid runtime archive entry: " + name );
+                }
+                Files.createDirectories( file.getParent() );
+                try ( InputStream stream = jar.getInputStream( entry ) ) {
+                    Files.copy( stream, file );
+                }
+                if ( name.endsWith( ".sh" ) ) {
+                    file.toFile().setExecutable( true );
+                }
+            }
+            Files.createFile( tempDir.resolve( COMPLETE_MARKER ) );
+
+            if ( new File( runtimeDir, COMPLETE_MARKER ).isFile() ) return;
+            deleteRecursively( runtimeDir.toPath() );
+            try {
+                Files.move( tempDir, runtimeDir.toPath(), StandardCopyOption.ATOMIC_MOVE );
+            } catch ( AtomicMoveNotSupportedException e ) {
+                Files.move( tempDir, runtimeDir.toPath() );
+            }
+        } catch ( FileAlreadyExistsException | DirectoryNotEmptyException e ) {
+            // another launcher has extracted the same runtime in the meantime
+            if ( !new File( runtimeDir, COMPLETE_MARKER ).isFile() ) throw e;
+        } finally {
+            deleteRecursively( tempDir );
+        }
+    }
+
+    private static void deleteRecursively( Path path ) throws IOException {
+        if ( !Files.exists( path ) ) return;
+        try ( Stream<Path> files = Files.walk( path ) ) {
+            for ( Path file : ( Iterable<Path> ) files.sorted( Comparator.reverseOrder() )::iterator ) {
+                Files.delete( file );
+            }
+        }
+    }
+
+    /**
+     * Split the arguments the same way the runOsgi task does, at whitespace.
+     */
+    private static List<String> tokenize( String args ) {
+        List<String> result = new ArrayList<>();
+        if ( args == null ) return result;
+        for ( String arg : args.trim().split( "\\s+" ) ) {
+            if ( !arg.isEmpty() ) result.add( arg );
+        }
+        return result;
+    }
+
+}
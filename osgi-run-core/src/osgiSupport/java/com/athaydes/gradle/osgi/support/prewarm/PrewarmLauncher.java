@@ -0,0 +1,115 @@
+package com.athaydes.gradle.osgi.support.prewarm;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceLoader;
+
+/**
+ * Populates the storage area of an OSGi framework without running any bundle.
+ * <p>
+ * The framework is only initialized, never started, so bundles are installed, given their start levels, marked
+ * to be started and resolved, but no bundle activator runs. The next time the framework is launched from the same
+ * storage area, it starts all marked bundles without having to install them again.
+ * <p>
+ * The only argument is a properties file with the framework properties (keys starting with {@code framework.})
+ * and the bundles to install ({@code bundle.<index>.location}, {@code bundle.<index>.file},
+ * {@code bundle.<index>.startLevel} and {@code bundle.<index>.start}).
+ */
+public class PrewarmLauncher {
+
+    public static void main( String[] args ) throws Exception {
+        if ( args.length != 1 ) {
+            System.err.println( "Usage: " + PrewarmLauncher.class.getName() + " <plan-file>" );
+            System.exit( 2 );
+        }
+
+        Properties plan = new Properties();
+        try ( Reader reader = new InputStreamReader( new FileInputStream( args[ 0 ] ), StandardCharsets.UTF_8 ) ) {
+            plan.load( reader );
+        }
+
+        Map<String, String> frameworkProperties = new HashMap<>();
+        for ( String key : plan.stringPropertyNames() ) {
+            if ( key.startsWith( "framework." ) ) {
+                frameworkProperties.put( key.substring( "framework.".length() ), plan.getProperty( key ) );
+            }
+        }
+
+        Iterator<FrameworkFactory> factories = ServiceLoader.load( FrameworkFactory.class ).iterator();
+        if ( !factories.hasNext() ) {
+            throw new IllegalStateException( "No OSGi FrameworkFactory found in the classpath" );
+        }
+
+        Framework framework = factories.next().newFramework( frameworkProperties );
+        framework.init();
+
+        int failures = 0;
+        try {
+            BundleContext context = framework.getBundleContext();
+            for ( int i = 0; plan.containsKey( "bundle." + i + ".location" ); i++ ) {
+                String location = plan.getProperty( "bundle." + i + ".location" );
+                try {
+                    install( context, location, new File( plan.getProperty( "bundle." + i + ".file" ) ),
+                            plan.getProperty( "bundle." + i + ".startLevel" ),
+                            Boolean.parseBoolean( plan.getProperty( "bundle." + i + ".start" ) ) );
+                } catch ( Exception e ) {
+                    failures++;
+                    System.err.println( "Unable to install bundle " + location + ": " + e );
+                }
+            }
+
+            framework.adapt( FrameworkWiring.class ).resolveBundles( null );
+
+            int unresolved = 0;
+            for ( Bundle bundle : context.getBundles() ) {
+                if ( bundle.getState() == Bundle.INSTALLED ) {
+                    unresolved++;
+                    System.out.println( "Bundle could not be resolved: " + bundle.getLocation() );
+                }
+            }
+            System.out.println( "Pre-warmed framework storage with " + ( context.getBundles().length - 1 ) +
+                    " bundles (" + unresolved + " unresolved)" );
+        } finally {
+            framework.stop();
+            FrameworkEvent event = framework.waitForStop( 60_000 );
+            if ( event.getType() == FrameworkEvent.WAIT_TIMEDOUT ) {
+                System.err.println( "Framework did not stop within 60 seconds" );
+                failures++;
+            }
+        }
+
+        System.exit( failures == 0 ? 0 : 1 );
+    }
+
+    private static void install( BundleContext context, String location, File file,
+                                 String startLevel, boolean start ) throws Exception {
+        Bundle bundle;
+        try ( InputStream stream = new FileInputStream( file ) ) {
+            bundle = context.installBundle( location, stream );
+        }
+        if ( startLevel != null && !startLevel.isEmpty() ) {
+            bundle.adapt( BundleStartLevel.class ).setStartLevel( Integer.parseInt( startLevel ) );
+        }
+        if ( start ) {
+            // the framework is not active, so this only marks the bundle to be started when the framework starts
+            bundle.start();
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.athaydes.gradle.osgi.support.profiler;
+
+import org.osgi.framework.Bundle;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The times, in milliseconds since the epoch, at which a bundle reached each state.
+ * A value of 0 means the state was not reached while the profiler was running.
+ */
+final class BundleTimeline {
+
+    final long id;
+    final String symbolicName;
+    final String version;
+
+    volatile long installed;
+    volatile long resolved;
+    volatile long starting;
+    volatile long started;
+
+    final AtomicInteger serviceRegistrations = new AtomicInteger();
+
+    BundleTimeline( Bundle bundle ) {
+        this.id = bundle.getBundleId();
+        this.symbolicName = String.valueOf( bundle.getSymbolicName() );
+        this.version = String.valueOf( bundle.getVersion() );
+    }
+
+    /**
+     * @return the time taken by the bundle's activator to start, or -1 if unknown
+     */
+    long activatorMillis() {
+        return starting > 0 && started >= starting ? started - starting : -1;
+    }
+
+}
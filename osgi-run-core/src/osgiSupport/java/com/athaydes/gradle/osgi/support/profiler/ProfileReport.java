@@ -0,0 +1,126 @@
+package com.athaydes.gradle.osgi.support.profiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Startup profile report, written both as JSON (for tools) and HTML (for humans).
+ */
+final class ProfileReport {
+
+    private final long jvmStartTime;
+    private final long profilerStartTime;
+    private final long frameworkStartedTime;
+    private final long settledTime;
+    private final List<BundleTimeline> timelines;
+
+    ProfileReport( long jvmStartTime, long profilerStartTime, long frameworkStartedTime,
+                   long settledTime, Collection<BundleTimeline> timelines ) {
+        this.jvmStartTime = jvmStartTime;
+        this.profilerStartTime = profilerStartTime;
+        this.frameworkStartedTime = frameworkStartedTime;
+        this.settledTime = settledTime;
+        this.timelines = new ArrayList<>( timelines );
+        this.timelines.sort( Comparator.comparingLong( t -> t.id ) );
+    }
+
+    void writeTo( File dir ) throws IOException {
+        Files.createDirectories( dir.toPath() );
+        try ( Writer writer = writerFor( new File( dir, "startup-profile.json" ) ) ) {
+            writeJson( writer );
+        }
+        try ( Writer writer = writerFor( new File( dir, "startup-profile.html" ) ) ) {
+            writeHtml( writer );
+        }
+    }
+
+    private static Writer writerFor( File file ) throws IOException {
+        return new OutputStreamWriter( Files.newOutputStream( file.toPath() ), StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * @return milliseconds since the JVM started, or -1 if the time is unknown
+     */
+    private long sinceJvmStart( long time ) {
+        return time > 0 ? time - jvmStartTime : -1;
+    }
+
+    void writeJson( Writer writer ) throws IOException {
+        writer.write( "{\n" );
+        writer.write( "  \"profilerStartedMillis\": " + sinceJvmStart( profilerStartTime ) + ",\n" );
+        writer.write( "  \"frameworkStartedMillis\": " + sinceJvmStart( frameworkStartedTime ) + ",\n" );
+        writer.write( "  \"settledMillis\": " + sinceJvmStart( settledTime ) + ",\n" );
+        writer.write( "  \"bundles\": [" );
+        boolean first = true;
+        for ( BundleTimeline timeline : timelines ) {
+            writer.write( first ? "\n" : ",\n" );
+            first = false;
+            writer.write( "    {\"id\": " + timeline.id +
+                    ", \"symbolicName\": " + jsonString( timeline.symbolicName ) +
+                    ", \"version\": " + jsonString( timeline.version ) +
+                    ", \"installedMillis\": " + sinceJvmStart( timeline.installed ) +
+                    ", \"resolvedMillis\": " + sinceJvmStart( timeline.resolved ) +
+                    ", \"startingMillis\": " + sinceJvmStart( timeline.starting ) +
+                    ", \"activeMillis\": " + sinceJvmStart( timeline.started ) +
+                    ", \"activatorMillis\": " + timeline.activatorMillis() +
+                    ", \"serviceRegistrations\": " + timeline.serviceRegistrations.get() + "}" );
+        }
+        writer.write( "\n  ]\n}\n" );
+    }
+
+    void writeHtml( Writer writer ) throws IOException {
+        long total = Math.max( 1, sinceJvmStart( settledTime ) );
+        writer.write( "<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>OSGi startup profile</title>\n" +
+                "<style>body{font-family:sans-serif}td,th{padding:2px 8px;text-align:right}" +
+                "td.name{text-align:left}.bar{background:#4a90d9;height:10px}</style></head><body>\n" );
+        writer.write( "<h1>OSGi startup profile</h1>\n<p>Framework started at " +
+                sinceJvmStart( frameworkStartedTime ) + " ms, startup settled at " +
+                sinceJvmStart( settledTime ) + " ms after the JVM started.</p>\n" );
+        writer.write( "<table><tr><th>ID</th><th>Bundle</th><th>Version</th><th>Resolved (ms)</th>" +
+                "<th>Active (ms)</th><th>Activator (ms)</th><th>Services</th><th>Activator time</th></tr>\n" );
+
+        List<BundleTimeline> byActivatorTime = new ArrayList<>( timelines );
+        byActivatorTime.sort( Comparator.comparingLong( BundleTimeline::activatorMillis ).reversed() );
+
+        for ( BundleTimeline timeline : byActivatorTime ) {
+            long activator = timeline.activatorMillis();
+            long width = activator > 0 ? Math.max( 1, activator * 400 / total ) : 0;
+            writer.write( "<tr><td>" + timeline.id + "</td><td class=\"name\">" + html( timeline.symbolicName ) +
+                    "</td><td>" + html( timeline.version ) +
+                    "</td><td>" + sinceJvmStart( timeline.resolved ) +
+                    "</td><td>" + sinceJvmStart( timeline.started ) +
+                    "</td><td>" + activator +
+                    "</td><td>" + timeline.serviceRegistrations.get() +
+                    "</td><td class=\"name\"><div class=\"bar\" style=\"width:" + width + "px\"></div></td></tr>\n" );
+        }
+        writer.write( "</table>\n<p>-1 means the bundle did not reach the state while being profiled.</p>\n" +
+                "</body></html>\n" );
+    }
+
+    private static String jsonString( String value ) {
+        StringBuilder builder = new StringBuilder( value.length() + 2 ).append( '"' );
+        for ( char c : value.toCharArray() ) {
+            if ( c == '"' || c == '\\' ) {
+                builder.append( '\\' ).append( c );
+            } else if ( c < 0x20 ) {
+                builder.append( String.format( "\\u%04x", ( int ) c ) );
+            } else {
+                builder.append( c );
+            }
+        }
+        return builder.append( '"' ).toString();
+    }
+
+    private static String html( String value ) {
+        return value.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" );
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.athaydes.gradle.osgi.support.profiler;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.SynchronousBundleListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bundle which records the startup of all other bundles of an OSGi runtime.
+ * <p>
+ * This bundle must be started before all other bundles. Once the framework has started and no bundle events
+ * have happened for a while, a report is written to the directory given by the
+ * {@code osgirun.profiler.dir} framework property. If the {@code osgirun.profiler.stopOnSettle} property is
+ * {@code true}, the framework is stopped after that.
+ */
+public class StartupProfiler implements BundleActivator, SynchronousBundleListener,
+        ServiceListener, FrameworkListener {
+
+    static final String REPORT_DIR_PROPERTY = "osgirun.profiler.dir";
+    static final String SETTLE_MILLIS_PROPERTY = "osgirun.profiler.settleMillis";
+    static final String STOP_ON_SETTLE_PROPERTY = "osgirun.profiler.stopOnSettle";
+
+    private final Map<Long, BundleTimeline> timelines = new ConcurrentHashMap<>();
+    private final AtomicBoolean reportWritten = new AtomicBoolean( false );
+
+    private volatile BundleContext context;
+    private volatile long jvmStartTime;
+    private volatile long profilerStartTime;
+    private volatile long frameworkStartedTime;
+    private volatile long lastEventTime;
+    private volatile Thread settleWatcher;
+
+    @Override
+    public void start( BundleContext context ) {
+        this.context = context;
+        jvmStartTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+        profilerStartTime = System.currentTimeMillis();
+        lastEventTime = profilerStartTime;
+
+        context.addBundleListener( this );
+        context.addServiceListener( this );
+        context.addFrameworkListener( this );
+
+        // bundles installed before this bundle started have no installation time
+        for ( Bundle bundle : context.getBundles() ) {
+            timelineOf( bundle );
+        }
+
+        if ( context.getBundle( 0 ).getState() == Bundle.ACTIVE ) {
+            // the framework has already started, as happens with Knopflerfish
+            frameworkStartedTime = profilerStartTime;
+        }
+
+        long settleMillis = Long.parseLong( property( SETTLE_MILLIS_PROPERTY, "2000" ) );
+        settleWatcher = new Thread( () -> waitForSettling( settleMillis ), "osgi-run-profiler" );
+        settleWatcher.setDaemon( true );
+        settleWatcher.start();
+    }
+
+    @Override
+    public void stop( BundleContext context ) {
+        settleWatcher.interrupt();
+        context.removeBundleListener( this );
+        context.removeServiceListener( this );
+        context.removeFrameworkListener( this );
+        writeReport();
+    }
+
+    @Override
+    public void bundleChanged( BundleEvent event ) {
+        long now = System.currentTimeMillis();
+        lastEventTime = now;
+        BundleTimeline timeline = timelineOf( event.getBundle() );
+        switch ( event.getType() ) {
+            case BundleEvent.INSTALLED:
+                timeline.installed = now;
+                break;
+            case BundleEvent.RESOLVED:
+                timeline.resolved = now;
+                break;
+            case BundleEvent.STARTING:
+                timeline.starting = now;
+                break;
+            case BundleEvent.STARTED:
+                timeline.started = now;
+                break;
+        }
+    }
+
+    @Override
+    public void serviceChanged( ServiceEvent event ) {
+        lastEventTime = System.currentTimeMillis();
+        if ( event.getType() == ServiceEvent.REGISTERED ) {
+            Bundle bundle = event.getServiceReference().getBundle();
+            if ( bundle != null ) {
+                timelineOf( bundle ).serviceRegistrations.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void frameworkEvent( FrameworkEvent event ) {
+        if ( event.getType() == FrameworkEvent.STARTED ) {
+            frameworkStartedTime = System.currentTimeMillis();
+            lastEventTime = frameworkStartedTime;
+        }
+    }
+
+    private BundleTimeline timelineOf( Bundle bundle ) {
+        return timelines.computeIfAbsent( bundle.getBundleId(), id -> new BundleTimeline( bundle ) );
+    }
+
+    private void waitForSettling( long settleMillis ) {
+        try {
+            while ( frameworkStartedTime == 0 ||
+                    System.currentTimeMillis() - lastEventTime < settleMillis ) {
+                Thread.sleep( Math.max( 50, settleMillis / 10 ) );
+            }
+            writeReport();
+            if ( Boolean.parseBoolean( property( STOP_ON_SETTLE_PROPERTY, "false" ) ) ) {
+                // used for training runs, which only need to go through the startup of the runtime
+                context.getBundle( 0 ).stop();
+            }
+        } catch ( InterruptedException e ) {
+            // bundle stopped before startup settled
+        } catch ( BundleException e ) {
+            System.err.println( "osgi-run profiler could not stop the framework: " + e );
+        }
+    }
+
+    private void writeReport() {
+        if ( reportWritten.getAndSet( true ) ) {
+            return;
+        }
+
+        File reportDir = new File( property( REPORT_DIR_PROPERTY, "profile" ) );
+        ProfileReport report = new ProfileReport( jvmStartTime, profilerStartTime,
+                frameworkStartedTime, lastEventTime, timelines.values() );
+        try {
+            report.writeTo( reportDir );
+            System.out.println( "osgi-run startup profile written to " + reportDir.getAbsolutePath() );
+        } catch ( IOException e ) {
+            System.err.println( "osgi-run profiler could not write report to " + reportDir + ": " + e );
+        }
+    }
+
+    private String property( String name, String defaultValue ) {
+        String value = context.getProperty( name );
+        return value == null ? defaultValue : value;
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import com.athaydes.gradle.osgi.util.FileMaterializer
+import org.gradle.api.file.FileType
+import org.gradle.testfixtures.ProjectBuilder
+import org.gradle.work.ChangeType
+import org.gradle.work.FileChange
+import org.gradle.work.InputChanges
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.util.jar.Attributes
+import java.util.jar.JarFile
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+
+class CreateBundlesDirSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "A jar which is not a bundle is wrapped into the bundles directory"() {
+        given: 'A jar which is not a bundle'
+        def jar = createJar( new File( tempDir, 'libs' ), 'plain-1.0.jar',
+                [ 'Implementation-Title': 'plain', 'Implementation-Version': '1.0' ] )
+        def bundlesDir = new File( tempDir, 'bundle' )
+        bundlesDir.mkdirs()
+        def metadataIndex = BundleMetadataIndex.load( new File( tempDir, 'index' ) )
+
+        when: 'The jar is processed'
+        def processed = CreateBundlesDir.processArtifact( jar, bundlesDir, metadataIndex,
+                new WrapInstructionsConfig( useCache: false ), null, new FileMaterializer( 'copy', tempDir ) )
+
+        then: 'A bundle wrapping the jar is created in the bundles directory'
+        processed
+        def attributes = manifestOf( new File( bundlesDir, 'plain-1.0.jar' ) )
+        attributes.getValue( 'Bundle-SymbolicName' ) == 'plain'
+        attributes.getValue( 'Bundle-Version' ) == '1.0.0'
+    }
+
+    def "Only the artifacts added or modified since the last build are processed"() {
+        given: 'The createBundlesDir task'
+        def task = createBundlesDirTask()
+
+        and: 'Artifacts of which one is new, one was modified, one is unchanged and one moved to another directory'
+        def libs = new File( tempDir, 'libs' )
+        def added = createJar( libs, 'added.jar', [ : ] )
+        def modified = createJar( libs, 'modified.jar', [ : ] )
+        def unchanged = createJar( libs, 'unchanged.jar', [ : ] )
+        def moved = createJar( libs, 'moved.jar', [ : ] )
+        def artifactByName = [ added, modified, unchanged, moved ].collectEntries { [ ( it.name ): it ] }
+
+        and: 'A bundles directory created from the previous artifacts, one of which was removed'
+        def bundlesDir = new File( tempDir, 'bundle' )
+        [ 'modified.jar', 'unchanged.jar', 'moved.jar', 'removed.jar' ].each { createJar( bundlesDir, it, [ : ] ) }
+
+        and: 'The changes of the artifacts since the previous build'
+        def inputChanges = Stub( InputChanges ) {
+            isIncremental() >> true
+            getFileChanges( _ ) >> [ fileChange( added, ChangeType.ADDED ),
+                                     fileChange( modified, ChangeType.MODIFIED ),
+                                     fileChange( new File( libs, 'removed.jar' ), ChangeType.REMOVED ),
+                                     fileChange( new File( tempDir, 'old/moved.jar' ), ChangeType.REMOVED ),
+                                     fileChange( moved, ChangeType.ADDED ),
+                                     fileChange( libs, ChangeType.MODIFIED, FileType.DIRECTORY ) ]
+        }
+
+        when: 'The artifacts to process are selected'
+        def artifacts = task.artifactsToProcess( inputChanges, artifactByName, bundlesDir )
+
+        then: 'Only the new, modified and moved artifacts are processed'
+        artifacts as Set == [ added, modified, moved ] as Set
+
+        and: 'The bundle of the removed artifact is deleted'
+        bundlesDir.list().sort() == [ 'modified.jar', 'moved.jar', 'unchanged.jar' ]
+    }
+
+    def "Without incremental changes, all artifacts are processed and stale bundles are deleted"() {
+        given: 'The createBundlesDir task'
+        def task = createBundlesDirTask()
+
+        and: 'A bundles directory with a bundle which is no longer part of the runtime and another file'
+        def bundlesDir = new File( tempDir, 'bundle' )
+        createJar( bundlesDir, 'stale.jar', [ : ] )
+        new File( bundlesDir, 'notes.txt' ).text = 'not a bundle'
+
+        and: 'The current artifacts'
+        def libs = new File( tempDir, 'libs' )
+        def artifactByName = [ createJar( libs, 'a.jar', [ : ] ), createJar( libs, 'b.jar', [ : ] ) ]
+                .collectEntries { [ ( it.name ): it ] }
+
+        when: 'The artifacts to process are selected without incremental changes'
+        def artifacts = task.artifactsToProcess( Stub( InputChanges ) { isIncremental() >> false },
+                artifactByName, bundlesDir )
+
+        then: 'All artifacts are processed'
+        artifacts as Set == artifactByName.values() as Set
+
+        and: 'Only the jars are deleted from the bundles directory'
+        bundlesDir.list().toList() == [ 'notes.txt' ]
+    }
+
+    private CreateBundlesDir createBundlesDirTask() {
+        def project = ProjectBuilder.builder().withProjectDir( new File( tempDir, 'project' ) ).build()
+        project.apply plugin: 'com.athaydes.osgi-run'
+        project.tasks.createBundlesDir as CreateBundlesDir
+    }
+
+    private FileChange fileChange( File file, ChangeType changeType, FileType fileType = FileType.FILE ) {
+        Stub( FileChange ) {
+            getFile() >> file
+            getChangeType() >> changeType
+            getFileType() >> fileType
+        }
+    }
+
+    static File createJar( File dir, String name, Map<String, String> attributes ) {
+        def manifest = new Manifest()
+        manifest.mainAttributes[ Attributes.Name.MANIFEST_VERSION ] = '1.0'
+        attributes.each { key, value -> manifest.mainAttributes.putValue( key, value ) }
+        dir.mkdirs()
+        def jar = new File( dir, name )
+        new JarOutputStream( jar.newOutputStream(), manifest ).withCloseable { out ->
+            out.putNextEntry( new ZipEntry( 'some/data.txt' ) )
+            out.write( name.bytes )
+        }
+        jar
+    }
+
+    static Attributes manifestOf( File jar ) {
+        new JarFile( jar ).withCloseable { it.manifest.mainAttributes }
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.lang.Unroll
+
+import java.util.jar.Attributes
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+
+class CreateOsgiRuntimeTaskSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    @Unroll
+    def "The #configSettings configuration only refers to bundles by paths relative to the OSGi runtime"() {
+        given: 'An OSGi runtime with a bundle and a fragment'
+        def target = new File( tempDir, 'osgi' ).absolutePath
+        def osgiConfig = new OsgiConfig( configSettings: configSettings, daemon: true )
+        def bundlesDir = new File( target, osgiConfig.bundlesPath )
+        createJar( bundlesDir, 'bundle-1.0.jar', [ 'Bundle-SymbolicName': 'my.bundle' ] )
+        createJar( bundlesDir, 'fragment-1.0.jar', [ 'Bundle-SymbolicName': 'my.fragment',
+                                                     'Fragment-Host'      : 'my.bundle' ] )
+        def metadataIndex = BundleMetadataIndex.load( new File( tempDir, 'index' ) )
+
+        when: 'The configuration is generated with start levels'
+        CreateOsgiRuntimeTask.copyConfigFiles( target, osgiConfig,
+                [ 'bundle-1.0.jar': 5, 'fragment-1.0.jar': null ], metadataIndex )
+        def text = CreateOsgiRuntimeTask.getConfigFile( target, osgiConfig ).getText( 'UTF-8' )
+
+        then: 'The bundles are referred to by relative paths'
+        !text.contains( tempDir.absolutePath )
+        expectedEntries.every { text.contains( it ) }
+
+        where:
+        configSettings | expectedEntries
+        'felix'        | [ 'felix.auto.start.5 = file:bundle/bundle-1.0.jar',
+                           'felix.auto.install.4 = file:bundle/fragment-1.0.jar',
+                           'file:support/osgi-run-control.jar' ]
+        'equinox'      | [ '../support/osgi-run-control.jar@1:start', '../plugins/bundle-1.0.jar@5:start',
+                           '../plugins/fragment-1.0.jar' ]
+        'knopflerfish' | [ '-istart file:support/osgi-run-control.jar', '-istart file:jars/bundle-1.0.jar',
+                           '-install file:jars/fragment-1.0.jar' ]
+    }
+
+    @Unroll
+    def "With prewarm, the #configSettings configuration starts the framework from its storage area"() {
+        given: 'An OSGi runtime with a bundle'
+        def target = new File( tempDir, 'osgi' ).absolutePath
+        def osgiConfig = new OsgiConfig( configSettings: configSettings )
+        createJar( new File( target, osgiConfig.bundlesPath ), 'bundle-1.0.jar', [ 'Bundle-SymbolicName': 'my.bundle' ] )
+        def metadataIndex = BundleMetadataIndex.load( new File( tempDir, 'index' ) )
+        def configFile = CreateOsgiRuntimeTask.getConfigFile( target, osgiConfig )
+
+        when: 'The configuration is generated without the prewarm option'
+        CreateOsgiRuntimeTask.copyConfigFiles( target, osgiConfig, [ : ], metadataIndex )
+        def lines = configFile.readLines( 'UTF-8' )*.trim()
+
+        then: 'The framework installs the bundle'
+        lines.any { it.contains( installEntry ) }
+        !lines.contains( storageLine )
+
+        when: 'The configuration is generated with the prewarm option'
+        osgiConfig.prewarm = true
+        CreateOsgiRuntimeTask.copyConfigFiles( target, osgiConfig, [ : ], metadataIndex )
+        lines = configFile.readLines( 'UTF-8' )*.trim()
+
+        then: 'The framework keeps its storage area and does not install the bundle'
+        lines.contains( storageLine )
+        !lines.any { it.contains( installEntry ) }
+
+        and: 'The other settings are kept'
+        lines.contains( keptLine )
+
+        where:
+        configSettings | installEntry               | storageLine                               | keptLine
+        'felix'        | 'felix.auto.deploy.action' | 'org.osgi.framework.storage.clean = none' | 'felix.log.level = 1'
+        'equinox'      | 'plugins/bundle-1.0.jar'   | 'osgi.clean = false'                      | 'osgi.noShutdown = true'
+        'knopflerfish' | 'jars/bundle-1.0.jar'      | '-Forg.osgi.framework.storage = fwdir'    | '-launch'
+    }
+
+    def "The run scripts only use the class data sharing archive if it exists when they run"() {
+        given: 'An OSGi runtime'
+        def target = new File( tempDir, 'osgi' ).absolutePath
+        def osgiConfig = new OsgiConfig()
+        def scripts = [ 'run.sh', 'run.bat' ].collect { new File( target, it ) }
+        new File( target ).mkdirs()
+
+        when: 'The scripts are created without an archive'
+        CreateOsgiRuntimeTask.createOSScriptFiles( target, osgiConfig, 'foo.Main' )
+        def texts = scripts*.text
+
+        and: 'The scripts are created again once an archive exists'
+        new File( target, CreateOsgiRuntimeTask.CDS_ARCHIVE ).text = 'archive'
+        CreateOsgiRuntimeTask.createOSScriptFiles( target, osgiConfig, 'foo.Main' )
+
+        then: 'The scripts do not change, as they check whether the archive exists'
+        scripts*.text == texts
+        texts.every { it.contains( CreateOsgiRuntimeTask.cdsArgs() ) }
+
+        when: 'The archive is deleted'
+        CreateOsgiRuntimeTask.deleteCdsArchive( target )
+
+        then:
+        !new File( target, CreateOsgiRuntimeTask.CDS_ARCHIVE ).exists()
+    }
+
+    private static File createJar( File dir, String name, Map<String, String> attributes ) {
+        def manifest = new Manifest()
+        manifest.mainAttributes[ Attributes.Name.MANIFEST_VERSION ] = '1.0'
+        attributes.each { key, value -> manifest.mainAttributes.putValue( key, value ) }
+        dir.mkdirs()
+        def jar = new File( dir, name )
+        new JarOutputStream( jar.newOutputStream(), manifest ).withCloseable { out ->
+            out.putNextEntry( new ZipEntry( 'some/Entry.class' ) )
+            out.write( [ 1, 2, 3 ] as byte[] )
+        }
+        jar
+    }
+
+}
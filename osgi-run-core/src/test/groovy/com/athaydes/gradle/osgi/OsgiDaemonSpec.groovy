@@ -0,0 +1,129 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.charset.StandardCharsets
+import java.util.jar.Attributes
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+
+class OsgiDaemonSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "Only the bundles which changed since they were deployed are sent to the daemon"() {
+        given: 'An OSGi runtime with three deployed bundles'
+        def target = tempDir.absolutePath
+        def bundlesDir = new File( tempDir, 'bundle' )
+        def unchanged = createJar( bundlesDir, 'unchanged.jar', 'unchanged' )
+        def changed = createJar( bundlesDir, 'changed.jar', 'changed' )
+        def removed = createJar( bundlesDir, 'removed.jar', 'removed' )
+        def metadataIndex = BundleMetadataIndex.load( new File( tempDir, 'index' ) )
+        OsgiDaemon.saveDeployedState( target, [ unchanged, changed, removed ], null, metadataIndex )
+
+        and: 'A daemon running these bundles'
+        def server = new FakeControlServer( target, [ 'unchanged.jar', 'changed.jar', 'removed.jar' ] )
+
+        when: 'One bundle changes, one is added and one is removed'
+        changed.delete()
+        createJar( bundlesDir, 'changed.jar', 'changed', 'new contents' )
+        removed.delete()
+        def added = createJar( bundlesDir, 'added.jar', 'added' )
+
+        and: 'The bundles are redeployed'
+        def changes = OsgiDaemon.connect( target ).withCloseable {
+            it.redeploy( target, 'bundle', [ added, changed, unchanged ], null, [ 'added.jar': 5 ], metadataIndex )
+        }
+
+        then: 'The changed bundle is updated, the new one installed and the removed one uninstalled'
+        changes == 3
+        server.commands() == [ 'bundles',
+                               "install\t5\t${added.absolutePath}\tfile:bundle/added.jar".toString(),
+                               "update\t2\t${changed.absolutePath}".toString(),
+                               "uninstall\t3",
+                               'refresh',
+                               "start\t4",
+                               'bye' ]
+
+        when: 'The bundles are redeployed again without changes'
+        server = new FakeControlServer( target, [ 'unchanged.jar', 'changed.jar', 'added.jar' ] )
+        changes = OsgiDaemon.connect( target ).withCloseable {
+            it.redeploy( target, 'bundle', [ added, changed, unchanged ], null, [ : ], metadataIndex )
+        }
+
+        then: 'Nothing is sent to the daemon'
+        changes == 0
+        server.commands() == [ 'bundles', 'bye' ]
+    }
+
+    private static File createJar( File dir, String name, String symbolicName, String contents = 'contents' ) {
+        def manifest = new Manifest()
+        manifest.mainAttributes[ Attributes.Name.MANIFEST_VERSION ] = '1.0'
+        manifest.mainAttributes.putValue( 'Bundle-SymbolicName', symbolicName )
+        dir.mkdirs()
+        def jar = new File( dir, name )
+        new JarOutputStream( jar.newOutputStream(), manifest ).withCloseable { out ->
+            out.putNextEntry( new ZipEntry( 'some/data.txt' ) )
+            out.write( contents.getBytes( StandardCharsets.UTF_8 ) )
+        }
+        jar
+    }
+
+}
+
+/**
+ * Accepts a single connection the way the control bundle does, recording the commands it receives.
+ * The installed bundles are given IDs from 1, in the order given.
+ */
+class FakeControlServer {
+
+    private final ServerSocket serverSocket = new ServerSocket( 0, 1, InetAddress.loopbackAddress )
+    private final List<String> commands = [ ].asSynchronized()
+    private final Thread thread
+
+    FakeControlServer( String target, List<String> installedBundles ) {
+        def token = UUID.randomUUID().toString()
+        def controlFile = new File( target, CreateOsgiRuntimeTask.CONTROL_FILE )
+        controlFile.parentFile.mkdirs()
+        controlFile.text = "port=${serverSocket.localPort}\ntoken=${token}\n"
+
+        thread = Thread.start {
+            serverSocket.accept().withCloseable { Socket socket ->
+                def reader = new BufferedReader( new InputStreamReader( socket.inputStream, StandardCharsets.UTF_8 ) )
+                def writer = new PrintWriter( new OutputStreamWriter( socket.outputStream, StandardCharsets.UTF_8 ), true )
+                if ( reader.readLine() != token ) return
+                int nextId = installedBundles.size() + 1
+                String line
+                while ( ( line = reader.readLine() ) != null ) {
+                    commands << line
+                    switch ( line.split( '\t' )[ 0 ] ) {
+                        case 'bundles':
+                            installedBundles.eachWithIndex { String name, int i ->
+                                writer.println( "${i + 1}\t32\tfile:bundle/$name" )
+                            }
+                            writer.println( 'OK' )
+                            break
+                        case 'install':
+                            writer.println( "OK ${nextId++}" )
+                            break
+                        case 'bye':
+                            return
+                        default:
+                            writer.println( 'OK' )
+                    }
+                }
+            }
+            serverSocket.close()
+        }
+    }
+
+    List<String> commands() {
+        thread.join( 5000 )
+        new ArrayList<>( commands )
+    }
+
+}
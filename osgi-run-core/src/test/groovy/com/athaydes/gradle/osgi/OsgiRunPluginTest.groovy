@@ -53,4 +53,113 @@ class OsgiRunPluginTest extends Specification {
         and: 'no more configs are added'
         assert project.configurations.findByName( OSGI_DEP_PREFIX + ( defaultBundleCount + 1 ) ) == null
     }
+
+    def runtimeModelIsSharedAndKeepsDeclarationOrder() {
+        when: 'more than 10 bundles are declared'
+        def project = ProjectBuilder.builder().build()
+        project.apply plugin: 'com.athaydes.osgi-run'
+
+        def osgiConfig = project.extensions.getByName( 'runOsgi' ) as OsgiConfig
+        osgiConfig.bundles = ( 0..11 ).collect { i -> project.files( "bundle-${i}.jar" ) }
+
+        and: 'run the config'
+        ConfigurationsCreator.configBundles( project, osgiConfig )
+
+        def runtimeModel = project.tasks.createBundlesDir.runtimeModel as OsgiRuntimeModel
+
+        then: 'all tasks share the same runtime model'
+        runtimeModel != null
+        project.tasks.createOsgiRuntime.runtimeModel.is( runtimeModel )
+
+        and: 'the artifacts are in declaration order'
+        runtimeModel.filesByDeclaration.collect { it*.name } == ( 0..11 ).collect { i -> [ "bundle-${i}.jar" ] }
+        runtimeModel.startLevelByName.size() == 12
+    }
+
+    def tasksUseACopyOfTheConfiguration() {
+        given:
+        def project = ProjectBuilder.builder().build()
+        project.apply plugin: 'com.athaydes.osgi-run'
+        def osgiConfig = project.extensions.getByName( 'runOsgi' ) as OsgiConfig
+
+        when: 'the configuration is changed after the tasks have been created'
+        osgiConfig.javaArgs = '-Xmx1g\n-Dfoo=bar'
+        osgiConfig.bundles = [ project ]
+
+        and: 'a task changes its copy of the configuration'
+        def task = project.tasks.createOsgiRuntime as CreateOsgiRuntimeTask
+        def copy = task.runtimeConfig.get()
+        copy.config.foo = 'bar'
+
+        then: 'the copy has the latest configuration, without references to the project model'
+        copy.javaArgs == '-Xmx1g -Dfoo=bar'
+        copy.bundles == [ ]
+        task.target == new File( project.buildDir, 'osgi' ).absolutePath
+
+        and: 'the runOsgi extension does not change'
+        !osgiConfig.config.containsKey( 'foo' )
+    }
+
+    def namedRuntimesShareTheBundleStore() {
+        given:
+        def project = ProjectBuilder.builder().build()
+        project.apply plugin: 'com.athaydes.osgi-run'
+        def runtimes = OsgiRunPlugin.runtimesOf( project.extensions.getByName( 'runOsgi' ) as OsgiConfig )
+
+        when: 'two runtimes are declared'
+        runtimes.create( 'equinox' ) { it.bundles = [ project.files( 'c.jar' ) ] }
+        def slim = runtimes.create( 'slim' ) { it.bundles = [ project.files( 'a.jar' ), project.files( 'b.jar' ) ] }
+
+        and: 'their bundle configurations are created'
+        runtimes.each { ConfigurationsCreator.configBundles( project, it ) }
+
+        then: 'each runtime has its own tasks'
+        [ 'Equinox', 'Slim' ].every { suffix ->
+            project.tasks.findByName( "createBundlesDir$suffix" ) &&
+                    project.tasks.findByName( "createOsgiRuntime$suffix" ) &&
+                    project.tasks.findByName( "run$suffix" )
+        }
+
+        and: 'runtimes named after a framework use its settings, and all have their own directory'
+        runtimes.equinox.configSettings == 'equinox'
+        slim.configSettings == 'felix'
+        ( project.tasks.createOsgiRuntimeSlim as CreateOsgiRuntimeTask ).target ==
+                new File( project.buildDir, 'osgi-slim' ).absolutePath
+
+        and: 'the bundle store has the artifacts of all runtimes'
+        def store = project.tasks.createBundleStore as CreateBundlesDir
+        store.runtimeModel.filesByDeclaration.collect { it*.name } == [ [ 'c.jar' ], [ 'a.jar' ], [ 'b.jar' ] ]
+        ( project.tasks.createBundlesDirSlim as CreateBundlesDir ).runtimeModel.filesByDeclaration
+                .collect { it*.name } == [ [ 'a.jar' ], [ 'b.jar' ] ]
+    }
+
+    def runtimeArchiveOnlyIncludesThePrewarmedFrameworkStorage() {
+        given:
+        def project = ProjectBuilder.builder().build()
+        project.apply plugin: 'com.athaydes.osgi-run'
+        def task = project.tasks.osgiRuntimeArchive as CreateRuntimeArchiveTask
+        def target = new File( project.buildDir, 'osgi' )
+
+        when: 'the OSGi runtime has been run'
+        [ 'bundle/a.jar', 'system-libs/felix.jar', 'felix-cache/bundle1/bundle.jar', 'logs/console.log' ].each {
+            def file = new File( target, it )
+            file.parentFile.mkdirs()
+            file.text = it
+        }
+        def configFile = new File( target, 'conf/config.properties' )
+        configFile.parentFile.mkdirs()
+        configFile.text = 'felix.auto.start.1 = file:bundle/a.jar\n'
+
+        then: 'the framework storage and logs are not archived'
+        task.runtimeFiles.files.collect { target.toPath().relativize( it.toPath() ).toString() }.sort() ==
+                [ 'bundle/a.jar', 'conf/config.properties', 'system-libs/felix.jar' ]
+        task.archiveFile.get().asFile == new File( project.buildDir, 'distributions/osgi.jar' )
+
+        when: 'the OSGi runtime is pre-warmed'
+        project.runOsgi.prewarm = true
+
+        then: 'the framework storage is archived'
+        task.runtimeFiles.files.collect { target.toPath().relativize( it.toPath() ).toString() }.sort() ==
+                [ 'bundle/a.jar', 'conf/config.properties', 'felix-cache/bundle1/bundle.jar', 'system-libs/felix.jar' ]
+    }
 }
@@ -0,0 +1,47 @@
+package com.athaydes.gradle.osgi
+
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import com.athaydes.gradle.osgi.util.FileMaterializer
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static com.athaydes.gradle.osgi.CreateBundlesDirSpec.createJar
+import static com.athaydes.gradle.osgi.CreateBundlesDirSpec.manifestOf
+
+class ProjectBundleWatcherSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "A project jar which changes is processed into the bundles directory and deployed"() {
+        given: 'A watched project jar which is not a bundle'
+        def libs = new File( tempDir, 'libs' )
+        def jar = createJar( libs, 'project.jar', [ 'Implementation-Title': 'project', 'Implementation-Version': '1.0' ] )
+        def bundlesDir = new File( tempDir, 'bundle' )
+        bundlesDir.mkdirs()
+        def watcher = new ProjectBundleWatcher( [ jar ], bundlesDir,
+                BundleMetadataIndex.load( new File( tempDir, 'index' ) ),
+                new WrapInstructionsConfig( useCache: false ), null, new FileMaterializer( 'copy', tempDir ) )
+        def deployed = new CountDownLatch( 1 )
+
+        when: 'The jar is rebuilt while the watcher runs'
+        def thread = Thread.start {
+            watcher.watch { deployed.countDown(); false }
+        }
+        // the watcher may not be watching yet, so the jar is rebuilt until it is deployed
+        for ( int i = 0; i < 20 && deployed.count > 0; i++ ) {
+            createJar( libs, 'project.jar', [ 'Implementation-Title': 'project', 'Implementation-Version': '1.1' ] )
+            deployed.await( 500, TimeUnit.MILLISECONDS )
+        }
+        thread.join( 5000 )
+
+        then: 'The jar is wrapped into the bundles directory, then deployed, which stops the watcher'
+        deployed.count == 0
+        !thread.alive
+        manifestOf( new File( bundlesDir, 'project.jar' ) ).getValue( 'Bundle-Version' ) == '1.1.0'
+    }
+
+}
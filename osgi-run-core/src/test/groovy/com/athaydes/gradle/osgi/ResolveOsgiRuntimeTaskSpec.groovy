@@ -0,0 +1,28 @@
+package com.athaydes.gradle.osgi
+
+import spock.lang.Specification
+
+class ResolveOsgiRuntimeTaskSpec extends Specification {
+
+    def "Only the public packages of the JDK running the OSGi runtime are exported by the system bundle"() {
+        given: 'The JDK which runs the OSGi runtime'
+        def javaHome = ResolveOsgiRuntimeTask.javaHomeOf( RunOsgiTask.javaCmd() )
+
+        when: 'Its packages are found'
+        def packages = ResolveOsgiRuntimeTask.jdkPackages( javaHome )
+
+        then: 'The public packages of the JDK are included'
+        [ 'java.util', 'javax.net.ssl', 'org.w3c.dom', 'org.xml.sax' ].every { it in packages }
+
+        and: 'JDK internals are not included'
+        !packages.any { it.startsWith( 'sun.' ) || it.startsWith( 'com.sun.' ) || it.startsWith( 'jdk.' ) }
+    }
+
+    def "The JDK home is found from the java command"() {
+        expect:
+        ResolveOsgiRuntimeTask.javaHomeOf( new File( '/opt/jdk/bin/java' ).absolutePath ) ==
+                new File( '/opt/jdk' ).absoluteFile
+        ResolveOsgiRuntimeTask.javaHomeOf( 'java' ) == new File( System.getProperty( 'java.home' ) )
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.athaydes.gradle.osgi.bnd
+
+import com.athaydes.gradle.osgi.util.BundleMetadataIndex
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+
+class BundleConsolidatorSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "Identical artifacts and bundles with the same symbolic name and version are collapsed"() {
+        given: 'Two copies of a bundle, the same bundle with another file name, and two copies of a non-bundle'
+        def artifacts = [
+                jar( 'lib-1.0.jar', 'Bundle-SymbolicName': 'lib;singleton:=true', 'Bundle-Version': '1.0' ),
+                jar( 'lib_1.0.0.jar', 'Bundle-SymbolicName': 'lib', 'Bundle-Version': '1.0.0',
+                        'Bundle-Name': 'Lib' ),
+                jar( 'lib-1.1.jar', 'Bundle-SymbolicName': 'lib', 'Bundle-Version': '1.1' ),
+                jar( 'flat-2.0.jar', 'Implementation-Version': '2.0' ),
+                copy( 'flat-2.0.jar', 'flat.jar' ) ]
+
+        when: 'Duplicates are consolidated'
+        def report = consolidator().consolidate( artifacts, BundleConsolidator.DUPLICATES )
+
+        then: 'Only the first of each group is kept, other versions are kept too'
+        report.removed == [ 'lib_1.0.0.jar': 'same symbolic name and version as lib-1.0.jar (lib 1.0.0)',
+                            'flat.jar'     : 'identical to flat-2.0.jar' ]
+        report.kept.isEmpty()
+    }
+
+    def "The versions of a bundle are collapsed if one version satisfies all its users"() {
+        given: 'Two versions of an API, and users of the API which accept both versions'
+        def artifacts = [
+                jar( 'api-1.0.jar', 'Bundle-SymbolicName': 'api', 'Bundle-Version': '1.0',
+                        'Export-Package': 'com.api;version=1.0' ),
+                jar( 'api-1.2.jar', 'Bundle-SymbolicName': 'api', 'Bundle-Version': '1.2',
+                        'Export-Package': 'com.api;version=1.2' ),
+                jar( 'impl.jar', 'Bundle-SymbolicName': 'impl', 'Import-Package': 'com.api;version="[1.0,2)"' ),
+                jar( 'other.jar', 'Bundle-SymbolicName': 'other', 'Require-Bundle': 'api;bundle-version=1.1' ) ]
+
+        when: 'Versions are consolidated'
+        def report = consolidator().consolidate( artifacts, BundleConsolidator.VERSIONS )
+
+        then: 'The highest version is kept'
+        report.removed == [ 'api-1.0.jar': 'api 1.0.0 replaced by 1.2.0 from api-1.2.jar, which satisfies all its users' ]
+        report.kept.isEmpty()
+    }
+
+    def "The versions of a bundle are kept if no version satisfies all its users"() {
+        given: 'Two versions of an API, each of which is required by another bundle'
+        def artifacts = [
+                jar( 'api-1.0.jar', 'Bundle-SymbolicName': 'api', 'Bundle-Version': '1.0',
+                        'Export-Package': 'com.api;version=1.0' ),
+                jar( 'api-2.0.jar', 'Bundle-SymbolicName': 'api', 'Bundle-Version': '2.0',
+                        'Export-Package': 'com.api;version=2.0' ),
+                jar( 'old.jar', 'Bundle-SymbolicName': 'old', 'Import-Package': 'com.api;version="[1.0,2)"' ),
+                jar( 'new.jar', 'Bundle-SymbolicName': 'new', 'Import-Package': 'com.api;version="[2.0,3)"' ) ]
+
+        when: 'Versions are consolidated'
+        def report = consolidator().consolidate( artifacts, BundleConsolidator.VERSIONS )
+
+        then: 'Both versions are kept, and the reason is reported'
+        report.removed.isEmpty()
+        report.kept == [ api: '1.0.0, 2.0.0 kept, no version satisfies all users: ' +
+                'old.jar imports com.api;version="[1.0,2)"' ]
+    }
+
+    private BundleConsolidator consolidator() {
+        new BundleConsolidator( BundleMetadataIndex.load( new File( tempDir, 'index' ) ) )
+    }
+
+    private File jar( Map<String, String> headers, String name ) {
+        def manifest = new Manifest()
+        manifest.mainAttributes.putValue( 'Manifest-Version', '1.0' )
+        headers.each { key, value -> manifest.mainAttributes.putValue( key, value ) }
+        def jar = new File( tempDir, name )
+        new JarOutputStream( new FileOutputStream( jar ), manifest ).withCloseable { out ->
+            out.putNextEntry( new ZipEntry( "${name}/Entry.class" ) )
+            out.write( [ 1, 2, 3 ] as byte[] )
+        }
+        jar
+    }
+
+    private File copy( String name, String newName ) {
+        def copy = new File( tempDir, newName )
+        copy.bytes = new File( tempDir, name ).bytes
+        copy
+    }
+
+}
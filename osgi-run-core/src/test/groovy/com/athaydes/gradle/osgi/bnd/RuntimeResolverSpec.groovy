@@ -0,0 +1,69 @@
+package com.athaydes.gradle.osgi.bnd
+
+import com.athaydes.gradle.osgi.bnd.RuntimeResolver.BundleInfo
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+
+class RuntimeResolverSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "Bundles with missing requirements, and the bundles requiring them, are not resolved"() {
+        given: 'A bundle which imports a package nobody exports, and a bundle requiring it'
+        def bundles = [
+                bundle( 'api.jar', 'Bundle-SymbolicName': 'api', 'Export-Package': 'com.api;version=1.0' ),
+                bundle( 'impl.jar', 'Bundle-SymbolicName': 'impl', 'Bundle-Activator': 'impl.Activator',
+                        'Import-Package': 'com.api;version="[1,2)",org.osgi.framework,javax.xml.parsers' ),
+                bundle( 'broken.jar', 'Bundle-SymbolicName': 'broken',
+                        'Import-Package': 'com.api;version="[2,3)"' ),
+                bundle( 'user.jar', 'Bundle-SymbolicName': 'user', 'Require-Bundle': 'broken' ) ]
+
+        when: 'The bundles are resolved'
+        def report = new RuntimeResolver( bundles, 'org.osgi.framework;version=1.9', [ 'javax.xml.parsers' ] )
+                .resolve()
+
+        then: 'Only the bundles with satisfied requirements resolve'
+        !report.successful
+        report.unresolved.keySet() == [ 'broken.jar', 'user.jar' ] as Set
+        report.unresolved[ 'broken.jar' ] == [
+                'Import-Package: com.api;version="[2,3)" (available: 1.0.0 from api.jar)' ]
+        report.unresolved[ 'user.jar' ] == [ 'Require-Bundle: broken;bundle-version="0.0.0"' ]
+        report.unused.empty
+    }
+
+    def "Uses constraint violations and unused bundles are reported"() {
+        given: 'An API package which uses a model package exported in two versions, and an unused library'
+        def bundles = [
+                bundle( 'api.jar', 'Bundle-SymbolicName': 'api',
+                        'Export-Package': 'com.api;version=1.0;uses:="com.model",com.model;version=1.0' ),
+                bundle( 'model.jar', 'Bundle-SymbolicName': 'model', 'Export-Package': 'com.model;version=2.0' ),
+                bundle( 'impl.jar', 'Bundle-SymbolicName': 'impl', 'Service-Component': 'OSGI-INF/impl.xml',
+                        'Import-Package': 'com.api,com.model;version="[2,3)"' ),
+                bundle( 'lib.jar', 'Bundle-SymbolicName': 'lib', 'Export-Package': 'com.lib' ) ]
+
+        when: 'The bundles are resolved'
+        def report = new RuntimeResolver( bundles, '', [ ] ).resolve()
+
+        then: 'All bundles resolve, but the uses constraint violation is reported'
+        report.unresolved.isEmpty()
+        report.usesViolations == [ 'impl.jar uses package com.model from model.jar, ' +
+                                           'but package com.api from api.jar uses com.model from api.jar' ]
+
+        and: 'The library which is not used by any bundle is reported'
+        report.unused == [ 'lib.jar' ]
+    }
+
+    private BundleInfo bundle( Map<String, String> headers, String name ) {
+        def manifest = new Manifest()
+        manifest.mainAttributes.putValue( 'Manifest-Version', '1.0' )
+        headers.each { key, value -> manifest.mainAttributes.putValue( key, value ) }
+        def jar = new File( tempDir, name )
+        new JarOutputStream( new FileOutputStream( jar ), manifest ).close()
+        BundleInfo.read( jar )
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.athaydes.gradle.osgi.bnd
+
+import com.athaydes.gradle.osgi.bnd.RuntimeResolver.BundleInfo
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+
+class StartLevelPlannerSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "Bundles start after the bundles providing their packages, services and extenders"() {
+        given: 'An API, a DS component implementing a service, the DS extender and a consumer of the service'
+        def bundles = [
+                bundle( 'api.jar', 'Bundle-SymbolicName': 'api', 'Export-Package': 'com.api;version=1.0' ),
+                bundle( 'scr.jar', 'Bundle-SymbolicName': 'scr',
+                        'Provide-Capability': 'osgi.extender;osgi.extender="osgi.component";version:Version="1.4"' ),
+                bundle( 'impl.jar', 'Bundle-SymbolicName': 'impl', 'Import-Package': 'com.api',
+                        'Service-Component': 'OSGI-INF/impl.xml',
+                        'Provide-Capability': 'osgi.service;objectClass:List<String>="com.api.Foo,com.api.Bar"' ),
+                bundle( 'impl-fragment.jar', 'Bundle-SymbolicName': 'impl.fragment', 'Fragment-Host': 'impl' ),
+                bundle( 'consumer.jar', 'Bundle-SymbolicName': 'consumer', 'Import-Package': 'com.api',
+                        'Require-Capability': 'osgi.service;filter:="(objectClass=com.api.Bar)";effective:=active' ) ]
+
+        when: 'Start levels are planned'
+        def levels = StartLevelPlanner.plan( bundles, [ : ], 2 )
+
+        then: 'Each bundle starts after its dependencies, and fragments are installed with their hosts'
+        levels == [ 'api.jar': 2, 'scr.jar': 2, 'impl.jar': 3, 'impl-fragment.jar': 3, 'consumer.jar': 4 ]
+    }
+
+    def "Bundles depending on each other share a start level, and explicit start levels take precedence"() {
+        given: 'Two bundles importing packages from each other, and bundles depending on them'
+        def bundles = [
+                bundle( 'a.jar', 'Bundle-SymbolicName': 'a', 'Export-Package': 'com.a', 'Import-Package': 'com.b' ),
+                bundle( 'b.jar', 'Bundle-SymbolicName': 'b', 'Export-Package': 'com.b', 'Import-Package': 'com.a' ),
+                bundle( 'c.jar', 'Bundle-SymbolicName': 'c', 'Require-Bundle': 'b' ),
+                bundle( 'd.jar', 'Bundle-SymbolicName': 'd', 'Import-Package': 'com.a' ),
+                bundle( 'e.jar', 'Bundle-SymbolicName': 'e', 'Require-Bundle': 'd' ) ]
+
+        when: 'Start levels are planned with an explicit start level for one bundle'
+        def levels = StartLevelPlanner.plan( bundles, [ 'd.jar': 10 ], 2 )
+
+        then: 'The cycle is started at once, and the explicit start level is kept'
+        levels == [ 'a.jar': 2, 'b.jar': 2, 'c.jar': 3, 'd.jar': 10, 'e.jar': 11 ]
+    }
+
+    private BundleInfo bundle( Map<String, String> headers, String name ) {
+        def manifest = new Manifest()
+        manifest.mainAttributes.putValue( 'Manifest-Version', '1.0' )
+        headers.each { key, value -> manifest.mainAttributes.putValue( key, value ) }
+        def jar = new File( tempDir, name )
+        new JarOutputStream( new FileOutputStream( jar ), manifest ).close()
+        BundleInfo.read( jar )
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.athaydes.gradle.osgi.config
+
+import com.athaydes.gradle.osgi.OsgiConfig
+import com.athaydes.gradle.osgi.config.OsgiConfigContext.RuntimeBundle
+import org.gradle.api.GradleException
+import spock.lang.Specification
+
+class OsgiConfigGeneratorsSpec extends Specification {
+
+    def "The generator of each configSettings is found, including generators registered as services"() {
+        expect: 'The built-in generators and the registered generator are found by name'
+        OsgiConfigGenerators.forConfigSettings( 'felix' ) instanceof FelixConfigGenerator
+        OsgiConfigGenerators.forConfigSettings( 'equinox' ) instanceof EquinoxConfigGenerator
+        OsgiConfigGenerators.forConfigSettings( 'knopflerfish' ) instanceof KnopflerfishConfigGenerator
+        OsgiConfigGenerators.forConfigSettings( 'bundle-list' ) instanceof BundleListConfigGenerator
+
+        and: 'No generator is used without configSettings'
+        OsgiConfigGenerators.forConfigSettings( 'none' ) == null
+
+        when: 'A configSettings without generator is used'
+        OsgiConfigGenerators.forConfigSettings( 'other' )
+
+        then: 'An error is raised'
+        def error = thrown( GradleException )
+        error.message == 'Unknown OSGi configSettings: other'
+    }
+
+    def "Registered generators write the configuration of the bundles in the context"() {
+        given: 'A runtime with two bundles'
+        def context = new OsgiConfigContext( '/osgi', new OsgiConfig( configSettings: 'bundle-list' ),
+                [ new RuntimeBundle( 'a.jar', 'bundle/a.jar', false, null ),
+                  new RuntimeBundle( 'b.jar', 'bundle/b.jar', true, 3 ) ], [ ], [ : ], 4 )
+
+        when: 'The configuration is written, escaping backslashes'
+        def writer = new StringWriter()
+        new BackslashEscapingWriter( writer ).withCloseable {
+            OsgiConfigGenerators.forConfigSettings( 'bundle-list' ).write( context, it )
+        }
+
+        then: 'The configuration lists all bundles'
+        writer.toString() == 'bundle/a.jar start\nbundle/b.jar 3\n\\\\end\n'
+    }
+
+    def "The beginning start level includes the default start level of bundles without a start level"() {
+        given: 'A runtime with bundles in the given start levels'
+        def bundles = startLevels.withIndex().collect { Integer startLevel, int i ->
+            new RuntimeBundle( "b${i}.jar".toString(), "bundle/b${i}.jar".toString(), false, startLevel )
+        }
+        def context = new OsgiConfigContext( '/osgi', new OsgiConfig(), bundles, [ ], [ : ], 4 )
+
+        expect: 'The beginning start level is only set if the framework would not start all bundles'
+        context.withBeginningStartLevel( [ : ], 'beginning', 1 ) == expectedConfig
+
+        where:
+        startLevels     | expectedConfig
+        [ null ]        | [ : ]
+        [ 1, 2, 3 ]     | [ beginning: 3 ]
+        [ 1, 2, null ]  | [ beginning: 4 ]
+        [ 1, 6, null ]  | [ beginning: 6 ]
+    }
+
+}
+
+class BundleListConfigGenerator implements OsgiConfigGenerator {
+
+    @Override
+    String getName() {
+        'bundle-list'
+    }
+
+    @Override
+    File configFile( String target ) {
+        new File( target, 'bundles.list' )
+    }
+
+    @Override
+    void write( OsgiConfigContext context, Writer writer ) {
+        for ( bundle in context.bundles ) {
+            writer.write( "${bundle.path} ${bundle.fragment ? bundle.startLevel : 'start'}\n" )
+        }
+        writer.write( '\\end\n' )
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.athaydes.gradle.osgi.ds
+
+import spock.lang.Specification
+import spock.lang.TempDir
+
+class DeclarativeServicesConfigSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "Groovy declarations give the same XML every time they are read"() {
+        given: 'Two projects declaring the same component in a Groovy file'
+        def declarations = new File( tempDir, 'ds.groovy' )
+        declarations.text = "component( name: 'comp' ) { implementation( 'class': 'foo.Comp' ) }"
+        def config = new DeclarativeServicesConfig( declarations: declarations )
+        def otherConfig = new DeclarativeServicesConfig( declarations: [ declarations.path ] )
+
+        when: 'The declarations are read more than once'
+        def xml = config.xmlFileContents
+        def xmlAgain = config.xmlFileContents
+        def otherXml = otherConfig.xmlFileContents
+
+        then: 'The XML only contains the declared component'
+        xml.readLines() == [ "<component name='comp'>", "  <implementation class='foo.Comp' />", '</component>' ]
+        xmlAgain == xml
+        otherXml.trim() == xml
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.athaydes.gradle.osgi.util
+
+import groovy.json.JsonSlurper
+import spock.lang.Specification
+import spock.lang.TempDir
+
+class BuildMetricsSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "Each task replaces only its own metrics in the metrics file"() {
+        given: 'Metrics of two tasks'
+        def bundlesDirMetrics = new BuildMetrics( 'createBundlesDir' )
+        bundlesDirMetrics.time( 'copy' ) { sleep 10 }
+        bundlesDirMetrics.increment( 'bytesCopied', 1000 )
+        bundlesDirMetrics.increment( 'bytesCopied', 500 )
+
+        def runtimeMetrics = new BuildMetrics( 'createOsgiRuntime' )
+        runtimeMetrics.increment( 'systemLibs' )
+
+        when: 'Both are reported, and the first task is reported again'
+        bundlesDirMetrics.report( tempDir )
+        runtimeMetrics.report( tempDir )
+        bundlesDirMetrics.increment( 'bytesCopied', 500 )
+        bundlesDirMetrics.report( tempDir )
+
+        then: 'The metrics file contains the latest metrics of both tasks'
+        def json = new JsonSlurper().parse( new File( tempDir, BuildMetrics.FILE_NAME ) ) as Map
+        json.keySet() == [ 'createBundlesDir', 'createOsgiRuntime' ] as Set
+        json.createBundlesDir.counters == [ bytesCopied: 2000 ]
+        json.createBundlesDir.phasesMillis.copy >= 10
+        json.createOsgiRuntime.counters == [ systemLibs: 1 ]
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.athaydes.gradle.osgi.util
+
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.util.jar.Attributes
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+
+class BundleMetadataIndexSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "Can read the metadata of bundles, fragments and non-bundles"() {
+        given: 'A bundle, a fragment and a non-bundle'
+        def bundle = createJar( 'bundle-1.0.jar', [
+                'Bundle-SymbolicName': 'my.bundle',
+                'Bundle-Version'     : '1.2.3',
+                'Export-Package'     : 'my.bundle.api;version="1.2.3"' ] )
+        def fragment = createJar( 'fragment-2.0.jar', [
+                'Bundle-SymbolicName': 'my.fragment',
+                'Fragment-Host'      : 'my.bundle' ] )
+        def nonBundle = createJar( 'lib-3.1.jar', [ 'Main-Class': 'lib.Main' ] )
+
+        and: 'An empty index'
+        def index = BundleMetadataIndex.load( new File( tempDir, 'index' ) )
+
+        when: 'The metadata of each jar is requested'
+        def bundleMetadata = index.get( bundle )
+        def fragmentMetadata = index.get( fragment )
+        def nonBundleMetadata = index.get( nonBundle )
+
+        then: 'The metadata is correct'
+        bundleMetadata.bundle
+        !bundleMetadata.fragment
+        bundleMetadata.symbolicName == 'my.bundle'
+        bundleMetadata.version == '1.2.3'
+        bundleMetadata.exportPackage == 'my.bundle.api;version="1.2.3"'
+
+        fragmentMetadata.bundle
+        fragmentMetadata.fragment
+        fragmentMetadata.version == '2.0'
+
+        !nonBundleMetadata.bundle
+        nonBundleMetadata.hasManifest
+        nonBundleMetadata.mainClass == 'lib.Main'
+        nonBundleMetadata.title == 'lib'
+        nonBundleMetadata.version == '3.1'
+    }
+
+    def "The index is persisted and keyed by the contents of the jars"() {
+        given: 'Two jars with the same contents'
+        def jar = createJar( 'a-1.0.jar', [ 'Bundle-SymbolicName': 'a' ] )
+        def copy = new File( tempDir, 'copy.jar' )
+        copy.bytes = jar.bytes
+
+        and: 'An index which knows about the first jar'
+        def indexFile = new File( tempDir, 'index' )
+        def index = BundleMetadataIndex.load( indexFile )
+        def metadata = index.get( jar )
+        index.save()
+
+        when: 'The index is loaded again'
+        def loadedIndex = BundleMetadataIndex.load( indexFile )
+
+        then: 'Both jars have the same metadata'
+        loadedIndex.get( jar ).hash == metadata.hash
+        loadedIndex.get( copy ).hash == metadata.hash
+        loadedIndex.get( copy ).symbolicName == 'a'
+    }
+
+    private File createJar( String name, Map<String, String> attributes ) {
+        def manifest = new Manifest()
+        manifest.mainAttributes[ Attributes.Name.MANIFEST_VERSION ] = '1.0'
+        attributes.each { key, value -> manifest.mainAttributes.putValue( key, value ) }
+        def jar = new File( tempDir, name )
+        new JarOutputStream( jar.newOutputStream(), manifest ).withCloseable { out ->
+            out.putNextEntry( new ZipEntry( 'some/Entry.class' ) )
+            out.write( [ 1, 2, 3 ] as byte[] )
+        }
+        jar
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.athaydes.gradle.osgi.util
+
+import spock.lang.Specification
+import spock.lang.TempDir
+
+class ConsoleBridgeSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "All output is forwarded to the destination and to the tee"() {
+        given: 'Output with many lines and a prompt without a new line at the end'
+        def text = ( 1..10_000 ).collect { "line $it" }.join( '\n' ) + '\ng! '
+
+        when: 'The output is forwarded'
+        def destination = new ByteArrayOutputStream()
+        def tee = new ByteArrayOutputStream()
+        ConsoleBridge.forward( new ByteArrayInputStream( text.bytes ), destination, tee )
+
+        then: 'Both the destination and the tee receive all of it'
+        destination.toString() == text
+        tee.toString() == text
+    }
+
+    def "Log files are rotated once they reach their maximum size"() {
+        given: 'A log file with a maximum size of 10 bytes, keeping 2 backups'
+        def file = new File( tempDir, 'console.log' )
+        def log = new ConsoleBridge.RotatingLogFile( file, 10, 2 )
+
+        when: 'More than 30 bytes are written to it'
+        4.times { log.write( "line $it\n".bytes ) }
+        log.close()
+
+        then: 'Only the most recent lines are kept'
+        file.text == 'line 3\n'
+        new File( tempDir, 'console.log.1' ).text == 'line 2\n'
+        new File( tempDir, 'console.log.2' ).text == 'line 1\n'
+        !new File( tempDir, 'console.log.3' ).exists()
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.athaydes.gradle.osgi.util
+
+import org.gradle.api.GradleException
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.file.Files
+
+class FileMaterializerSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "Files outside the project are linked, files inside the project are copied"() {
+        given: 'A file outside and a file inside the project directory'
+        def projectDir = new File( tempDir, 'project' )
+        projectDir.mkdirs()
+        def external = new File( tempDir, 'external.jar' )
+        external.text = 'external'
+        def internal = new File( projectDir, 'internal.jar' )
+        internal.text = 'internal'
+
+        and: 'Existing destination files'
+        def externalCopy = new File( tempDir, 'external-copy.jar' )
+        def internalCopy = new File( tempDir, 'internal-copy.jar' )
+        externalCopy.text = 'old'
+        internalCopy.text = 'old'
+
+        when: 'Both files are materialized using symlinks'
+        def materializer = new FileMaterializer( 'symlink', projectDir )
+        materializer.materialize( external, externalCopy )
+        materializer.materialize( internal, internalCopy )
+
+        then: 'Only the external file is linked'
+        Files.isSymbolicLink( externalCopy.toPath() )
+        !Files.isSymbolicLink( internalCopy.toPath() )
+
+        and: 'Both destinations have the contents of the sources'
+        externalCopy.text == 'external'
+        internalCopy.text == 'internal'
+    }
+
+    def "Invalid materialization modes are rejected"() {
+        when:
+        new FileMaterializer( 'teleport', tempDir )
+
+        then:
+        thrown GradleException
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.athaydes.gradle.osgi.util
+
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.util.jar.JarInputStream
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+class JarRewriterSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "Can replace and add entries while keeping all other entries unchanged"() {
+        given: 'A jar with a Manifest and many other entries'
+        def source = new File( tempDir, 'source.jar' )
+        def manifest = new Manifest( new ByteArrayInputStream( 'Manifest-Version: 1.0\n\n'.bytes ) )
+        new JarOutputStream( source.newOutputStream(), manifest ).withCloseable { out ->
+            ( 1..50 ).each { i ->
+                out.putNextEntry( new ZipEntry( "pkg/File${i}.txt" ) )
+                out.write( ( "contents of file $i " * 20 ).bytes )
+            }
+        }
+
+        when: 'The jar is rewritten with a new Manifest and a new entry'
+        def destination = new File( tempDir, 'destination.jar' )
+        JarRewriter.rewrite( source, destination,
+                [ 'META-INF/MANIFEST.MF': 'Manifest-Version: 1.0\nBundle-SymbolicName: rewritten\n\n'.bytes ],
+                [ 'OSGI-INF/ds.xml': '<components/>'.bytes ] )
+
+        then: 'The new jar has the same entries as the original, except for the replaced one'
+        def sourceZip = new ZipFile( source )
+        def destinationZip = new ZipFile( destination )
+        sourceZip.entries().findAll { it.name.startsWith( 'pkg/' ) }.each { ZipEntry entry ->
+            assert destinationZip.getInputStream( destinationZip.getEntry( entry.name ) ).bytes ==
+                    sourceZip.getInputStream( entry ).bytes
+        }
+
+        and: 'The Manifest was replaced'
+        new JarInputStream( destination.newInputStream() ).withCloseable {
+            it.manifest.mainAttributes.getValue( 'Bundle-SymbolicName' )
+        } == 'rewritten'
+
+        and: 'The new entry was added'
+        destinationZip.getInputStream( destinationZip.getEntry( 'OSGI-INF/ds.xml' ) ).text == '<components/>'
+
+        cleanup:
+        sourceZip?.close()
+        destinationZip?.close()
+    }
+
+}
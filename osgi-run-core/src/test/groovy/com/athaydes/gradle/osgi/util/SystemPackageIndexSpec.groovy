@@ -0,0 +1,57 @@
+package com.athaydes.gradle.osgi.util
+
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.util.jar.Attributes
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+
+class SystemPackageIndexSpec extends Specification {
+
+    @TempDir
+    File tempDir
+
+    def "The packages of all classes of non-bundles are exported with the jar version"() {
+        given: 'A non-bundle jar with classes in several packages'
+        def jar = createJar( 'lib-1.2.jar', [ : ],
+                'a/A.class', 'a/B.class', 'a/b/C.class', 'a/D.class', 'Root.class',
+                'META-INF/versions/9/a/A.class', 'a/resource.txt' )
+
+        when: 'The exports of the jar are appended to existing exports'
+        def index = new SystemPackageIndex( BundleMetadataIndex.load( new File( tempDir, 'index' ) ) )
+        def exports = index.appendExports( [ jar ], new StringBuilder( 'x' ) ).toString()
+
+        then: 'Each package is exported only once'
+        exports == 'x,a;version=1.2.0,a.b;version=1.2.0'
+    }
+
+    def "The Export-Package header is used when available"() {
+        given: 'A bundle which exports only some of its packages'
+        def jar = createJar( 'bundle-1.0.jar', [ 'Export-Package': 'a;version="2.0"' ],
+                'a/A.class', 'a/internal/B.class' )
+
+        when: 'The exports of the jar are appended to an empty builder'
+        def index = new SystemPackageIndex( BundleMetadataIndex.load( new File( tempDir, 'index' ) ) )
+        def exports = index.appendExports( [ jar ], new StringBuilder() ).toString()
+
+        then: 'The Export-Package header is used'
+        exports == 'a;version="2.0"'
+    }
+
+    private File createJar( String name, Map<String, String> attributes, String... entries ) {
+        def manifest = new Manifest()
+        manifest.mainAttributes[ Attributes.Name.MANIFEST_VERSION ] = '1.0'
+        attributes.each { key, value -> manifest.mainAttributes.putValue( key, value ) }
+        def jar = new File( tempDir, name )
+        new JarOutputStream( jar.newOutputStream(), manifest ).withCloseable { out ->
+            entries.each { entry ->
+                out.putNextEntry( new ZipEntry( entry ) )
+                out.write( [ 1, 2, 3 ] as byte[] )
+            }
+        }
+        jar
+    }
+
+}